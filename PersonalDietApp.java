@@ -1,13 +1,105 @@
+package dietplanner;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
 
 // Main class for Personal Diet App
 public class PersonalDietApp {
-    private static Scanner scanner = new Scanner(System.in);
-    private static UserProfile userProfile = new UserProfile();
-    private static DailyNutritionTracker nutritionTracker = new DailyNutritionTracker();
-    private static FoodDatabase foodDatabase = new FoodDatabase();
+    private static final String CONSOLE_USER = "local";
     
-    public static void main(String[] args) {
+    private static CommandReader input;
+    private static FoodDatabase foodDatabase;
+    private static NutritionTrackingService trackingService;
+    private static UserProfile userProfile;
+    private static DailyNutritionTracker nutritionTracker;
+    
+    // Usage: java dietplanner.PersonalDietApp [--catalog foods.fdc] [--data-dir dir]
+    //            [--server [port] | --script [commands.txt]]
+    public static void main(String[] args) throws Exception {
+        String catalogFile = null;
+        String dataDir = null;
+        int serverPort = -1;
+        String scriptFile = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--catalog") && i + 1 < args.length) {
+                catalogFile = args[++i];
+            } else if (args[i].equals("--data-dir") && i + 1 < args.length) {
+                dataDir = args[++i];
+            } else if (args[i].equals("--server")) {
+                serverPort = i + 1 < args.length && !args[i + 1].startsWith("--") ? Integer.parseInt(args[++i]) : 8080;
+            } else if (args[i].equals("--script")) {
+                scriptFile = i + 1 < args.length && !args[i + 1].startsWith("--") ? args[++i] : "-";
+            } else {
+                System.out.println("Unknown argument: " + args[i]);
+                return;
+            }
+        }
+        
+        // A script's standard output carries only its responses
+        PrintStream status = scriptFile == null ? System.out : System.err;
+        if (catalogFile == null) {
+            foodDatabase = new FoodDatabase();
+        } else {
+            long start = System.nanoTime();
+            foodDatabase = new FoodDatabase(Paths.get(catalogFile));
+            status.printf("Opened catalog with %d foods in %.1f ms\n",
+                foodDatabase.size(), (System.nanoTime() - start) / 1e6);
+        }
+        trackingService = new NutritionTrackingService(foodDatabase);
+        userProfile = trackingService.getProfile(CONSOLE_USER);
+        nutritionTracker = trackingService.getTracker(CONSOLE_USER);
+        
+        if (dataDir != null) {
+            MealLog mealLog = MealLog.open(Paths.get(dataDir), foodDatabase);
+            MealLog.ReplayResult replay = mealLog.replay(trackingService);
+            // Fold whatever earlier days are still in the log before reading the summaries back
+            mealLog.compact().join();
+            for (MealLog.DailySummaryRecord day : mealLog.loadDailySummaries()) {
+                trackingService.getHistory(day.userId).recordDay(day.date, day.summary, day.entries);
+            }
+            trackingService.attachMealLog(mealLog);
+            mealLog.startBackgroundCompaction(1, TimeUnit.HOURS);
+            status.printf("Replayed %d meal log events for %d users in %.1f ms\n",
+                replay.events, replay.users, replay.millis);
+            Runtime.getRuntime().addShutdownHook(new Thread(mealLog::close));
+        }
+        
+        if (serverPort >= 0) {
+            int port = serverPort;
+            DietApiServer server = new DietApiServer(trackingService);
+            server.start(port);
+            System.out.println("Diet API listening on port " + port + " (" + server.getExecutorDescription() + ")");
+            return;
+        }
+        
+        // Standard input is read through its file descriptor's channel; nothing else reads System.in
+        ReadableByteChannel stdin = new FileInputStream(FileDescriptor.in).getChannel();
+        if (scriptFile != null) {
+            runScript(scriptFile.equals("-") ? stdin : FileChannel.open(Paths.get(scriptFile), StandardOpenOption.READ));
+            return;
+        }
+        input = new CommandReader(stdin);
+        
+        trackingService.addAlertListener(alert -> System.out.println("Alert: " + alert.getMessage()));
         System.out.println("=== Welcome to Personal Diet & Nutrition App ===");
         
         while (true) {
@@ -43,6 +135,20 @@ public class PersonalDietApp {
         }
     }
     
+    // Responses go to standard output; the timing line goes to standard error so it never
+    // mixes with them
+    private static void runScript(ReadableByteChannel script) throws IOException {
+        System.out.flush();
+        ScriptRunner runner = new ScriptRunner(trackingService, CONSOLE_USER);
+        long start = System.nanoTime();
+        try (script) {
+            runner.run(new CommandReader(script), new FileOutputStream(FileDescriptor.out).getChannel());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.printf("Ran %d commands (%d errors) in %.2f s: %.0f commands/s%n",
+            runner.getCommandCount(), runner.getErrorCount(), seconds, runner.getCommandCount() / seconds);
+    }
+    
     private static void displayMainMenu() {
         System.out.println("1. Setup User Profile");
         System.out.println("2. Calculate Daily Calories");
@@ -60,7 +166,7 @@ public class PersonalDietApp {
         userProfile.setAge(getIntInput(""));
         
         System.out.print("Enter your gender (M/F): ");
-        userProfile.setGender(scanner.nextLine().toUpperCase().charAt(0));
+        userProfile.setGender(readLine().toUpperCase(Locale.ROOT).charAt(0));
         
         System.out.print("Enter your weight (kg): ");
         userProfile.setWeight(getDoubleInput(""));
@@ -100,6 +206,18 @@ public class PersonalDietApp {
         System.out.printf("Weight Loss: %.0f calories (deficit of 500)\n", dailyCalories - 500);
         System.out.printf("Weight Maintenance: %.0f calories\n", dailyCalories);
         System.out.printf("Weight Gain: %.0f calories (surplus of 500)\n", dailyCalories + 500);
+        
+        // Six months at the current activity level, following the plan about 90% of the time
+        List<WeightScenario> scenarios = WeightScenario.grid(new double[] {500, 0, -500},
+            new int[] {userProfile.getActivityLevel()}, new double[] {0.9}, 0.1);
+        List<WeightProjection> projections = new WeightTrajectorySimulator(userProfile, 182, 500, 42).project(scenarios);
+        String[] goals = {"Weight Loss", "Weight Maintenance", "Weight Gain"};
+        System.out.println("\nProjected weight after 6 months (median, 10th-90th percentile):");
+        for (int i = 0; i < goals.length; i++) {
+            WeightProjection projection = projections.get(i);
+            System.out.printf("%s: %.1f kg (%.1f - %.1f kg)\n", goals[i],
+                projection.getFinalMedian(), projection.getFinalP10(), projection.getFinalP90());
+        }
     }
     
     private static void calculateBMI() {
@@ -131,8 +249,12 @@ public class PersonalDietApp {
             System.out.println("\n1. Add Food Item");
             System.out.println("2. View Available Foods");
             System.out.println("3. View Today's Intake");
-            System.out.println("4. Clear Today's Intake");
-            System.out.println("5. Back to Main Menu");
+            System.out.println("4. Undo Last Food Item");
+            System.out.println("5. Clear Today's Intake");
+            System.out.println("6. Close Day (save to history)");
+            System.out.println("7. View Nutrition History");
+            System.out.println("8. Find Food Substitutes");
+            System.out.println("9. Back to Main Menu");
             
             int choice = getIntInput("Choose an option: ");
             
@@ -147,10 +269,28 @@ public class PersonalDietApp {
                     nutritionTracker.displayDailyIntake();
                     break;
                 case 4:
-                    nutritionTracker.clearDailyIntake();
-                    System.out.println("Daily intake cleared!");
+                    FoodEntry removed = trackingService.undoLastFood(CONSOLE_USER);
+                    if (removed == null) {
+                        System.out.println("No food items to undo.");
+                    } else {
+                        System.out.println("Removed " + removed.getFood().getName() + ".");
+                    }
                     break;
                 case 5:
+                    trackingService.clearDailyIntake(CONSOLE_USER);
+                    System.out.println("Daily intake cleared!");
+                    break;
+                case 6:
+                    trackingService.closeDay(CONSOLE_USER, LocalDate.now());
+                    System.out.println("Today's intake was saved to your history.");
+                    break;
+                case 7:
+                    viewNutritionHistory();
+                    break;
+                case 8:
+                    findSubstitutes();
+                    break;
+                case 9:
                     return;
                 default:
                     System.out.println("Invalid choice.");
@@ -160,20 +300,97 @@ public class PersonalDietApp {
     
     private static void addFoodItem() {
         System.out.print("Enter food name: ");
-        String foodName = scanner.nextLine().toLowerCase();
+        String foodName = readLine().toLowerCase(Locale.ROOT);
         
         Food food = foodDatabase.getFood(foodName);
         if (food == null) {
-            System.out.println("Food not found in database. Available foods:");
-            foodDatabase.displayAvailableFoods();
+            List<Food> suggestions = foodDatabase.searchByPrefix(foodName, 5);
+            if (suggestions.isEmpty()) {
+                suggestions = foodDatabase.searchSimilar(foodName, 5);
+            }
+            if (suggestions.isEmpty()) {
+                System.out.println("Food not found in database. Available foods:");
+                foodDatabase.displayAvailableFoods();
+            } else {
+                System.out.println("Food not found in database. Did you mean:");
+                for (Food suggestion : suggestions) {
+                    System.out.println("  " + suggestion.getName());
+                }
+            }
             return;
         }
         
+        Recipe recipe = foodDatabase.getRecipe(food.getName());
+        if (recipe != null) {
+            System.out.printf("One serving of %s is %.0fg.\n", recipe.getName(), recipe.getServingGrams());
+        }
         double quantity = getDoubleInput("Enter quantity (grams): ");
-        nutritionTracker.addFood(food, quantity);
+        trackingService.addFood(CONSOLE_USER, food, quantity);
         System.out.println("Food added successfully!");
     }
     
+    private static void findSubstitutes() {
+        System.out.print("Enter food to replace: ");
+        Food food = foodDatabase.getFood(readLine().trim());
+        if (food == null) {
+            System.out.println("Food not found in database.");
+            return;
+        }
+        System.out.print("Nutrients to keep similar (e.g. protein,omega3; blank for all): ");
+        String focus = readLine().trim();
+        System.out.print("Nutrient to keep lower (e.g. fat; blank for none): ");
+        String lower = readLine().trim();
+        
+        SubstitutionQuery query = new SubstitutionQuery();
+        if (!focus.isEmpty()) {
+            List<Nutrient> nutrients = new ArrayList<>();
+            for (String name : focus.split(",")) {
+                Nutrient nutrient = Nutrient.fromKey(name.trim().replace(" ", ""));
+                if (nutrient == null) {
+                    System.out.println("Unknown nutrient: " + name.trim());
+                    return;
+                }
+                nutrients.add(nutrient);
+            }
+            query.focusOn(nutrients.toArray(new Nutrient[0]));
+        }
+        if (!lower.isEmpty()) {
+            Nutrient nutrient = Nutrient.fromKey(lower.replace(" ", ""));
+            if (nutrient == null) {
+                System.out.println("Unknown nutrient: " + lower);
+                return;
+            }
+            query.atMost(nutrient, food.getNutrient(nutrient) * 0.75);
+        }
+        
+        List<Food> substitutes = foodDatabase.findSubstitutes(food, 5, query);
+        if (substitutes.isEmpty()) {
+            System.out.println("No substitutes match those constraints.");
+            return;
+        }
+        System.out.println("\nSubstitutes for " + food.getName() + ":");
+        for (Food substitute : substitutes) {
+            System.out.printf("  %-15s %4.0f cal, P %.1fg, C %.1fg, F %.1fg per 100g\n", substitute.getName(),
+                substitute.getCalories(), substitute.getProtein(), substitute.getCarbs(), substitute.getFat());
+        }
+    }
+    
+    private static void viewNutritionHistory() {
+        NutritionHistory history = trackingService.getHistory(CONSOLE_USER);
+        LocalDate today = LocalDate.now();
+        System.out.println("\n=== Nutrition History (daily averages) ===");
+        System.out.printf("%-10s %5s %9s %9s %9s %9s %9s\n", "Period", "Days", "Calories", "Protein", "Carbs", "Fat", "Fiber");
+        int[] periods = {7, 30, 90, 365};
+        for (int days : periods) {
+            LocalDate from = today.minusDays(days - 1);
+            int recorded = history.getRecordedDays(from, today);
+            NutritionSummary average = history.getAverage(from, today);
+            System.out.printf("%-10s %5d %9.0f %8.1fg %8.1fg %8.1fg %8.1fg\n", "Last " + days, recorded,
+                average.get(Nutrient.CALORIES), average.get(Nutrient.PROTEIN), average.get(Nutrient.CARBS),
+                average.get(Nutrient.FAT), average.get(Nutrient.FIBER));
+        }
+    }
+    
     private static void getMealRecommendations() {
         if (!userProfile.isProfileComplete()) {
             System.out.println("Please setup your profile first!");
@@ -185,33 +402,75 @@ public class PersonalDietApp {
         double dailyCalories = userProfile.calculateDailyCalories();
         System.out.printf("Based on your daily calorie needs: %.0f calories\n", dailyCalories);
         
-        MealRecommendationEngine.generateRecommendations(dailyCalories, foodDatabase);
+        MealRecommendationEngine.generateRecommendations(dailyCalories, trackingService.getRecommendations(CONSOLE_USER));
     }
     
     private static void viewNutritionSummary() {
         System.out.println("\n=== Nutrition Summary ===");
-        nutritionTracker.displayDetailedNutritionSummary();
+        if (nutritionTracker.isEmpty()) {
+            System.out.println("No food items to analyze.");
+            return;
+        }
+        System.out.print(trackingService.getSummaryReport(CONSOLE_USER, ReportFormat.TEXT));
+        
+        IntakeWindows.Snapshot windows = trackingService.getIntakeWindows(CONSOLE_USER, System.currentTimeMillis());
+        if (windows.getDailyCalories() > 0) {
+            System.out.println("\n=== Meals vs Budget ===");
+            for (MealSlot slot : MealSlot.values()) {
+                double budget = slot.getCalorieTarget(windows.getDailyCalories());
+                double calories = windows.getMealCalories(slot);
+                System.out.printf("%-10s %5.0f / %4.0f cal (%3.0f%%)\n", slot.getDisplayName() + ":", calories, budget,
+                    calories / budget * 100);
+            }
+            System.out.printf("Last 3 hours: %.0f cal, last 24 hours: %.0f cal\n",
+                windows.getRolling3h()[Nutrient.CALORIES.ordinal()], windows.getRolling24h()[Nutrient.CALORIES.ordinal()]);
+        }
+        
+        List<TopUpSuggestion> suggestions = trackingService.analyzeGaps(CONSOLE_USER).getSuggestions();
+        if (!suggestions.isEmpty()) {
+            System.out.println("\n=== Suggestions to Close Nutrient Gaps ===");
+            for (TopUpSuggestion suggestion : suggestions) {
+                StringBuilder closes = new StringBuilder();
+                for (Nutrient nutrient : suggestion.getCloses()) {
+                    closes.append(closes.length() == 0 ? "" : ", ").append(nutrient.getDisplayName());
+                }
+                System.out.printf("• %.0fg %s (%s)\n", suggestion.getGrams(), suggestion.getFood().getName(), closes);
+            }
+        }
+    }
+    
+    // Like Scanner.nextLine(), NoSuchElementException once the input is exhausted
+    private static String readLine() {
+        try {
+            if (!input.nextLine()) {
+                throw new NoSuchElementException("No line found");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return input.line();
     }
     
+    // The first token of a line is the number; the rest of the line is ignored
     private static int getIntInput(String prompt) {
         System.out.print(prompt);
-        while (!scanner.hasNextInt()) {
+        readLine();
+        int value;
+        while ((value = input.nextInt()) == Integer.MIN_VALUE) {
             System.out.print("Please enter a valid number: ");
-            scanner.next();
+            readLine();
         }
-        int value = scanner.nextInt();
-        scanner.nextLine(); // consume newline
         return value;
     }
     
     private static double getDoubleInput(String prompt) {
         System.out.print(prompt);
-        while (!scanner.hasNextDouble()) {
+        readLine();
+        double value;
+        while (Double.isNaN(value = input.nextDouble())) {
             System.out.print("Please enter a valid number: ");
-            scanner.next();
+            readLine();
         }
-        double value = scanner.nextDouble();
-        scanner.nextLine(); // consume newline
         return value;
     }
 }
@@ -242,365 +501,8293 @@ class UserProfile {
     }
     
     public double calculateBMR() {
-        if (gender == 'M') {
-            return 88.362 + (13.397 * weight) + (4.799 * height) - (5.677 * age);
-        } else {
-            return 447.593 + (9.247 * weight) + (3.098 * height) - (4.330 * age);
-        }
+        return calculateBMR(gender, weight, height, age);
     }
     
     public double calculateDailyCalories() {
         double bmr = calculateBMR();
-        double[] multipliers = {0, 1.2, 1.375, 1.55, 1.725, 1.9};
-        return bmr * multipliers[activityLevel];
+        return bmr * ACTIVITY_MULTIPLIERS[activityLevel];
     }
     
     public double calculateBMI() {
+        return calculateBMI(weight, height);
+    }
+    
+    public String getBMICategory() {
+        return BMI_CATEGORIES[bmiCategoryIndex(calculateBMI())];
+    }
+    
+    // Value snapshot of every field the calculations read; any setter that changes a
+    // field changes the fingerprint, so it doubles as a cache key for derived results
+    public Fingerprint getFingerprint() {
+        return new Fingerprint(this);
+    }
+    
+    static final class Fingerprint {
+        private final int age;
+        private final char gender;
+        private final double weight;
+        private final double height;
+        private final int activityLevel;
+        
+        private Fingerprint(UserProfile profile) {
+            age = profile.age;
+            gender = profile.gender;
+            weight = profile.weight;
+            height = profile.height;
+            activityLevel = profile.activityLevel;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Fingerprint)) {
+                return false;
+            }
+            Fingerprint other = (Fingerprint) o;
+            return age == other.age && gender == other.gender && activityLevel == other.activityLevel
+                && Double.compare(weight, other.weight) == 0 && Double.compare(height, other.height) == 0;
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(age, gender, weight, height, activityLevel);
+        }
+    }
+    
+    // Shared with PopulationProfileCalculator so batch and single-profile results match
+    static final double[] ACTIVITY_MULTIPLIERS = {0, 1.2, 1.375, 1.55, 1.725, 1.9};
+    static final String[] BMI_CATEGORIES = {"Underweight", "Normal weight", "Overweight", "Obesity"};
+    
+    // Harris-Benedict (revised)
+    static double calculateBMR(char gender, double weight, double height, int age) {
+        if (gender == 'M') {
+            return 88.362 + (13.397 * weight) + (4.799 * height) - (5.677 * age);
+        } else {
+            return 447.593 + (9.247 * weight) + (3.098 * height) - (4.330 * age);
+        }
+    }
+    
+    static double calculateBMI(double weight, double height) {
         double heightInMeters = height / 100.0;
         return weight / (heightInMeters * heightInMeters);
     }
     
-    public String getBMICategory() {
-        double bmi = calculateBMI();
-        if (bmi < 18.5) return "Underweight";
-        else if (bmi < 25) return "Normal weight";
-        else if (bmi < 30) return "Overweight";
-        else return "Obesity";
+    static int bmiCategoryIndex(double bmi) {
+        if (bmi < 18.5) return 0;
+        else if (bmi < 25) return 1;
+        else if (bmi < 30) return 2;
+        else return 3;
+    }
+}
+
+// Nutrient Enum
+enum Nutrient {
+    CALORIES("Calories", "kcal"), PROTEIN("Protein", "g"), CARBS("Carbohydrates", "g"), FAT("Fat", "g"),
+    FIBER("Fiber", "g"), VITAMIN_C("Vitamin C", "mg"), VITAMIN_D("Vitamin D", "µg"), VITAMIN_E("Vitamin E", "mg"),
+    VITAMIN_B12("Vitamin B12", "µg"), CALCIUM("Calcium", "mg"), IRON("Iron", "mg"), MAGNESIUM("Magnesium", "mg"),
+    POTASSIUM("Potassium", "mg"), ZINC("Zinc", "mg"), FOLATE("Folate", "µg"), OMEGA3("Omega-3", "g");
+    
+    public static final int COUNT = values().length;
+    
+    private final String key;
+    private final String displayName;
+    private final String unit;
+    
+    Nutrient(String displayName, String unit) {
+        this.displayName = displayName;
+        this.unit = unit;
+        // VITAMIN_B12 -> vitaminB12, used as the JSON field name
+        StringBuilder sb = new StringBuilder();
+        boolean upper = false;
+        for (char c : name().toCharArray()) {
+            if (c == '_') {
+                upper = true;
+            } else {
+                sb.append(upper ? c : Character.toLowerCase(c));
+                upper = false;
+            }
+        }
+        key = sb.toString();
+    }
+    
+    public String getKey() { return key; }
+    public String getDisplayName() { return displayName; }
+    public String getUnit() { return unit; }
+    
+    // Case-insensitive lookup by key (vitaminB12) or constant name (VITAMIN_B12); null if unknown
+    public static Nutrient fromKey(String name) {
+        for (Nutrient nutrient : values()) {
+            if (nutrient.key.equalsIgnoreCase(name) || nutrient.name().equalsIgnoreCase(name)) {
+                return nutrient;
+            }
+        }
+        return null;
     }
 }
 
 // Food Class
 class Food {
     private String name;
-    private double calories;
-    private double protein;
-    private double carbs;
-    private double fat;
-    private double fiber;
-    private double vitaminC;
-    private double vitaminD;
-    private double vitaminB12;
-    private double calcium;
-    private double iron;
-    private double magnesium;
-    private double potassium;
-    private double zinc;
-    private double folate;
-    private double omega3;
+    private int id = -1;
+    // Nutrient values per 100g, indexed by Nutrient.ordinal()
+    private final double[] nutrients = new double[Nutrient.COUNT];
+    // Set once the food is part of a published catalog snapshot
+    private boolean frozen;
     
     public Food(String name, double calories, double protein, double carbs, double fat) {
         this.name = name;
-        this.calories = calories;
-        this.protein = protein;
-        this.carbs = carbs;
-        this.fat = fat;
+        nutrients[Nutrient.CALORIES.ordinal()] = calories;
+        nutrients[Nutrient.PROTEIN.ordinal()] = protein;
+        nutrients[Nutrient.CARBS.ordinal()] = carbs;
+        nutrients[Nutrient.FAT.ordinal()] = fat;
     }
     
     // Builder pattern for setting micronutrients
-    public Food setFiber(double fiber) { this.fiber = fiber; return this; }
-    public Food setVitaminC(double vitaminC) { this.vitaminC = vitaminC; return this; }
-    public Food setVitaminD(double vitaminD) { this.vitaminD = vitaminD; return this; }
-    public Food setVitaminB12(double vitaminB12) { this.vitaminB12 = vitaminB12; return this; }
-    public Food setCalcium(double calcium) { this.calcium = calcium; return this; }
-    public Food setIron(double iron) { this.iron = iron; return this; }
-    public Food setMagnesium(double magnesium) { this.magnesium = magnesium; return this; }
-    public Food setPotassium(double potassium) { this.potassium = potassium; return this; }
-    public Food setZinc(double zinc) { this.zinc = zinc; return this; }
-    public Food setFolate(double folate) { this.folate = folate; return this; }
-    public Food setOmega3(double omega3) { this.omega3 = omega3; return this; }
+    public Food setNutrient(Nutrient nutrient, double value) {
+        checkNotFrozen();
+        nutrients[nutrient.ordinal()] = value;
+        return this;
+    }
+    public Food setFiber(double fiber) { return setNutrient(Nutrient.FIBER, fiber); }
+    public Food setVitaminC(double vitaminC) { return setNutrient(Nutrient.VITAMIN_C, vitaminC); }
+    public Food setVitaminD(double vitaminD) { return setNutrient(Nutrient.VITAMIN_D, vitaminD); }
+    public Food setVitaminE(double vitaminE) { return setNutrient(Nutrient.VITAMIN_E, vitaminE); }
+    public Food setVitaminB12(double vitaminB12) { return setNutrient(Nutrient.VITAMIN_B12, vitaminB12); }
+    public Food setCalcium(double calcium) { return setNutrient(Nutrient.CALCIUM, calcium); }
+    public Food setIron(double iron) { return setNutrient(Nutrient.IRON, iron); }
+    public Food setMagnesium(double magnesium) { return setNutrient(Nutrient.MAGNESIUM, magnesium); }
+    public Food setPotassium(double potassium) { return setNutrient(Nutrient.POTASSIUM, potassium); }
+    public Food setZinc(double zinc) { return setNutrient(Nutrient.ZINC, zinc); }
+    public Food setFolate(double folate) { return setNutrient(Nutrient.FOLATE, folate); }
+    public Food setOmega3(double omega3) { return setNutrient(Nutrient.OMEGA3, omega3); }
+    
+    // Id is assigned by FoodDatabase when the food is registered
+    void setId(int id) {
+        checkNotFrozen();
+        this.id = id;
+    }
+    
+    void freeze() {
+        frozen = true;
+    }
+    
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException(name + " is in a published catalog; change a copy and submit a FoodCatalogDelta");
+        }
+    }
+    
+    // Unfrozen copy with the same id
+    public Food copy() {
+        Food copy = new Food(name, 0, 0, 0, 0);
+        System.arraycopy(nutrients, 0, copy.nutrients, 0, Nutrient.COUNT);
+        copy.id = id;
+        return copy;
+    }
+    
+    public Food withNutrient(Nutrient nutrient, double value) {
+        return copy().setNutrient(nutrient, value);
+    }
     
     // Getters
     public String getName() { return name; }
-    public double getCalories() { return calories; }
-    public double getProtein() { return protein; }
-    public double getCarbs() { return carbs; }
-    public double getFat() { return fat; }
-    public double getFiber() { return fiber; }
-    public double getVitaminC() { return vitaminC; }
-    public double getVitaminD() { return vitaminD; }
-    public double getVitaminB12() { return vitaminB12; }
-    public double getCalcium() { return calcium; }
-    public double getIron() { return iron; }
-    public double getMagnesium() { return magnesium; }
-    public double getPotassium() { return potassium; }
-    public double getZinc() { return zinc; }
-    public double getFolate() { return folate; }
-    public double getOmega3() { return omega3; }
+    public int getId() { return id; }
+    public double getNutrient(Nutrient nutrient) { return nutrients[nutrient.ordinal()]; }
+    double[] getNutrientValues() { return nutrients; }
+    public double getCalories() { return getNutrient(Nutrient.CALORIES); }
+    public double getProtein() { return getNutrient(Nutrient.PROTEIN); }
+    public double getCarbs() { return getNutrient(Nutrient.CARBS); }
+    public double getFat() { return getNutrient(Nutrient.FAT); }
+    public double getFiber() { return getNutrient(Nutrient.FIBER); }
+    public double getVitaminC() { return getNutrient(Nutrient.VITAMIN_C); }
+    public double getVitaminD() { return getNutrient(Nutrient.VITAMIN_D); }
+    public double getVitaminE() { return getNutrient(Nutrient.VITAMIN_E); }
+    public double getVitaminB12() { return getNutrient(Nutrient.VITAMIN_B12); }
+    public double getCalcium() { return getNutrient(Nutrient.CALCIUM); }
+    public double getIron() { return getNutrient(Nutrient.IRON); }
+    public double getMagnesium() { return getNutrient(Nutrient.MAGNESIUM); }
+    public double getPotassium() { return getNutrient(Nutrient.POTASSIUM); }
+    public double getZinc() { return getNutrient(Nutrient.ZINC); }
+    public double getFolate() { return getNutrient(Nutrient.FOLATE); }
+    public double getOmega3() { return getNutrient(Nutrient.OMEGA3); }
+}
+
+// Columnar Nutrient Store
+class NutrientTable {
+    // columns[nutrient][foodId] - one contiguous array per nutrient. Growing builds a new set of
+    // columns and publishes it through this volatile field once the new values are in, so
+    // readers that load it once (a snapshot's mapped records are set() lazily, under the
+    // snapshot's lock, while other threads read) never see a grown array before its contents.
+    private volatile double[][] columns;
+    private int size;
+    
+    public NutrientTable(int initialCapacity) {
+        columns = new double[Nutrient.COUNT][Math.max(initialCapacity, 16)];
+    }
+    
+    public int add(double[] values) {
+        int id = size;
+        set(id, values);
+        return id;
+    }
+    
+    // Writes the values for a specific id, growing the columns as needed
+    public void set(int foodId, double[] values) {
+        double[][] target = columns;
+        if (foodId >= target[0].length) {
+            int newCapacity = Math.max(foodId + 1, target[0].length * 2);
+            double[][] grown = new double[target.length][];
+            for (int n = 0; n < target.length; n++) {
+                grown[n] = Arrays.copyOf(target[n], newCapacity);
+            }
+            target = grown;
+        }
+        for (int n = 0; n < target.length; n++) {
+            target[n][foodId] = values[n];
+        }
+        size = Math.max(size, foodId + 1);
+        columns = target;
+    }
+    
+    public double get(int foodId, Nutrient nutrient) {
+        return columns[nutrient.ordinal()][foodId];
+    }
+    
+    public NutrientTable copy() {
+        double[][] source = columns;
+        NutrientTable copy = new NutrientTable(16);
+        double[][] copied = new double[source.length][];
+        for (int n = 0; n < source.length; n++) {
+            copied[n] = source[n].clone();
+        }
+        copy.columns = copied;
+        copy.size = size;
+        return copy;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    // Adds sum(column[foodIds[i]] * quantities[i]) * scale to totals, one nutrient column at a time
+    public void sumWeighted(int[] foodIds, float[] quantities, int count, double scale, double[] totals) {
+        double[][] columns = this.columns;
+        for (int n = 0; n < columns.length; n++) {
+            double[] column = columns[n];
+            double sum = 0;
+            for (int i = 0; i < count; i++) {
+                sum += column[foodIds[i]] * quantities[i];
+            }
+            totals[n] += sum * scale;
+        }
+    }
 }
 
 // Food Database Class
+//
+// Entry point for catalog reads. The catalog itself lives in immutable FoodCatalogSnapshots;
+// reads go to whichever snapshot is current, and update() builds the next one from a delta
+// on a background thread and swaps it in atomically, so corrections never pause traffic.
 class FoodDatabase {
-    private Map<String, Food> foods;
+    private final AtomicReference<FoodCatalogSnapshot> current;
+    private final List<Consumer<FoodCatalogSnapshot>> listeners = new CopyOnWriteArrayList<>();
+    // Single thread, so deltas apply in submission order against the latest snapshot
+    private ExecutorService updater;
     
     public FoodDatabase() {
-        initializeFoods();
+        current = new AtomicReference<>(FoodCatalogSnapshot.EMPTY.apply(initialFoods()));
     }
     
-    private void initializeFoods() {
-        foods = new HashMap<>();
-        
+    // Serves foods from a binary catalog written by FoodCatalogConverter; Food objects
+    // are only created the first time each record is looked up
+    public FoodDatabase(Path catalogFile) throws IOException {
+        current = new AtomicReference<>(FoodCatalogSnapshot.mapped(MappedFoodCatalog.open(catalogFile)));
+    }
+    
+    private static FoodCatalogDelta initialFoods() {
         // Initialize food database with nutritional information per 100g
-        foods.put("apple", new Food("Apple", 52, 0.3, 14, 0.2)
-            .setFiber(2.4).setVitaminC(4.6).setPotassium(107));
-            
-        foods.put("banana", new Food("Banana", 89, 1.1, 23, 0.3)
-            .setFiber(2.6).setVitaminC(8.7).setPotassium(358).setMagnesium(27));
-            
-        foods.put("chicken breast", new Food("Chicken Breast", 165, 31, 0, 3.6)
-            .setIron(0.7).setZinc(1.0).setVitaminB12(0.3));
-            
-        foods.put("rice", new Food("Rice", 130, 2.7, 28, 0.3)
-            .setFiber(0.4).setMagnesium(25).setIron(0.8));
-            
-        foods.put("broccoli", new Food("Broccoli", 34, 2.8, 7, 0.4)
-            .setFiber(2.6).setVitaminC(89.2).setFolate(63).setIron(0.7));
-            
-        foods.put("salmon", new Food("Salmon", 208, 22, 0, 12)
-            .setOmega3(1.8).setVitaminD(11).setVitaminB12(3.2));
-            
-        foods.put("spinach", new Food("Spinach", 23, 2.9, 3.6, 0.4)
-            .setFiber(2.2).setIron(2.7).setFolate(194).setMagnesium(79));
-            
-        foods.put("oats", new Food("Oats", 389, 16.9, 66, 6.9)
-            .setFiber(10.6).setMagnesium(177).setZinc(4).setIron(4.7));
-            
-        foods.put("egg", new Food("Egg", 155, 13, 1.1, 11)
-            .setVitaminB12(0.6).setVitaminD(2).setZinc(1.3));
-            
-        foods.put("milk", new Food("Milk", 42, 3.4, 5, 1)
-            .setCalcium(113).setVitaminD(1.3).setVitaminB12(0.4));
-            
-        foods.put("almonds", new Food("Almonds", 579, 21.2, 21.6, 49.9)
-            .setFiber(12.5).setMagnesium(270).setVitaminE(25.6).setCalcium(269));
-            
-        foods.put("sweet potato", new Food("Sweet Potato", 86, 1.6, 20.1, 0.1)
-            .setFiber(3).setVitaminC(2.4).setPotassium(337).setMagnesium(25));
+        return new FoodCatalogDelta()
+            .put(new Food("Apple", 52, 0.3, 14, 0.2)
+                .setFiber(2.4).setVitaminC(4.6).setPotassium(107))
+            .put(new Food("Banana", 89, 1.1, 23, 0.3)
+                .setFiber(2.6).setVitaminC(8.7).setPotassium(358).setMagnesium(27))
+            .put(new Food("Chicken Breast", 165, 31, 0, 3.6)
+                .setIron(0.7).setZinc(1.0).setVitaminB12(0.3))
+            .put(new Food("Rice", 130, 2.7, 28, 0.3)
+                .setFiber(0.4).setMagnesium(25).setIron(0.8))
+            .put(new Food("Broccoli", 34, 2.8, 7, 0.4)
+                .setFiber(2.6).setVitaminC(89.2).setFolate(63).setIron(0.7))
+            .put(new Food("Salmon", 208, 22, 0, 12)
+                .setOmega3(1.8).setVitaminD(11).setVitaminB12(3.2))
+            .put(new Food("Spinach", 23, 2.9, 3.6, 0.4)
+                .setFiber(2.2).setIron(2.7).setFolate(194).setMagnesium(79))
+            .put(new Food("Oats", 389, 16.9, 66, 6.9)
+                .setFiber(10.6).setMagnesium(177).setZinc(4).setIron(4.7))
+            .put(new Food("Egg", 155, 13, 1.1, 11)
+                .setVitaminB12(0.6).setVitaminD(2).setZinc(1.3))
+            .put(new Food("Milk", 42, 3.4, 5, 1)
+                .setCalcium(113).setVitaminD(1.3).setVitaminB12(0.4))
+            .put(new Food("Almonds", 579, 21.2, 21.6, 49.9)
+                .setFiber(12.5).setMagnesium(270).setVitaminE(25.6).setCalcium(269))
+            .put(new Food("Sweet Potato", 86, 1.6, 20.1, 0.1)
+                .setFiber(3).setVitaminC(2.4).setPotassium(337).setMagnesium(25));
+    }
+    
+    // The current version; hold on to it to make several reads against one version
+    public FoodCatalogSnapshot getSnapshot() {
+        return current.get();
+    }
+    
+    public long getVersion() {
+        return current.get().getVersion();
+    }
+    
+    // Applies the delta to the latest snapshot off the caller's thread. The new snapshot is
+    // published only once it is complete, with the indexes the previous one had already built.
+    public CompletableFuture<FoodCatalogSnapshot> update(FoodCatalogDelta delta) {
+        return CompletableFuture.supplyAsync(() -> {
+            FoodCatalogSnapshot previous = current.get();
+            FoodCatalogSnapshot next = previous.apply(delta);
+            next.warmUp(previous);
+            current.set(next);
+            for (Consumer<FoodCatalogSnapshot> listener : listeners) {
+                listener.accept(next);
+            }
+            return next;
+        }, getUpdater());
+    }
+    
+    private synchronized ExecutorService getUpdater() {
+        if (updater == null) {
+            updater = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "food-catalog-updater");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return updater;
+    }
+    
+    // Called on the updater thread after each snapshot is published
+    public void addSnapshotListener(Consumer<FoodCatalogSnapshot> listener) {
+        listeners.add(listener);
     }
     
     public Food getFood(String name) {
-        return foods.get(name.toLowerCase());
+        FoodLookupEvent event = new FoodLookupEvent();
+        event.begin();
+        long start = Metrics.FOOD_LOOKUP.start();
+        Food food = current.get().getFood(name);
+        Metrics.FOOD_LOOKUP.stop(start);
+        // Misses are rare enough to count every one
+        if (food == null && Metrics.isEnabled()) {
+            Metrics.FOOD_LOOKUP_MISSES.increment();
+        }
+        if (event.shouldCommit()) {
+            event.query = name;
+            event.found = food != null;
+            event.commit();
+        }
+        return food;
+    }
+    
+    public Food getFoodById(int id) {
+        return current.get().getFoodById(id);
+    }
+    
+    public int size() {
+        return current.get().size();
+    }
+    
+    // Null if there is no recipe by that name
+    public Recipe getRecipe(String name) {
+        return current.get().getRecipe(name);
+    }
+    
+    public NutrientTable getNutrientTable() {
+        return current.get().getNutrientTable();
+    }
+    
+    // Autocomplete: foods whose name starts with the given prefix, in name order
+    public List<Food> searchByPrefix(String prefix, int limit) {
+        return current.get().searchByPrefix(prefix, limit);
+    }
+    
+    // Typo-tolerant match: closest names by edit distance
+    public List<Food> searchSimilar(String query, int limit) {
+        return current.get().searchSimilar(query, limit);
+    }
+    
+    // Nearest foods by (weighted, normalized) nutrient profile that satisfy the query's bounds
+    public List<Food> findSubstitutes(Food target, int k, SubstitutionQuery query) {
+        return current.get().findSubstitutes(target, k, query);
+    }
+    
+    FoodSubstitutionIndex getSubstitutionIndex() {
+        return current.get().getSubstitutionIndex();
+    }
+    
+    NutrientRankings getNutrientRankings() {
+        return current.get().getNutrientRankings();
+    }
+    
+    // Built once per catalog version and shared by everyone planning against it
+    MealPlanSolver getMealPlanSolver() {
+        return current.get().getMealPlanSolver();
+    }
+    
+    float[] getNutrientVectors() {
+        return current.get().getNutrientVectors();
     }
     
     public void displayAvailableFoods() {
-        System.out.println("\nAvailable Foods:");
-        System.out.println("-".repeat(40));
-        for (String foodName : foods.keySet()) {
-            Food food = foods.get(foodName);
-            System.out.printf("%-15s - %3.0f cal/100g\n", 
-                food.getName(), food.getCalories());
-        }
+        ReportRenderer.console().renderFoodList(getAllFoods()).writeToConsole();
     }
     
     public Set<String> getFoodNames() {
-        return foods.keySet();
+        return current.get().getFoodNames();
     }
     
     public Collection<Food> getAllFoods() {
-        return foods.values();
+        return current.get().getAllFoods();
     }
 }
 
-// Daily Nutrition Tracker Class
-class DailyNutritionTracker {
-    private List<FoodEntry> dailyIntake;
+// Food Catalog Snapshot
+//
+// One immutable version of the catalog. Foods are frozen before the snapshot is published
+// and the derived indexes are built lazily per snapshot, so a reader holding it sees one
+// consistent version without locking. A delta produces the next snapshot by copying the id
+// and name tables and sharing every Food it does not touch. Ids never change between
+// versions, so meal log and tracker entries resolve in any later snapshot; an old snapshot
+// is garbage once no tracker or in-flight request references it.
+//
+// Recipes are stored as foods whose values are computed when a delta is applied. The snapshot
+// keeps each recipe's resolved ingredient ids and the reverse edges, so a delta recomputes
+// only the recipes downstream of what it changed, ingredients before the dishes using them.
+class FoodCatalogSnapshot {
+    static final FoodCatalogSnapshot EMPTY = new FoodCatalogSnapshot(0, new HashMap<>(),
+        new AtomicReferenceArray<>(0), new NutrientTable(16), null, Collections.emptyMap(), Collections.emptyMap());
     
-    public DailyNutritionTracker() {
-        dailyIntake = new ArrayList<>();
+    static final class RecipeNode {
+        final Recipe recipe;
+        final int[] ingredientIds;
+        
+        RecipeNode(Recipe recipe, int[] ingredientIds) {
+            this.recipe = recipe;
+            this.ingredientIds = ingredientIds;
+        }
     }
     
-    public void addFood(Food food, double quantity) {
-        dailyIntake.add(new FoodEntry(food, quantity));
+    private final long version;
+    // Lower-cased name -> food: every food, or with a mapped catalog only the ones deltas
+    // added or corrected
+    private final Map<String, Food> foods;
+    private final AtomicReferenceArray<Food> foodsById;
+    private final NutrientTable nutrientTable;
+    // Set when the base foods come from a memory-mapped catalog file; its records are
+    // materialized into foodsById the first time each id is looked up
+    private final MappedFoodCatalog catalog;
+    // Recipe id -> definition, and ingredient id -> ids of the recipes that use it directly
+    private final Map<Integer, RecipeNode> recipes;
+    private final Map<Integer, int[]> dependents;
+    private volatile FoodSearchIndex searchIndex;
+    private volatile FoodSubstitutionIndex substitutionIndex;
+    private volatile NutrientRankings nutrientRankings;
+    private volatile float[] nutrientVectors;
+    private volatile MealPlanSolver mealPlanSolver;
+    
+    private FoodCatalogSnapshot(long version, Map<String, Food> foods, AtomicReferenceArray<Food> foodsById,
+                                NutrientTable nutrientTable, MappedFoodCatalog catalog,
+                                Map<Integer, RecipeNode> recipes, Map<Integer, int[]> dependents) {
+        this.version = version;
+        this.foods = foods;
+        this.foodsById = foodsById;
+        this.nutrientTable = nutrientTable;
+        this.catalog = catalog;
+        this.recipes = recipes;
+        this.dependents = dependents;
     }
     
-    public void clearDailyIntake() {
-        dailyIntake.clear();
+    static FoodCatalogSnapshot mapped(MappedFoodCatalog catalog) {
+        return new FoodCatalogSnapshot(1, new HashMap<>(), new AtomicReferenceArray<>(catalog.size()),
+            new NutrientTable(16), catalog, Collections.emptyMap(), Collections.emptyMap());
     }
     
-    public void displayDailyIntake() {
-        if (dailyIntake.isEmpty()) {
-            System.out.println("No food items added today.");
-            return;
+    // Builds the next version; this snapshot is left untouched
+    FoodCatalogSnapshot apply(FoodCatalogDelta delta) {
+        Map<String, Food> nextFoods = new LinkedHashMap<>(foods);
+        Map<Integer, Food> changed = new LinkedHashMap<>();
+        // Copied only when the delta adds, redefines or replaces a recipe
+        Map<Integer, RecipeNode> nextRecipes = recipes;
+        Set<Integer> redefined = new HashSet<>();
+        int nextSize = size();
+        for (FoodCatalogDelta.Change change : delta.getChanges()) {
+            String key = change.name.toLowerCase(Locale.ROOT);
+            Food existing = find(key, nextFoods);
+            Food food;
+            if (change.food != null || change.recipe != null) {
+                // A recipe's values are filled in once its ingredients are final
+                food = change.food != null ? change.food.copy() : new Food(change.recipe.getName(), 0, 0, 0, 0);
+                food.setId(existing != null ? existing.getId() : nextSize++);
+                if (change.recipe != null || nextRecipes.containsKey(food.getId())) {
+                    if (nextRecipes == recipes) {
+                        nextRecipes = new HashMap<>(recipes);
+                    }
+                    if (change.recipe != null) {
+                        nextRecipes.put(food.getId(), resolve(change.recipe, nextFoods));
+                    } else {
+                        nextRecipes.remove(food.getId());
+                    }
+                    redefined.add(food.getId());
+                }
+            } else if (existing == null) {
+                throw new IllegalArgumentException("Unknown food: " + change.name);
+            } else if (nextRecipes.containsKey(existing.getId())) {
+                throw new IllegalArgumentException(existing.getName() + " is a recipe; change its ingredients instead");
+            } else {
+                food = existing.withNutrient(change.nutrient, change.value);
+            }
+            nextFoods.put(key, food);
+            changed.put(food.getId(), food);
         }
+        Map<Integer, int[]> nextDependents = redefined.isEmpty() ? dependents : relink(redefined, nextRecipes);
         
-        System.out.println("\n=== Today's Food Intake ===");
-        System.out.println("-".repeat(50));
-        
-        double totalCalories = 0;
-        for (FoodEntry entry : dailyIntake) {
-            double calories = (entry.getFood().getCalories() * entry.getQuantity()) / 100;
-            totalCalories += calories;
-            System.out.printf("%-15s %6.0fg - %4.0f cal\n", 
-                entry.getFood().getName(), entry.getQuantity(), calories);
+        AtomicReferenceArray<Food> nextById = new AtomicReferenceArray<>(nextSize);
+        for (int id = 0; id < size(); id++) {
+            nextById.set(id, foodsById.get(id));
         }
-        
-        System.out.println("-".repeat(50));
-        System.out.printf("Total Calories: %.0f\n", totalCalories);
+        NutrientTable nextTable = nutrientTable.copy();
+        for (Food food : changed.values()) {
+            if (!nextRecipes.containsKey(food.getId())) {
+                food.freeze();
+                nextById.set(food.getId(), food);
+                nextTable.set(food.getId(), food.getNutrientValues());
+            }
+        }
+        FoodCatalogSnapshot next = new FoodCatalogSnapshot(version + 1, nextFoods, nextById, nextTable, catalog,
+            nextRecipes, nextDependents);
+        for (int id : next.recomputeOrder(changed.keySet())) {
+            Food dish = next.cook(next.recipes.get(id));
+            dish.setId(id);
+            dish.freeze();
+            nextFoods.put(dish.getName().toLowerCase(Locale.ROOT), dish);
+            nextById.set(id, dish);
+            nextTable.set(id, dish.getNutrientValues());
+            changed.put(id, dish);
+        }
+        float[] vectors = nutrientVectors;
+        if (vectors != null) {
+            // Patch a copy rather than re-reading every record
+            float[] nextVectors = Arrays.copyOf(vectors, nextSize * Nutrient.COUNT);
+            for (Food food : changed.values()) {
+                double[] values = food.getNutrientValues();
+                for (int n = 0; n < Nutrient.COUNT; n++) {
+                    nextVectors[food.getId() * Nutrient.COUNT + n] = (float) values[n];
+                }
+            }
+            next.nutrientVectors = nextVectors;
+        }
+        return next;
     }
     
-    public void displayDetailedNutritionSummary() {
-        if (dailyIntake.isEmpty()) {
-            System.out.println("No food items to analyze.");
+    private Food find(String key, Map<String, Food> foods) {
+        Food food = foods.get(key);
+        if (food == null && catalog != null) {
+            int id = catalog.find(key);
+            food = id < 0 ? null : getFoodById(id);
+        }
+        return food;
+    }
+    
+    private RecipeNode resolve(Recipe recipe, Map<String, Food> foods) {
+        int[] ids = new int[recipe.getIngredientCount()];
+        for (int i = 0; i < ids.length; i++) {
+            Food ingredient = find(recipe.getIngredient(i).toLowerCase(Locale.ROOT), foods);
+            if (ingredient == null) {
+                throw new IllegalArgumentException("Unknown ingredient in " + recipe.getName() + ": " + recipe.getIngredient(i));
+            }
+            ids[i] = ingredient.getId();
+        }
+        recipe.freeze();
+        return new RecipeNode(recipe, ids);
+    }
+    
+    // Reverse edges for the next version: only the redefined recipes' old and new ingredients change
+    private Map<Integer, int[]> relink(Set<Integer> redefined, Map<Integer, RecipeNode> nextRecipes) {
+        Map<Integer, int[]> edges = new HashMap<>(dependents);
+        for (int id : redefined) {
+            RecipeNode before = recipes.get(id);
+            if (before != null) {
+                for (int ingredient : before.ingredientIds) {
+                    int[] users = edges.get(ingredient);
+                    if (users != null) {
+                        users = Arrays.stream(users).filter(user -> user != id).toArray();
+                        if (users.length == 0) {
+                            edges.remove(ingredient);
+                        } else {
+                            edges.put(ingredient, users);
+                        }
+                    }
+                }
+            }
+            RecipeNode after = nextRecipes.get(id);
+            if (after != null) {
+                for (int ingredient : after.ingredientIds) {
+                    int[] users = edges.getOrDefault(ingredient, new int[0]);
+                    if (Arrays.stream(users).noneMatch(user -> user == id)) {
+                        users = Arrays.copyOf(users, users.length + 1);
+                        users[users.length - 1] = id;
+                        edges.put(ingredient, users);
+                    }
+                }
+            }
+        }
+        return edges;
+    }
+    
+    // The recipes that are changed or use a changed food, directly or through other recipes,
+    // ordered so every recipe comes after the recipes it contains (depth-first post-order)
+    private List<Integer> recomputeOrder(Set<Integer> changed) {
+        Set<Integer> affected = new HashSet<>();
+        Deque<Integer> pending = new ArrayDeque<>(changed);
+        while (!pending.isEmpty()) {
+            int id = pending.pop();
+            if (recipes.containsKey(id) && !affected.add(id)) {
+                continue;
+            }
+            for (int user : dependents.getOrDefault(id, new int[0])) {
+                if (!affected.contains(user)) {
+                    pending.push(user);
+                }
+            }
+        }
+        List<Integer> order = new ArrayList<>(affected.size());
+        Set<Integer> done = new HashSet<>();
+        Set<Integer> inProgress = new HashSet<>();
+        for (int id : affected) {
+            visit(id, affected, done, inProgress, order);
+        }
+        return order;
+    }
+    
+    private void visit(int id, Set<Integer> affected, Set<Integer> done, Set<Integer> inProgress, List<Integer> order) {
+        if (done.contains(id)) {
             return;
         }
-        
-        NutritionSummary summary = calculateNutritionSummary();
-        
-        System.out.println("=== Detailed Nutrition Summary ===");
-        System.out.println("-".repeat(40));
-        
-        // Macronutrients
-        System.out.println("MACRONUTRIENTS:");
-        System.out.printf("Calories: %.0f kcal\n", summary.totalCalories);
-        System.out.printf("Protein: %.1f g\n", summary.totalProtein);
-        System.out.printf("Carbohydrates: %.1f g\n", summary.totalCarbs);
-        System.out.printf("Fat: %.1f g\n", summary.totalFat);
-        System.out.printf("Fiber: %.1f g\n", summary.totalFiber);
-        
-        System.out.println("\nMICRONUTRIENTS:");
-        // Vitamins
-        System.out.println("Vitamins:");
-        System.out.printf("  Vitamin C: %.1f mg\n", summary.totalVitaminC);
-        System.out.printf("  Vitamin D: %.1f µg\n", summary.totalVitaminD);
-        System.out.printf("  Vitamin B12: %.1f µg\n", summary.totalVitaminB12);
-        System.out.printf("  Folate: %.1f µg\n", summary.totalFolate);
-        
-        // Minerals
-        System.out.println("Minerals:");
-        System.out.printf("  Calcium: %.1f mg\n", summary.totalCalcium);
-        System.out.printf("  Iron: %.1f mg\n", summary.totalIron);
-        System.out.printf("  Magnesium: %.1f mg\n", summary.totalMagnesium);
-        System.out.printf("  Potassium: %.1f mg\n", summary.totalPotassium);
-        System.out.printf("  Zinc: %.1f mg\n", summary.totalZinc);
-        
-        // Other nutrients
-        System.out.println("Other:");
-        System.out.printf("  Omega-3: %.1f g\n", summary.totalOmega3);
-        
-        // Daily value percentages (approximate)
-        System.out.println("\n=== Daily Value Percentages (Approximate) ===");
-        System.out.printf("Vitamin C: %.0f%% (RDA: 90mg men, 75mg women)\n", 
-            (summary.totalVitaminC / 82.5) * 100);
-        System.out.printf("Calcium: %.0f%% (RDA: 1000mg)\n", 
-            (summary.totalCalcium / 1000) * 100);
-        System.out.printf("Iron: %.0f%% (RDA: 18mg women, 8mg men)\n", 
-            (summary.totalIron / 13) * 100);
-        System.out.printf"Magnesium: %.0f%% (RDA: 400mg men, 310mg women)\n", 
-            (summary.totalMagnesium / 355) * 100);
-    }
-    
-    private NutritionSummary calculateNutritionSummary() {
-        NutritionSummary summary = new NutritionSummary();
-        
-        for (FoodEntry entry : dailyIntake) {
-            Food food = entry.getFood();
-            double multiplier = entry.getQuantity() / 100.0;
-            
-            summary.totalCalories += food.getCalories() * multiplier;
-            summary.totalProtein += food.getProtein() * multiplier;
-            summary.totalCarbs += food.getCarbs() * multiplier;
-            summary.totalFat += food.getFat() * multiplier;
-            summary.totalFiber += food.getFiber() * multiplier;
-            summary.totalVitaminC += food.getVitaminC() * multiplier;
-            summary.totalVitaminD += food.getVitaminD() * multiplier;
-            summary.totalVitaminB12 += food.getVitaminB12() * multiplier;
-            summary.totalCalcium += food.getCalcium() * multiplier;
-            summary.totalIron += food.getIron() * multiplier;
-            summary.totalMagnesium += food.getMagnesium() * multiplier;
-            summary.totalPotassium += food.getPotassium() * multiplier;
-            summary.totalZinc += food.getZinc() * multiplier;
-            summary.totalFolate += food.getFolate() * multiplier;
-            summary.totalOmega3 += food.getOmega3() * multiplier;
+        if (!inProgress.add(id)) {
+            throw new IllegalArgumentException("Recipe cycle through " + recipes.get(id).recipe.getName());
         }
-        
-        return summary;
+        for (int ingredient : recipes.get(id).ingredientIds) {
+            if (affected.contains(ingredient)) {
+                visit(ingredient, affected, done, inProgress, order);
+            }
+        }
+        inProgress.remove(id);
+        done.add(id);
+        order.add(id);
     }
-}
-
-// Food Entry Class
-class FoodEntry {
-    private Food food;
-    private double quantity;
     
-    public FoodEntry(Food food, double quantity) {
-        this.food = food;
-        this.quantity = quantity;
+    // Per-100g values of the cooked dish: every ingredient's contribution over the cooked weight
+    private Food cook(RecipeNode node) {
+        Recipe recipe = node.recipe;
+        double[] totals = new double[Nutrient.COUNT];
+        for (int i = 0; i < node.ingredientIds.length; i++) {
+            double[] values = getFoodById(node.ingredientIds[i]).getNutrientValues();
+            double grams = recipe.getIngredientGrams(i);
+            for (int n = 0; n < totals.length; n++) {
+                totals[n] += values[n] * grams;
+            }
+        }
+        double cookedGrams = recipe.getCookedGrams();
+        Food food = new Food(recipe.getName(), 0, 0, 0, 0);
+        for (Nutrient nutrient : Nutrient.values()) {
+            food.setNutrient(nutrient, totals[nutrient.ordinal()] / cookedGrams);
+        }
+        return food;
     }
     
-    public Food getFood() { return food; }
-    public double getQuantity() { return quantity; }
-}
-
-// Nutrition Summary Class
-class NutritionSummary {
-    public double totalCalories = 0;
-    public double totalProtein = 0;
-    public double totalCarbs = 0;
-    public double totalFat = 0;
-    public double totalFiber = 0;
-    public double totalVitaminC = 0;
-    public double totalVitaminD = 0;
-    public double totalVitaminB12 = 0;
-    public double totalCalcium = 0;
-    public double totalIron = 0;
-    public double totalMagnesium = 0;
-    public double totalPotassium = 0;
-    public double totalZinc = 0;
-    public double totalFolate = 0;
-    public double totalOmega3 = 0;
-}
+    public boolean isRecipe(int foodId) {
+        return recipes.containsKey(foodId);
+    }
+    
+    // Null if the food is not a recipe
+    public Recipe getRecipe(String name) {
+        Food food = getFood(name);
+        RecipeNode node = food == null ? null : recipes.get(food.getId());
+        return node == null ? null : node.recipe;
+    }
+    
+    // Builds the indexes that were in use on the previous version so the first requests
+    // after a swap don't pay for them
+    void warmUp(FoodCatalogSnapshot previous) {
+        if (previous.searchIndex != null) {
+            getSearchIndex();
+        }
+        if (previous.substitutionIndex != null) {
+            getSubstitutionIndex();
+        }
+        if (previous.nutrientRankings != null) {
+            getNutrientRankings();
+        }
+    }
+    
+    public long getVersion() {
+        return version;
+    }
+    
+    public int size() {
+        return foodsById.length();
+    }
+    
+    public NutrientTable getNutrientTable() {
+        return nutrientTable;
+    }
+    
+    public Food getFood(String name) {
+        String key = name.toLowerCase(Locale.ROOT);
+        Food food = foods.get(key);
+        if (food == null && catalog != null) {
+            int id = catalog.find(key);
+            food = id < 0 ? null : getFoodById(id);
+        }
+        return food;
+    }
+    
+    public Food getFoodById(int id) {
+        Food food = foodsById.get(id);
+        return food != null ? food : materialize(id);
+    }
+    
+    private Food materialize(int id) {
+        synchronized (this) {
+            Food food = foodsById.get(id);
+            if (food == null) {
+                food = catalog.readFood(id);
+                food.setId(id);
+                food.freeze();
+                nutrientTable.set(id, food.getNutrientValues());
+                foodsById.set(id, food);
+            }
+            return food;
+        }
+    }
+    
+    // Lower-cased name, without materializing catalog records
+    private String getKey(int id) {
+        Food food = foodsById.get(id);
+        return food != null ? food.getName().toLowerCase(Locale.ROOT) : catalog.getName(id).toLowerCase(Locale.ROOT);
+    }
+    
+    private FoodSearchIndex getSearchIndex() {
+        if (searchIndex == null) {
+            synchronized (this) {
+                if (searchIndex == null) {
+                    String[] names = new String[size()];
+                    for (int id = 0; id < names.length; id++) {
+                        names[id] = getKey(id);
+                    }
+                    searchIndex = new FoodSearchIndex(names);
+                }
+            }
+        }
+        return searchIndex;
+    }
+    
+    public List<Food> searchByPrefix(String prefix, int limit) {
+        return toFoods(getSearchIndex().prefixSearch(prefix.toLowerCase(Locale.ROOT), limit));
+    }
+    
+    public List<Food> searchSimilar(String query, int limit) {
+        return toFoods(getSearchIndex().fuzzySearch(query.toLowerCase(Locale.ROOT), limit));
+    }
+    
+    public List<Food> findSubstitutes(Food target, int k, SubstitutionQuery query) {
+        List<Food> result = new ArrayList<>(k);
+        for (FoodSubstitutionIndex.Match match : getSubstitutionIndex().search(target.getNutrientValues(), target.getId(), k, query)) {
+            result.add(getFoodById(match.foodId));
+        }
+        return result;
+    }
+    
+    FoodSubstitutionIndex getSubstitutionIndex() {
+        if (substitutionIndex == null) {
+            synchronized (this) {
+                if (substitutionIndex == null) {
+                    substitutionIndex = new FoodSubstitutionIndex(getNutrientVectors(), size());
+                }
+            }
+        }
+        return substitutionIndex;
+    }
+    
+    NutrientRankings getNutrientRankings() {
+        if (nutrientRankings == null) {
+            synchronized (this) {
+                if (nutrientRankings == null) {
+                    nutrientRankings = new NutrientRankings(getNutrientVectors(), size());
+                }
+            }
+        }
+        return nutrientRankings;
+    }
+    
+    MealPlanSolver getMealPlanSolver() {
+        if (mealPlanSolver == null) {
+            synchronized (this) {
+                if (mealPlanSolver == null) {
+                    mealPlanSolver = new MealPlanSolver(this);
+                }
+            }
+        }
+        return mealPlanSolver;
+    }
+    
+    // Shared by the substitution index and the rankings; callers must not modify it
+    float[] getNutrientVectors() {
+        if (nutrientVectors == null) {
+            synchronized (this) {
+                if (nutrientVectors == null) {
+                    nutrientVectors = readNutrientVectors();
+                }
+            }
+        }
+        return nutrientVectors;
+    }
+    
+    // Per-100g values of every food, Nutrient.COUNT floats per id, without materializing catalog foods
+    private float[] readNutrientVectors() {
+        float[] vectors = new float[size() * Nutrient.COUNT];
+        for (int id = 0; id < size(); id++) {
+            Food food = foodsById.get(id);
+            if (food == null) {
+                catalog.readNutrients(id, vectors, id * Nutrient.COUNT);
+            } else {
+                double[] values = food.getNutrientValues();
+                for (int n = 0; n < Nutrient.COUNT; n++) {
+                    vectors[id * Nutrient.COUNT + n] = (float) values[n];
+                }
+            }
+        }
+        return vectors;
+    }
+    
+    private List<Food> toFoods(int[] ids) {
+        List<Food> result = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            result.add(getFoodById(id));
+        }
+        return result;
+    }
+    
+    public Set<String> getFoodNames() {
+        if (catalog == null) {
+            return Collections.unmodifiableSet(foods.keySet());
+        }
+        Set<String> names = new LinkedHashSet<>();
+        for (int id = 0; id < size(); id++) {
+            names.add(getKey(id));
+        }
+        return names;
+    }
+    
+    public Collection<Food> getAllFoods() {
+        if (catalog == null) {
+            return Collections.unmodifiableCollection(foods.values());
+        }
+        List<Food> all = new ArrayList<>(size());
+        for (int id = 0; id < size(); id++) {
+            all.add(getFoodById(id));
+        }
+        return all;
+    }
+}
+
+// Food Catalog Delta
+//
+// An ordered batch of catalog changes: put() adds a food or replaces one with the same name,
+// putRecipe() does the same for a recipe, correct() changes a single nutrient of an existing
+// food. Applied with FoodDatabase.update().
+class FoodCatalogDelta {
+    static final class Change {
+        final String name;
+        final Food food;
+        final Recipe recipe;
+        final Nutrient nutrient;
+        final double value;
+        
+        Change(String name, Food food, Recipe recipe, Nutrient nutrient, double value) {
+            this.name = name;
+            this.food = food;
+            this.recipe = recipe;
+            this.nutrient = nutrient;
+            this.value = value;
+        }
+    }
+    
+    private final List<Change> changes = new ArrayList<>();
+    
+    public FoodCatalogDelta put(Food food) {
+        changes.add(new Change(food.getName(), food, null, null, 0));
+        return this;
+    }
+    
+    // Ingredients must be in the catalog already or put earlier in the same delta
+    public FoodCatalogDelta putRecipe(Recipe recipe) {
+        if (recipe.getIngredientCount() == 0) {
+            throw new IllegalArgumentException(recipe.getName() + " has no ingredients");
+        }
+        changes.add(new Change(recipe.getName(), null, recipe.copy(), null, 0));
+        return this;
+    }
+    
+    public FoodCatalogDelta correct(String name, Nutrient nutrient, double value) {
+        changes.add(new Change(name, null, null, nutrient, value));
+        return this;
+    }
+    
+    public List<Change> getChanges() {
+        return Collections.unmodifiableList(changes);
+    }
+    
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+}
+
+// Recipe Class
+//
+// A composite food: ingredients (plain foods or other recipes) by raw weight, the number of
+// servings it makes and a cooking yield, the cooked weight over the raw weight (below 1 when
+// water cooks off, above 1 for grains that absorb it). Once published the catalog serves it
+// as an ordinary Food with the per-100g values of the cooked dish.
+class Recipe {
+    private final String name;
+    private final List<String> ingredients = new ArrayList<>();
+    private double[] grams = new double[4];
+    private int servings = 1;
+    private double yieldFactor = 1;
+    private boolean frozen;
+    
+    public Recipe(String name) {
+        this.name = name;
+    }
+    
+    // Builder pattern, like Food
+    public Recipe add(String food, double grams) {
+        checkNotFrozen();
+        if (!(grams > 0) || Double.isInfinite(grams)) {
+            throw new IllegalArgumentException("Ingredient amount must be positive: " + food);
+        }
+        if (ingredients.size() == this.grams.length) {
+            this.grams = Arrays.copyOf(this.grams, this.grams.length * 2);
+        }
+        this.grams[ingredients.size()] = grams;
+        ingredients.add(food);
+        return this;
+    }
+    
+    public Recipe setServings(int servings) {
+        checkNotFrozen();
+        if (servings < 1) {
+            throw new IllegalArgumentException("A recipe makes at least one serving");
+        }
+        this.servings = servings;
+        return this;
+    }
+    
+    public Recipe setYieldFactor(double yieldFactor) {
+        checkNotFrozen();
+        if (!(yieldFactor > 0) || Double.isInfinite(yieldFactor)) {
+            throw new IllegalArgumentException("Yield factor must be positive");
+        }
+        this.yieldFactor = yieldFactor;
+        return this;
+    }
+    
+    void freeze() {
+        frozen = true;
+    }
+    
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException(name + " is in a published catalog; submit a changed copy");
+        }
+    }
+    
+    // Unfrozen copy
+    public Recipe copy() {
+        Recipe copy = new Recipe(name).setServings(servings).setYieldFactor(yieldFactor);
+        for (int i = 0; i < ingredients.size(); i++) {
+            copy.add(ingredients.get(i), grams[i]);
+        }
+        return copy;
+    }
+    
+    public String getName() { return name; }
+    public int getIngredientCount() { return ingredients.size(); }
+    public String getIngredient(int index) { return ingredients.get(index); }
+    public double getIngredientGrams(int index) { return grams[index]; }
+    public int getServings() { return servings; }
+    public double getYieldFactor() { return yieldFactor; }
+    
+    public double getRawGrams() {
+        double total = 0;
+        for (int i = 0; i < ingredients.size(); i++) {
+            total += grams[i];
+        }
+        return total;
+    }
+    
+    public double getCookedGrams() {
+        return getRawGrams() * yieldFactor;
+    }
+    
+    public double getServingGrams() {
+        return getCookedGrams() / servings;
+    }
+}
+
+// Daily Nutrition Tracker Class
+//
+// Entries are stored column-wise as 12 bytes each (int food id, float grams, int time)
+// rather than as FoodEntry objects, which cost a header and two references apiece.
+// The first chunk grows by doubling up to CHUNK_SIZE and later chunks are allocated at that
+// size, so a long log never copies what it already holds.
+class DailyNutritionTracker {
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+    
+    // Minutes since the epoch in the low 30 bits of each time (good until the year 3000),
+    // meal slot ordinal in the 2 above; the minute of day is derived from it
+    private static final int MINUTE_MASK = (1 << 30) - 1;
+    private static final int SLOT_SHIFT = 30;
+    
+    private int[][] foodIds = {new int[8]};
+    private float[][] grams = {new float[8]};
+    private int[][] times = {new int[8]};
+    private int size;
+    private FoodDatabase foodDatabase;
+    // Catalog version every entry and the running summary are resolved against; null while empty
+    private FoodCatalogSnapshot snapshot;
+    // Updated on every add/remove so summary reads don't rescan the entries
+    private NutritionSummary runningSummary;
+    private long version;
+    
+    public DailyNutritionTracker(FoodDatabase foodDatabase) {
+        this.foodDatabase = foodDatabase;
+        runningSummary = new NutritionSummary();
+    }
+    
+    static int minuteOfDay(long timeMillis) {
+        int offsetMinutes = ZONE.getRules().getOffset(Instant.ofEpochMilli(timeMillis)).getTotalSeconds() / 60;
+        return (int) Math.floorMod(Math.floorDiv(timeMillis, 60_000L) + offsetMinutes, 1440L);
+    }
+    
+    // Inverse of minuteOfDay: the latest minute at or before nowMillis falling on that time of day
+    // (using the offset in effect now, so it can be an hour off across a DST change); only used
+    // for entries added with just a time of day
+    static long timeAt(int minuteOfDay, long nowMillis) {
+        long nowMinute = Math.floorDiv(nowMillis, 60_000L);
+        int minutesAgo = Math.floorMod(minuteOfDay(nowMillis) - minuteOfDay, 1440);
+        return (nowMinute - minutesAgo) * 60_000L;
+    }
+    
+    public void addFood(Food food, double quantity) {
+        addFood(food, quantity, minuteOfDay(System.currentTimeMillis()));
+    }
+    
+    // Quantities are kept as floats; the running summary uses the stored value so that
+    // removing the entry later subtracts exactly what was added
+    public void addFood(Food food, double quantity, int minuteOfDay) {
+        addFood(food, quantity, minuteOfDay, MealSlot.forMinuteOfDay(minuteOfDay));
+    }
+    
+    public void addFood(Food food, double quantity, int minuteOfDay, MealSlot mealSlot) {
+        addFood(food, quantity, mealSlot, timeAt(minuteOfDay, System.currentTimeMillis()));
+    }
+    
+    // Returns the food as stored, resolved against the version the day is pinned to
+    public Food addFood(Food food, double quantity, MealSlot mealSlot, long timeMillis) {
+        FoodCatalogSnapshot latest = foodDatabase.getSnapshot();
+        if (latest != snapshot) {
+            repin(latest);
+        }
+        // Values from the pinned version, even if the caller looked the food up in an older one
+        food = snapshot.getFoodById(food.getId());
+        ensureCapacity(size + 1);
+        float stored = (float) quantity;
+        int chunk = size >>> CHUNK_SHIFT;
+        int offset = size & CHUNK_MASK;
+        foodIds[chunk][offset] = food.getId();
+        grams[chunk][offset] = stored;
+        times[chunk][offset] = (int) (Math.floorDiv(timeMillis, 60_000L) & MINUTE_MASK) | mealSlot.ordinal() << SLOT_SHIFT;
+        size++;
+        runningSummary.add(food.getNutrientValues(), stored / 100.0);
+        version++;
+        return food;
+    }
+    
+    // Version every entry resolves against; null while the day is empty
+    FoodCatalogSnapshot getSnapshot() {
+        return snapshot;
+    }
+    
+    // Moves the day onto a newer catalog version, recomputing the running summary so that
+    // corrected foods count with their new values everywhere
+    private void repin(FoodCatalogSnapshot latest) {
+        snapshot = latest;
+        runningSummary.reset();
+        for (int i = 0; i < size; i++) {
+            runningSummary.add(latest.getFoodById(getFoodId(i)).getNutrientValues(), getGrams(i) / 100.0);
+        }
+    }
+    
+    private void ensureCapacity(int capacity) {
+        if (capacity <= foodIds[0].length) {
+            return;
+        }
+        if (foodIds.length == 1 && foodIds[0].length < CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, foodIds[0].length * 2);
+            foodIds[0] = Arrays.copyOf(foodIds[0], length);
+            grams[0] = Arrays.copyOf(grams[0], length);
+            times[0] = Arrays.copyOf(times[0], length);
+            return;
+        }
+        int chunks = (capacity + CHUNK_MASK) >>> CHUNK_SHIFT;
+        if (chunks > foodIds.length) {
+            int old = foodIds.length;
+            foodIds = Arrays.copyOf(foodIds, chunks);
+            grams = Arrays.copyOf(grams, chunks);
+            times = Arrays.copyOf(times, chunks);
+            for (int c = old; c < chunks; c++) {
+                foodIds[c] = new int[CHUNK_SIZE];
+                grams[c] = new float[CHUNK_SIZE];
+                times[c] = new int[CHUNK_SIZE];
+            }
+        }
+    }
+    
+    public int getFoodId(int index) {
+        return foodIds[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+    
+    public double getGrams(int index) {
+        return grams[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+    
+    public int getMinuteOfDay(int index) {
+        return minuteOfDay(getTimeMillis(index));
+    }
+    
+    public MealSlot getMealSlot(int index) {
+        return MealSlot.ofOrdinal(times[index >>> CHUNK_SHIFT][index & CHUNK_MASK] >>> SLOT_SHIFT);
+    }
+    
+    public long getTimeMillis(int index) {
+        return (times[index >>> CHUNK_SHIFT][index & CHUNK_MASK] & MINUTE_MASK) * 60_000L;
+    }
+    
+    // Materializes one entry; prefer the column getters in loops
+    public FoodEntry getEntry(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Entry " + index + " of " + size);
+        }
+        return new FoodEntry(snapshot.getFoodById(getFoodId(index)), getGrams(index), getMinuteOfDay(index),
+            getMealSlot(index), getTimeMillis(index));
+    }
+    
+    // Read-only view that materializes entries as they are read
+    public List<FoodEntry> getEntries() {
+        return new AbstractList<FoodEntry>() {
+            @Override
+            public FoodEntry get(int index) {
+                return getEntry(index);
+            }
+            
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+    
+    public FoodEntry removeFood(int index) {
+        if (index < 0 || index >= size) {
+            return null;
+        }
+        FoodEntry entry = getEntry(index);
+        for (int i = index + 1; i < size; i++) {
+            int to = i - 1;
+            foodIds[to >>> CHUNK_SHIFT][to & CHUNK_MASK] = getFoodId(i);
+            grams[to >>> CHUNK_SHIFT][to & CHUNK_MASK] = (float) getGrams(i);
+            times[to >>> CHUNK_SHIFT][to & CHUNK_MASK] = times[i >>> CHUNK_SHIFT][i & CHUNK_MASK];
+        }
+        size--;
+        version++;
+        if (size == 0) {
+            // Nothing left to drift from - start again from exact zeros
+            runningSummary.reset();
+            snapshot = null;
+        } else {
+            runningSummary.add(entry.getFood().getNutrientValues(), -entry.getQuantity() / 100.0);
+        }
+        return entry;
+    }
+    
+    public FoodEntry undoLastFood() {
+        return removeFood(size - 1);
+    }
+    
+    // Keeps the first chunk for the next day and lets the rest be collected
+    public void clearDailyIntake() {
+        if (foodIds.length > 1) {
+            foodIds = Arrays.copyOf(foodIds, 1);
+            grams = Arrays.copyOf(grams, 1);
+            times = Arrays.copyOf(times, 1);
+        }
+        size = 0;
+        snapshot = null;
+        runningSummary.reset();
+        version++;
+    }
+    
+    // Bumped by every mutation; cached reports are keyed by it
+    public long getVersion() {
+        return version;
+    }
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    public int getEntryCount() {
+        return size;
+    }
+    
+    public NutritionSummary getNutritionSummary() {
+        return runningSummary.copy();
+    }
+    
+    public void displayDailyIntake() {
+        ReportRenderer.console().renderDailyIntake(getEntries(), runningSummary).writeToConsole();
+    }
+    
+    public void displayDetailedNutritionSummary() {
+        if (size == 0) {
+            System.out.println("No food items to analyze.");
+            return;
+        }
+        ReportRenderer.console().renderNutritionSummary(null, runningSummary).writeToConsole();
+    }
+    
+    // Full recomputation from the entries, joined chunk by chunk against the nutrient columns;
+    // summary reads use runningSummary instead
+    NutritionSummary calculateNutritionSummary() {
+        NutritionSummary summary = new NutritionSummary();
+        if (size == 0) {
+            return summary;
+        }
+        NutrientTable table = snapshot.getNutrientTable();
+        for (int chunk = 0; chunk * CHUNK_SIZE < size; chunk++) {
+            int count = Math.min(CHUNK_SIZE, size - chunk * CHUNK_SIZE);
+            table.sumWeighted(foodIds[chunk], grams[chunk], count, 0.01, summary.getTotals());
+        }
+        return summary;
+    }
+}
+
+// Food Entry Class
+class FoodEntry {
+    private Food food;
+    private double quantity;
+    private int minuteOfDay;
+    private MealSlot mealSlot;
+    private long timeMillis;
+    
+    public FoodEntry(Food food, double quantity, int minuteOfDay, MealSlot mealSlot, long timeMillis) {
+        this.food = food;
+        this.quantity = quantity;
+        this.minuteOfDay = minuteOfDay;
+        this.mealSlot = mealSlot;
+        this.timeMillis = timeMillis;
+    }
+    
+    public Food getFood() { return food; }
+    public double getQuantity() { return quantity; }
+    public int getMinuteOfDay() { return minuteOfDay; }
+    public MealSlot getMealSlot() { return mealSlot; }
+    public long getTimeMillis() { return timeMillis; }
+}
+
+// Nutrition Summary Class
+class NutritionSummary {
+    // Totals indexed by Nutrient.ordinal()
+    private final double[] totals = new double[Nutrient.COUNT];
+    // Running error terms for compensated (Kahan-Babuska) summation in add()
+    private final double[] compensation = new double[Nutrient.COUNT];
+    
+    public double get(Nutrient nutrient) {
+        return totals[nutrient.ordinal()] + compensation[nutrient.ordinal()];
+    }
+    
+    double[] getTotals() {
+        return totals;
+    }
+    
+    // Adds values * multiplier to the totals; a negative multiplier removes an entry
+    public void add(double[] values, double multiplier) {
+        for (int n = 0; n < totals.length; n++) {
+            double value = values[n] * multiplier;
+            double sum = totals[n] + value;
+            if (Math.abs(totals[n]) >= Math.abs(value)) {
+                compensation[n] += (totals[n] - sum) + value;
+            } else {
+                compensation[n] += (value - sum) + totals[n];
+            }
+            totals[n] = sum;
+        }
+    }
+    
+    public void reset() {
+        Arrays.fill(totals, 0);
+        Arrays.fill(compensation, 0);
+    }
+    
+    // Adds another summary's totals, e.g. partial sums computed on different shards
+    public void merge(NutritionSummary other) {
+        double[] values = new double[Nutrient.COUNT];
+        for (int n = 0; n < values.length; n++) {
+            values[n] = other.totals[n] + other.compensation[n];
+        }
+        add(values, 1);
+    }
+    
+    public NutritionSummary copy() {
+        NutritionSummary copy = new NutritionSummary();
+        for (int n = 0; n < totals.length; n++) {
+            copy.totals[n] = totals[n] + compensation[n];
+        }
+        return copy;
+    }
+}
+
+// Meal Slot Enum
+enum MealSlot {
+    BREAKFAST("Breakfast", 0.25),
+    LUNCH("Lunch", 0.35),
+    DINNER("Dinner", 0.30),
+    SNACK("Snacks", 0.10);
+    
+    private final String displayName;
+    private final double calorieShare;
+    
+    MealSlot(String displayName, double calorieShare) {
+        this.displayName = displayName;
+        this.calorieShare = calorieShare;
+    }
+    
+    public String getDisplayName() { return displayName; }
+    public double getCalorieShare() { return calorieShare; }
+    
+    public double getCalorieTarget(double dailyCalories) {
+        return dailyCalories * calorieShare;
+    }
+    
+    private static final MealSlot[] VALUES = values();
+    
+    static MealSlot ofOrdinal(int ordinal) {
+        return VALUES[ordinal];
+    }
+    
+    public String getKey() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+    
+    // Accepts "lunch", "LUNCH" or "snacks"; null when the name is not a slot
+    public static MealSlot fromKey(String key) {
+        for (MealSlot slot : VALUES) {
+            if (slot.name().equalsIgnoreCase(key) || slot.displayName.equalsIgnoreCase(key)) {
+                return slot;
+            }
+        }
+        return null;
+    }
+    
+    // Default slot for entries logged without one: breakfast until 11:00, lunch until 15:00,
+    // dinner from 17:00 to 22:00, snacks in between and overnight
+    public static MealSlot forMinuteOfDay(int minuteOfDay) {
+        if (minuteOfDay >= 4 * 60 && minuteOfDay < 11 * 60) {
+            return BREAKFAST;
+        }
+        if (minuteOfDay >= 11 * 60 && minuteOfDay < 15 * 60) {
+            return LUNCH;
+        }
+        if (minuteOfDay >= 17 * 60 && minuteOfDay < 22 * 60) {
+            return DINNER;
+        }
+        return SNACK;
+    }
+}
+
+// Meal Recommendation Engine
+class MealRecommendationEngine {
+    static final int OPTIONS_PER_MEAL = 2;
+    
+    public static void generateRecommendations(double dailyCalories, FoodDatabase foodDatabase) {
+        generateRecommendations(dailyCalories, planMeals(foodDatabase.getMealPlanSolver(), dailyCalories));
+    }
+    
+    static Map<MealSlot, List<MealPlan>> planMeals(MealPlanSolver solver, double dailyCalories) {
+        RecommendationEvent event = new RecommendationEvent();
+        event.begin();
+        long start = Metrics.RECOMMENDATION.start();
+        Map<MealSlot, List<MealPlan>> plans = new EnumMap<>(MealSlot.class);
+        int found = 0;
+        for (MealSlot slot : MealSlot.values()) {
+            List<MealPlan> options = solver.solve(slot, dailyCalories, OPTIONS_PER_MEAL);
+            plans.put(slot, Collections.unmodifiableList(options));
+            found += options.size();
+        }
+        Metrics.RECOMMENDATION.stop(start);
+        if (event.shouldCommit()) {
+            event.dailyCalories = dailyCalories;
+            event.plans = found;
+            event.commit();
+        }
+        return Collections.unmodifiableMap(plans);
+    }
+    
+    public static void generateRecommendations(double dailyCalories, Map<MealSlot, List<MealPlan>> mealPlans) {
+        System.out.println("\n=== Meal Distribution ===");
+        for (MealSlot slot : MealSlot.values()) {
+            System.out.printf("%s: %.0f calories (%.0f%%)\n", slot.getDisplayName(),
+                slot.getCalorieTarget(dailyCalories), slot.getCalorieShare() * 100);
+        }
+        
+        System.out.println("\n=== Sample Meal Plans ===");
+        
+        for (MealSlot slot : MealSlot.values()) {
+            System.out.println(slot == MealSlot.SNACK ? "\nHEALTHY SNACK OPTIONS:"
+                : "\n" + slot.getDisplayName().toUpperCase(Locale.ROOT) + " OPTIONS:");
+            List<MealPlan> plans = mealPlans.get(slot);
+            if (plans.isEmpty()) {
+                System.out.println("• No combination of available foods fits this meal");
+            }
+            for (MealPlan plan : plans) {
+                System.out.printf("• %s = %.0f cal (P %.0fg, C %.0fg, F %.0fg)\n", plan.describe(),
+                    plan.getTotal(Nutrient.CALORIES), plan.getTotal(Nutrient.PROTEIN),
+                    plan.getTotal(Nutrient.CARBS), plan.getTotal(Nutrient.FAT));
+            }
+        }
+        
+        System.out.println("\n=== Nutrition Tips ===");
+        System.out.println("• Include protein in every meal");
+        System.out.println("• Eat 5-9 servings of fruits and vegetables daily");
+        System.out.println("• Choose whole grains over refined grains");
+        System.out.println("• Include healthy fats (omega-3, nuts, avocado)");
+        System.out.println("• Stay hydrated - drink 8-10 glasses of water daily");
+        System.out.println("• Limit processed foods and added sugars");
+    }
+}
+
+// Multi-user Nutrition Tracking Service
+class NutritionTrackingService {
+    private static final int LOCK_STRIPES = 64;
+    
+    private final FoodDatabase foodDatabase;
+    private final ConcurrentMap<String, DailyNutritionTracker> trackers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, UserProfile> profiles = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, NutritionHistory> histories = new ConcurrentHashMap<>();
+    // A user's tracker is only mutated while holding its stripe, so different users rarely contend
+    private final Object[] stripes = new Object[LOCK_STRIPES];
+    // Service-wide totals across all users, updated without any lock
+    private final DoubleAdder[] totalIntake = new DoubleAdder[Nutrient.COUNT];
+    private final LongAdder loggedEntries = new LongAdder();
+    private final LongAdder intakeAlerts = new LongAdder();
+    // Per-meal and rolling intake aggregates, updated under the user's stripe alongside the tracker
+    private final ConcurrentMap<String, IntakeWindows> intakeWindows = new ConcurrentHashMap<>();
+    private final List<IntakeAlertRule> alertRules = new CopyOnWriteArrayList<>(Arrays.asList(
+        IntakeAlertRule.mealOverBudget(1.2),
+        IntakeAlertRule.overDailyBudget(IntakeWindow.ROLLING_24H, 1.0)));
+    private final List<Consumer<IntakeAlert>> alertListeners = new CopyOnWriteArrayList<>();
+    // Optional write-ahead log; events are appended while the user's stripe is held so
+    // the log order matches the order they were applied in
+    private volatile MealLog mealLog;
+    // Meal plans depend only on the profile and the catalog version, so users with identical
+    // profiles share entries
+    private final LruCache<RecommendationKey, Map<MealSlot, List<MealPlan>>> recommendationCache =
+        new LruCache<>(10_000, 1, TimeUnit.HOURS);
+    // Rendered summaries keyed by tracker version; a mutation makes the old key unreachable
+    private final LruCache<SummaryKey, String> summaryCache = new LruCache<>(100_000, 0, TimeUnit.SECONDS);
+    
+    static final class RecommendationKey {
+        private final UserProfile.Fingerprint profile;
+        private final long catalogVersion;
+        
+        RecommendationKey(UserProfile.Fingerprint profile, long catalogVersion) {
+            this.profile = profile;
+            this.catalogVersion = catalogVersion;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RecommendationKey)) {
+                return false;
+            }
+            RecommendationKey other = (RecommendationKey) o;
+            return catalogVersion == other.catalogVersion && profile.equals(other.profile);
+        }
+        
+        @Override
+        public int hashCode() {
+            return profile.hashCode() * 31 + Long.hashCode(catalogVersion);
+        }
+    }
+    
+    static final class SummaryKey {
+        private final String userId;
+        private final long version;
+        private final ReportFormat format;
+        // Percentages of target depend on the profile's gender and age
+        private final UserProfile.Fingerprint profile;
+        
+        SummaryKey(String userId, long version, ReportFormat format, UserProfile.Fingerprint profile) {
+            this.userId = userId;
+            this.version = version;
+            this.format = format;
+            this.profile = profile;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SummaryKey)) {
+                return false;
+            }
+            SummaryKey other = (SummaryKey) o;
+            return version == other.version && format == other.format && userId.equals(other.userId)
+                && profile.equals(other.profile);
+        }
+        
+        @Override
+        public int hashCode() {
+            return ((userId.hashCode() * 31 + Long.hashCode(version)) * 31 + format.hashCode()) * 31 + profile.hashCode();
+        }
+    }
+    
+    public NutritionTrackingService(FoodDatabase foodDatabase) {
+        this.foodDatabase = foodDatabase;
+        // Entries for older catalog versions can no longer be hit; drop them right away
+        foodDatabase.addSnapshotListener(snapshot -> recommendationCache.invalidateAll());
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Object();
+        }
+        for (int n = 0; n < totalIntake.length; n++) {
+            totalIntake[n] = new DoubleAdder();
+        }
+    }
+    
+    private Object stripeFor(String userId) {
+        int h = userId.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+    
+    // Plain get first: computeIfAbsent allocates its capturing lambda on every call
+    public DailyNutritionTracker getTracker(String userId) {
+        DailyNutritionTracker tracker = trackers.get(userId);
+        return tracker != null ? tracker : trackers.computeIfAbsent(userId, id -> new DailyNutritionTracker(foodDatabase));
+    }
+    
+    public UserProfile getProfile(String userId) {
+        return profiles.computeIfAbsent(userId, id -> new UserProfile());
+    }
+    
+    // Null if the user never set up a profile
+    public UserProfile findProfile(String userId) {
+        return profiles.get(userId);
+    }
+    
+    public NutritionHistory getHistory(String userId) {
+        return histories.computeIfAbsent(userId, id -> new NutritionHistory());
+    }
+    
+    private IntakeWindows getIntakeWindows(String userId) {
+        return intakeWindows.computeIfAbsent(userId, id -> new IntakeWindows());
+    }
+    
+    public void addAlertRule(IntakeAlertRule rule) {
+        alertRules.add(rule);
+    }
+    
+    // Listeners run on the thread that logged the entry, after the user's stripe is released
+    public void addAlertListener(Consumer<IntakeAlert> listener) {
+        alertListeners.add(listener);
+    }
+    
+    public long getAlertCount() {
+        return intakeAlerts.sum();
+    }
+    
+    public IntakeWindows.Snapshot getIntakeWindows(String userId, long nowMillis) {
+        IntakeWindows windows = getIntakeWindows(userId);
+        double dailyCalories = getDailyCalorieBudget(userId);
+        synchronized (stripeFor(userId)) {
+            return windows.snapshot(nowMillis, dailyCalories);
+        }
+    }
+    
+    // 0 while the profile is incomplete, which switches the budget rules off
+    private double getDailyCalorieBudget(String userId) {
+        UserProfile profile = profiles.get(userId);
+        if (profile == null) {
+            return 0;
+        }
+        synchronized (profile) {
+            return profile.isProfileComplete() ? profile.calculateDailyCalories() : 0;
+        }
+    }
+    
+    public Set<String> getUserIds() {
+        return trackers.keySet();
+    }
+    
+    public FoodDatabase getFoodDatabase() {
+        return foodDatabase;
+    }
+    
+    // Attach after MealLog.replay() so replayed events are not logged a second time
+    public void attachMealLog(MealLog mealLog) {
+        this.mealLog = mealLog;
+    }
+    
+    // Null when running without a data directory
+    public MealLog getMealLog() {
+        return mealLog;
+    }
+    
+    private CompletableFuture<Void> log(MealLogEvent event) {
+        MealLog log = mealLog;
+        return log == null ? CompletableFuture.completedFuture(null) : log.append(event);
+    }
+    
+    // The returned future completes once the entry is durable (immediately without a log)
+    public CompletableFuture<Void> addFood(String userId, Food food, double quantity) {
+        return addFood(userId, food, quantity, System.currentTimeMillis());
+    }
+    
+    // timeMillis is when the food was eaten; replay passes the logged time
+    public CompletableFuture<Void> addFood(String userId, Food food, double quantity, long timeMillis) {
+        return addFood(userId, food, quantity, timeMillis, null);
+    }
+    
+    // A null meal slot is picked from the time of day
+    public CompletableFuture<Void> addFood(String userId, Food food, double quantity, long timeMillis, MealSlot mealSlot) {
+        AddFoodEvent event = new AddFoodEvent();
+        event.begin();
+        long start = Metrics.ADD_FOOD.start();
+        DailyNutritionTracker tracker = getTracker(userId);
+        IntakeWindows windows = getIntakeWindows(userId);
+        double dailyCalories = getDailyCalorieBudget(userId);
+        int minuteOfDay = DailyNutritionTracker.minuteOfDay(timeMillis);
+        if (mealSlot == null) {
+            mealSlot = MealSlot.forMinuteOfDay(minuteOfDay);
+        }
+        // The tracker stores quantities as floats; add the same value undo will subtract
+        double multiplier = (float) quantity / 100.0;
+        double[] values;
+        CompletableFuture<Void> durable;
+        List<IntakeAlert> alerts;
+        synchronized (stripeFor(userId)) {
+            FoodCatalogSnapshot pinned = tracker.getSnapshot();
+            // The stored food's values, so undo later subtracts exactly what goes in here
+            values = tracker.addFood(food, quantity, mealSlot, timeMillis).getNutrientValues();
+            if (pinned != null && pinned != tracker.getSnapshot()) {
+                repinIntake(tracker, windows, pinned);
+            }
+            alerts = windows.add(userId, timeMillis, mealSlot, values, multiplier, alertRules, dailyCalories);
+            durable = log(new MealLogEvent(MealLogEvent.ADD, timeMillis, userId, food.getId(), quantity, mealSlot));
+        }
+        for (int n = 0; n < totalIntake.length; n++) {
+            totalIntake[n].add(values[n] * multiplier);
+        }
+        loggedEntries.increment();
+        if (!alerts.isEmpty()) {
+            intakeAlerts.add(alerts.size());
+            for (IntakeAlert alert : alerts) {
+                for (Consumer<IntakeAlert> listener : alertListeners) {
+                    listener.accept(alert);
+                }
+            }
+        }
+        Metrics.ADD_FOOD.stop(start);
+        if (event.shouldCommit()) {
+            event.userId = userId;
+            event.food = food.getName();
+            event.grams = quantity;
+            event.commit();
+        }
+        return durable;
+    }
+    
+    // The tracker moved its earlier entries onto a newer catalog version; move the windows and
+    // the global totals with it so removals keep matching what was added. Called under the stripe.
+    private void repinIntake(DailyNutritionTracker tracker, IntakeWindows windows, FoodCatalogSnapshot previous) {
+        FoodCatalogSnapshot latest = tracker.getSnapshot();
+        // The newest entry was added after the repin
+        for (int i = 0; i < tracker.getEntryCount() - 1; i++) {
+            int foodId = tracker.getFoodId(i);
+            double[] before = previous.getFoodById(foodId).getNutrientValues();
+            double[] after = latest.getFoodById(foodId).getNutrientValues();
+            if (Arrays.equals(before, after)) {
+                continue;
+            }
+            double multiplier = tracker.getGrams(i) / 100.0;
+            windows.replace(tracker.getTimeMillis(i), tracker.getMealSlot(i), before, after, multiplier);
+            for (int n = 0; n < totalIntake.length; n++) {
+                totalIntake[n].add((after[n] - before[n]) * multiplier);
+            }
+        }
+    }
+    
+    public FoodEntry undoLastFood(String userId) {
+        return undoLastFood(userId, System.currentTimeMillis());
+    }
+    
+    // timeMillis is when the undo happened; the entry leaves the window bucket it was added to
+    public FoodEntry undoLastFood(String userId, long timeMillis) {
+        DailyNutritionTracker tracker = getTracker(userId);
+        IntakeWindows windows = getIntakeWindows(userId);
+        FoodEntry removed;
+        synchronized (stripeFor(userId)) {
+            removed = tracker.undoLastFood();
+            if (removed != null) {
+                windows.remove(removed.getTimeMillis(), removed.getMealSlot(),
+                    removed.getFood().getNutrientValues(), removed.getQuantity() / 100.0);
+                log(new MealLogEvent(MealLogEvent.UNDO, timeMillis, userId, -1, 0));
+            }
+        }
+        if (removed != null) {
+            double multiplier = removed.getQuantity() / 100.0;
+            double[] values = removed.getFood().getNutrientValues();
+            for (int n = 0; n < totalIntake.length; n++) {
+                totalIntake[n].add(-values[n] * multiplier);
+            }
+            loggedEntries.decrement();
+        }
+        return removed;
+    }
+    
+    public void clearDailyIntake(String userId) {
+        clearDailyIntake(userId, System.currentTimeMillis());
+    }
+    
+    // Clearing discards the entries, so they leave the rolling windows as well
+    public void clearDailyIntake(String userId, long timeMillis) {
+        DailyNutritionTracker tracker = getTracker(userId);
+        IntakeWindows windows = getIntakeWindows(userId);
+        synchronized (stripeFor(userId)) {
+            for (int i = 0; i < tracker.getEntryCount(); i++) {
+                FoodEntry entry = tracker.getEntry(i);
+                windows.remove(entry.getTimeMillis(), entry.getMealSlot(),
+                    entry.getFood().getNutrientValues(), entry.getQuantity() / 100.0);
+            }
+            windows.resetMeals();
+            tracker.clearDailyIntake();
+            log(new MealLogEvent(MealLogEvent.CLEAR, timeMillis, userId, -1, 0));
+        }
+    }
+    
+    // Rolls the current intake into the user's history under the given date and starts a new day
+    public NutritionSummary closeDay(String userId, LocalDate date) {
+        DailyNutritionTracker tracker = getTracker(userId);
+        NutritionHistory history = getHistory(userId);
+        synchronized (stripeFor(userId)) {
+            NutritionSummary summary = tracker.getNutritionSummary();
+            history.recordDay(date, summary, tracker.getEntryCount());
+            tracker.clearDailyIntake();
+            getIntakeWindows(userId).resetMeals();
+            log(MealLogEvent.closeDay(System.currentTimeMillis(), userId, date));
+            return summary;
+        }
+    }
+    
+    public NutritionSummary getNutritionSummary(String userId) {
+        DailyNutritionTracker tracker = getTracker(userId);
+        synchronized (stripeFor(userId)) {
+            return tracker.getNutritionSummary();
+        }
+    }
+    
+    // Text reports are for the user reading their own summary, so they omit the user id
+    public String getSummaryReport(String userId, ReportFormat format) {
+        NutritionSummaryEvent event = new NutritionSummaryEvent();
+        event.begin();
+        long start = Metrics.SUMMARY.start();
+        DailyNutritionTracker tracker = getTracker(userId);
+        UserProfile profile = getProfile(userId);
+        UserProfile.Fingerprint fingerprint;
+        double[] targets;
+        synchronized (profile) {
+            fingerprint = profile.getFingerprint();
+            targets = DietaryReferenceIntakes.forProfile(profile);
+        }
+        long version;
+        NutritionSummary summary;
+        synchronized (stripeFor(userId)) {
+            version = tracker.getVersion();
+            summary = tracker.getNutritionSummary();
+        }
+        String report = summaryCache.get(new SummaryKey(userId, version, format, fingerprint), key -> {
+            ReportRenderer renderer = ReportRenderer.forThread(format);
+            renderer.reset();
+            String rendered = renderer.renderNutritionSummary(format == ReportFormat.TEXT ? null : userId, summary, targets).toString();
+            renderer.reset();
+            return rendered;
+        });
+        Metrics.SUMMARY.stop(start);
+        if (event.shouldCommit()) {
+            event.userId = userId;
+            event.format = format.name();
+            event.commit();
+        }
+        return report;
+    }
+    
+    // Today's intake against the profile's reference intakes, with foods to close the gaps
+    public NutrientGapAnalyzer.GapReport analyzeGaps(String userId) {
+        UserProfile profile = getProfile(userId);
+        double[] targets;
+        synchronized (profile) {
+            targets = DietaryReferenceIntakes.forProfile(profile);
+        }
+        return new NutrientGapAnalyzer(foodDatabase).analyze(getNutritionSummary(userId), targets);
+    }
+    
+    // Null while the profile is incomplete
+    public Map<MealSlot, List<MealPlan>> getRecommendations(String userId) {
+        UserProfile profile = getProfile(userId);
+        UserProfile.Fingerprint fingerprint;
+        double dailyCalories;
+        synchronized (profile) {
+            if (!profile.isProfileComplete()) {
+                return null;
+            }
+            fingerprint = profile.getFingerprint();
+            dailyCalories = profile.calculateDailyCalories();
+        }
+        MealPlanSolver current = foodDatabase.getMealPlanSolver();
+        return recommendationCache.get(new RecommendationKey(fingerprint, current.getCatalogVersion()),
+            key -> MealRecommendationEngine.planMeals(current, dailyCalories));
+    }
+    
+    public LruCache<RecommendationKey, Map<MealSlot, List<MealPlan>>> getRecommendationCache() {
+        return recommendationCache;
+    }
+    
+    public LruCache<SummaryKey, String> getSummaryCache() {
+        return summaryCache;
+    }
+    
+    // Intake logged across all users since startup (clearing a day does not subtract it)
+    public double getTotalIntake(Nutrient nutrient) {
+        return totalIntake[nutrient.ordinal()].sum();
+    }
+    
+    public long getLoggedEntryCount() {
+        return loggedEntries.sum();
+    }
+}
+
+// Minimal JSON Writer
+class JsonWriter {
+    private final StringBuilder sb = new StringBuilder();
+    private boolean needsComma;
+    
+    public JsonWriter beginObject() { separator(); sb.append('{'); needsComma = false; return this; }
+    public JsonWriter endObject() { sb.append('}'); needsComma = true; return this; }
+    public JsonWriter beginArray() { separator(); sb.append('['); needsComma = false; return this; }
+    public JsonWriter endArray() { sb.append(']'); needsComma = true; return this; }
+    
+    public JsonWriter name(String name) {
+        separator();
+        appendString(name);
+        sb.append(':');
+        needsComma = false;
+        return this;
+    }
+    
+    public JsonWriter value(String value) {
+        separator();
+        if (value == null) {
+            sb.append("null");
+        } else {
+            appendString(value);
+        }
+        needsComma = true;
+        return this;
+    }
+    
+    public JsonWriter value(double value) {
+        separator();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            sb.append("null");
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            sb.append((long) value);
+        } else {
+            sb.append(Math.round(value * 100.0) / 100.0);
+        }
+        needsComma = true;
+        return this;
+    }
+    
+    public JsonWriter value(long value) { separator(); sb.append(value); needsComma = true; return this; }
+    public JsonWriter value(boolean value) { separator(); sb.append(value); needsComma = true; return this; }
+    
+    public JsonWriter nutrients(NutritionSummary summary) {
+        beginObject();
+        for (Nutrient nutrient : Nutrient.values()) {
+            name(nutrient.getKey()).value(summary.get(nutrient));
+        }
+        return endObject();
+    }
+    
+    // Totals indexed by Nutrient.ordinal()
+    public JsonWriter nutrients(double[] totals) {
+        beginObject();
+        for (Nutrient nutrient : Nutrient.values()) {
+            name(nutrient.getKey()).value(totals[nutrient.ordinal()]);
+        }
+        return endObject();
+    }
+    
+    public JsonWriter food(Food food) {
+        beginObject().name("id").value(food.getId()).name("name").value(food.getName());
+        name("per100g").beginObject();
+        for (Nutrient nutrient : Nutrient.values()) {
+            name(nutrient.getKey()).value(food.getNutrient(nutrient));
+        }
+        return endObject().endObject();
+    }
+    
+    private void separator() {
+        if (needsComma) {
+            sb.append(',');
+            needsComma = false;
+        }
+    }
+    
+    private void appendString(String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+    
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+}
+
+// Headless HTTP API Server
+class DietApiServer {
+    private static final int MAX_PROJECTION_DAYS = 730;
+    private static final int MAX_PROJECTION_PATHS = 1000;
+    // About a 10k-scenario, 32-path, one-year sweep per request
+    private static final long MAX_PROJECTION_PATH_DAYS = 120_000_000L;
+    // Largest single entry, in grams; anything above is a typo or an attempt to overflow the totals
+    private static final double MAX_ENTRY_GRAMS = 10_000;
+    private final NutritionTrackingService trackingService;
+    private final FoodDatabase foodDatabase;
+    private HttpServer server;
+    private ExecutorService executor;
+    private String executorDescription;
+    
+    public DietApiServer(NutritionTrackingService trackingService) {
+        this.trackingService = trackingService;
+        this.foodDatabase = trackingService.getFoodDatabase();
+    }
+    
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 4096);
+        server.createContext("/foods", this::handleFoods);
+        server.createContext("/recipes", this::handleRecipes);
+        server.createContext("/users/", this::handleUsers);
+        server.createContext("/cache", this::handleCacheStats);
+        server.createContext("/substitutes", this::handleSubstitutes);
+        server.createContext("/metrics", this::handleMetrics);
+        executor = createExecutor();
+        server.setExecutor(executor);
+        server.start();
+    }
+    
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+    
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+    
+    public String getExecutorDescription() {
+        return executorDescription;
+    }
+    
+    // One virtual thread per request where the runtime has them (JDK 21+), otherwise a bounded pool
+    private ExecutorService createExecutor() {
+        try {
+            ExecutorService virtual = (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            executorDescription = "virtual threads";
+            return virtual;
+        } catch (ReflectiveOperationException e) {
+            int threads = Runtime.getRuntime().availableProcessors() * 4;
+            executorDescription = threads + " platform threads";
+            return Executors.newFixedThreadPool(threads);
+        }
+    }
+    
+    // GET /foods?name=banana
+    // PUT /foods?name=kale&calories=49&protein=4.3&carbs=8.8&fat=0.9&vitaminC=120 adds or replaces a food
+    // PATCH /foods?name=rice&iron=0.9 corrects individual nutrients
+    private void handleFoods(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            if (method.equals("PUT") || method.equals("PATCH")) {
+                updateFood(exchange, method.equals("PUT"), queryParams(exchange));
+                return;
+            }
+            if (!method.equals("GET")) {
+                sendError(exchange, 405, "Method not allowed");
+                return;
+            }
+            String name = queryParams(exchange).get("name");
+            if (name == null) {
+                sendError(exchange, 400, "Missing 'name' parameter");
+                return;
+            }
+            Food food = foodDatabase.getFood(name);
+            if (food == null) {
+                sendError(exchange, 404, "Food not found: " + name);
+                return;
+            }
+            send(exchange, 200, new JsonWriter().food(food).toString());
+        } catch (NumberFormatException e) {
+            sendError(exchange, 400, "Invalid number: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (RuntimeException e) {
+            sendError(exchange, 500, e.toString());
+        }
+    }
+    
+    // Responds once the new catalog version is published
+    private void updateFood(HttpExchange exchange, boolean replace, Map<String, String> params) throws IOException {
+        String name = params.get("name");
+        if (name == null || name.isBlank()) {
+            sendError(exchange, 400, "Missing 'name' parameter");
+            return;
+        }
+        // The catalog stores trimmed names, so every lookup below uses the same form
+        name = name.trim();
+        FoodCatalogDelta delta = new FoodCatalogDelta();
+        Food food = replace ? new Food(name, 0, 0, 0, 0) : null;
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            if (param.getKey().equals("name")) {
+                continue;
+            }
+            Nutrient nutrient = requireNutrient(param.getKey());
+            double value = Double.parseDouble(param.getValue());
+            if (value < 0 || Double.isNaN(value) || Double.isInfinite(value)) {
+                sendError(exchange, 400, "'" + param.getKey() + "' must be a non-negative number");
+                return;
+            }
+            if (replace) {
+                food.setNutrient(nutrient, value);
+            } else {
+                delta.correct(name, nutrient, value);
+            }
+        }
+        if (replace) {
+            delta.put(food);
+        } else if (delta.isEmpty()) {
+            sendError(exchange, 400, "No nutrients to correct");
+            return;
+        } else if (foodDatabase.getRecipe(name) != null) {
+            sendError(exchange, 400, name + " is a recipe; update it with PUT /recipes");
+            return;
+        }
+        FoodCatalogSnapshot snapshot;
+        try {
+            snapshot = foodDatabase.update(delta).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IllegalArgumentException) {
+                sendError(exchange, 404, e.getCause().getMessage());
+                return;
+            }
+            throw e;
+        }
+        send(exchange, replace ? 201 : 200, new JsonWriter().beginObject()
+            .name("version").value(snapshot.getVersion())
+            .name("food").food(snapshot.getFood(name))
+            .endObject().toString());
+    }
+    
+    // GET /recipes?name=stir fry
+    // PUT /recipes?name=stir fry&ingredients=chicken breast:150,rice:100,broccoli:120&servings=2&yield=0.9
+    // Ingredients may be recipes themselves; yield is the cooked weight over the raw weight
+    private void handleRecipes(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            Map<String, String> params = queryParams(exchange);
+            String name = params.get("name");
+            if (name == null || name.isBlank()) {
+                sendError(exchange, 400, "Missing 'name' parameter");
+                return;
+            }
+            if (method.equals("GET")) {
+                FoodCatalogSnapshot snapshot = foodDatabase.getSnapshot();
+                Recipe recipe = snapshot.getRecipe(name);
+                if (recipe == null) {
+                    sendError(exchange, 404, "Recipe not found: " + name);
+                    return;
+                }
+                send(exchange, 200, recipeJson(new JsonWriter(), recipe, snapshot.getFood(name)).toString());
+                return;
+            }
+            if (!method.equals("PUT")) {
+                sendError(exchange, 405, "Method not allowed");
+                return;
+            }
+            String ingredients = params.get("ingredients");
+            if (ingredients == null || ingredients.isBlank()) {
+                sendError(exchange, 400, "Expected 'ingredients' as food:grams,food:grams");
+                return;
+            }
+            Recipe recipe = new Recipe(name.trim());
+            for (String ingredient : ingredients.split(",")) {
+                int colon = ingredient.lastIndexOf(':');
+                if (colon <= 0) {
+                    sendError(exchange, 400, "Expected food:grams, got '" + ingredient + "'");
+                    return;
+                }
+                recipe.add(ingredient.substring(0, colon).trim(), Double.parseDouble(ingredient.substring(colon + 1)));
+            }
+            if (params.containsKey("servings")) {
+                recipe.setServings(Integer.parseInt(params.get("servings")));
+            }
+            if (params.containsKey("yield")) {
+                recipe.setYieldFactor(Double.parseDouble(params.get("yield")));
+            }
+            FoodCatalogSnapshot snapshot;
+            try {
+                snapshot = foodDatabase.update(new FoodCatalogDelta().putRecipe(recipe)).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IllegalArgumentException) {
+                    sendError(exchange, 400, e.getCause().getMessage());
+                    return;
+                }
+                throw e;
+            }
+            send(exchange, 201, recipeJson(new JsonWriter().beginObject().name("version").value(snapshot.getVersion())
+                .name("recipe"), snapshot.getRecipe(name), snapshot.getFood(name)).endObject().toString());
+        } catch (NumberFormatException e) {
+            sendError(exchange, 400, "Invalid number: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (RuntimeException e) {
+            sendError(exchange, 500, e.toString());
+        }
+    }
+    
+    private static JsonWriter recipeJson(JsonWriter json, Recipe recipe, Food dish) {
+        json.beginObject()
+            .name("name").value(recipe.getName())
+            .name("servings").value(recipe.getServings())
+            .name("yieldFactor").value(recipe.getYieldFactor())
+            .name("rawGrams").value(recipe.getRawGrams())
+            .name("cookedGrams").value(recipe.getCookedGrams())
+            .name("servingGrams").value(recipe.getServingGrams())
+            .name("ingredients").beginArray();
+        for (int i = 0; i < recipe.getIngredientCount(); i++) {
+            json.beginObject()
+                .name("food").value(recipe.getIngredient(i))
+                .name("grams").value(recipe.getIngredientGrams(i))
+                .endObject();
+        }
+        json.endArray().name("per100g").beginObject();
+        for (Nutrient nutrient : Nutrient.values()) {
+            json.name(nutrient.getKey()).value(dish.getNutrient(nutrient));
+        }
+        json.endObject().name("perServing").beginObject();
+        for (Nutrient nutrient : Nutrient.values()) {
+            json.name(nutrient.getKey()).value(dish.getNutrient(nutrient) * recipe.getServingGrams() / 100);
+        }
+        return json.endObject().endObject();
+    }
+    
+    // GET /substitutes?food=salmon&k=5&focus=protein,omega3&max.fat=8&min.protein=15
+    private void handleSubstitutes(HttpExchange exchange) throws IOException {
+        try {
+            Map<String, String> params = queryParams(exchange);
+            String name = params.get("food");
+            Food food = name == null ? null : foodDatabase.getFood(name);
+            if (food == null) {
+                sendError(exchange, name == null ? 400 : 404, name == null ? "Missing 'food' parameter" : "Food not found: " + name);
+                return;
+            }
+            int k = Integer.parseInt(params.getOrDefault("k", "5"));
+            if (k < 1 || k > 100) {
+                sendError(exchange, 400, "'k' must be between 1 and 100");
+                return;
+            }
+            SubstitutionQuery query = new SubstitutionQuery();
+            for (Map.Entry<String, String> param : params.entrySet()) {
+                String key = param.getKey();
+                if (key.equals("focus")) {
+                    List<Nutrient> focus = new ArrayList<>();
+                    for (String nutrientName : param.getValue().split(",")) {
+                        focus.add(requireNutrient(nutrientName.trim()));
+                    }
+                    query.focusOn(focus.toArray(new Nutrient[0]));
+                } else if (key.startsWith("max.")) {
+                    query.atMost(requireNutrient(key.substring(4)), Double.parseDouble(param.getValue()));
+                } else if (key.startsWith("min.")) {
+                    query.atLeast(requireNutrient(key.substring(4)), Double.parseDouble(param.getValue()));
+                }
+            }
+            JsonWriter json = new JsonWriter().beginObject()
+                .name("food").value(food.getName())
+                .name("substitutes").beginArray();
+            for (Food substitute : foodDatabase.findSubstitutes(food, k, query)) {
+                json.food(substitute);
+            }
+            send(exchange, 200, json.endArray().endObject().toString());
+        } catch (NumberFormatException e) {
+            sendError(exchange, 400, "Invalid number: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (RuntimeException e) {
+            sendError(exchange, 500, e.toString());
+        }
+    }
+    
+    private static Nutrient requireNutrient(String name) {
+        Nutrient nutrient = Nutrient.fromKey(name);
+        if (nutrient == null) {
+            throw new IllegalArgumentException("Unknown nutrient: " + name);
+        }
+        return nutrient;
+    }
+    
+    // GET /cache
+    private void handleCacheStats(HttpExchange exchange) throws IOException {
+        JsonWriter json = new JsonWriter().beginObject();
+        cacheStats(json.name("recommendations"), trackingService.getRecommendationCache());
+        cacheStats(json.name("summaries"), trackingService.getSummaryCache());
+        send(exchange, 200, json.endObject().toString());
+    }
+    
+    // GET /metrics in the Prometheus text exposition format
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        StringBuilder out = new StringBuilder(4096);
+        Metrics.writePrometheus(out);
+        Metrics.gauge(out, "diet_users", "Users with a tracker", trackingService.getUserIds().size());
+        Metrics.gauge(out, "diet_catalog_version", "Published food catalog version", foodDatabase.getVersion());
+        Metrics.gauge(out, "diet_catalog_foods", "Foods in the current catalog version", foodDatabase.size());
+        Metrics.gauge(out, "diet_logged_entries", "Entries logged across all users since startup",
+            trackingService.getLoggedEntryCount());
+        Metrics.counter(out, "diet_intake_alerts_total", "Intake threshold alerts raised", trackingService.getAlertCount());
+        cacheMetrics(out, "recommendations", trackingService.getRecommendationCache());
+        cacheMetrics(out, "summaries", trackingService.getSummaryCache());
+        MealLog mealLog = trackingService.getMealLog();
+        if (mealLog != null) {
+            Metrics.counter(out, "diet_meal_log_syncs_total", "Meal log fsyncs", mealLog.getSyncCount());
+        }
+        byte[] bytes = out.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(bytes);
+        }
+    }
+    
+    private static void cacheMetrics(StringBuilder out, String cache, LruCache<?, ?> stats) {
+        String prefix = "diet_" + cache + "_cache_";
+        Metrics.gauge(out, prefix + "size", "Entries in the " + cache + " cache", stats.size());
+        Metrics.counter(out, prefix + "hits_total", "Hits in the " + cache + " cache", stats.getHitCount());
+        Metrics.counter(out, prefix + "misses_total", "Misses in the " + cache + " cache", stats.getMissCount());
+        Metrics.counter(out, prefix + "evictions_total", "Evictions from the " + cache + " cache", stats.getEvictionCount());
+    }
+    
+    private static void cacheStats(JsonWriter json, LruCache<?, ?> cache) {
+        json.beginObject()
+            .name("size").value(cache.size())
+            .name("maxSize").value(cache.getMaxSize())
+            .name("hits").value(cache.getHitCount())
+            .name("misses").value(cache.getMissCount())
+            .name("evictions").value(cache.getEvictionCount())
+            .name("expirations").value(cache.getExpirationCount())
+            .name("hitRate").value(cache.getHitRate())
+            .endObject();
+    }
+    
+    // /users/{id}/profile, /users/{id}/entries, /users/{id}/entries/last,
+    // /users/{id}/summary, /users/{id}/recommendations, /users/{id}/gaps, /users/{id}/days,
+    // /users/{id}/history, /users/{id}/windows
+    private void handleUsers(HttpExchange exchange) throws IOException {
+        try {
+            String[] parts = exchange.getRequestURI().getPath().split("/");
+            if (parts.length < 4 || parts[2].isEmpty()) {
+                sendError(exchange, 404, "Not found");
+                return;
+            }
+            String userId = URLDecoder.decode(parts[2], StandardCharsets.UTF_8);
+            String resource = parts.length == 4 ? parts[3] : parts[3] + "/" + parts[4];
+            String method = exchange.getRequestMethod();
+            Map<String, String> params = queryParams(exchange);
+            
+            switch (method + " " + resource) {
+                case "GET profile":
+                    sendProfile(exchange, trackingService.getProfile(userId));
+                    break;
+                case "PUT profile":
+                case "POST profile":
+                    updateProfile(exchange, trackingService.getProfile(userId), params);
+                    break;
+                case "POST entries":
+                    addEntry(exchange, userId, params);
+                    break;
+                case "DELETE entries/last":
+                    FoodEntry removed = trackingService.undoLastFood(userId);
+                    if (removed == null) {
+                        sendError(exchange, 404, "No entries to remove");
+                    } else {
+                        send(exchange, 200, new JsonWriter().beginObject()
+                            .name("removed").value(removed.getFood().getName())
+                            .name("grams").value(removed.getQuantity())
+                            .endObject().toString());
+                    }
+                    break;
+                case "DELETE entries":
+                    trackingService.clearDailyIntake(userId);
+                    send(exchange, 204, null);
+                    break;
+                case "GET summary":
+                    send(exchange, 200, trackingService.getSummaryReport(userId, ReportFormat.JSON));
+                    break;
+                case "GET recommendations":
+                    sendRecommendations(exchange, userId);
+                    break;
+                case "GET gaps":
+                    sendGaps(exchange, trackingService.analyzeGaps(userId));
+                    break;
+                case "POST days":
+                    LocalDate closed = params.containsKey("date") ? LocalDate.parse(params.get("date")) : LocalDate.now();
+                    send(exchange, 201, new JsonWriter().beginObject()
+                        .name("user").value(userId)
+                        .name("date").value(closed.toString())
+                        .name("totals").nutrients(trackingService.closeDay(userId, closed))
+                        .endObject().toString());
+                    break;
+                case "GET history":
+                    sendHistory(exchange, trackingService.getHistory(userId), params);
+                    break;
+                case "GET windows":
+                    sendIntakeWindows(exchange, trackingService.getIntakeWindows(userId, System.currentTimeMillis()));
+                    break;
+                case "GET projections":
+                    sendProjections(exchange, trackingService.getProfile(userId), params);
+                    break;
+                default:
+                    sendError(exchange, 404, "Not found");
+            }
+        } catch (NumberFormatException e) {
+            sendError(exchange, 400, "Invalid number: " + e.getMessage());
+        } catch (DateTimeException e) {
+            sendError(exchange, 400, "Invalid date: " + e.getMessage());
+        } catch (CompletionException e) {
+            sendError(exchange, 503, "Could not persist entry: " + e.getCause());
+        } catch (RuntimeException e) {
+            sendError(exchange, 500, e.toString());
+        }
+    }
+    
+    // Recipes can be logged by 'servings' instead of 'grams'
+    private void addEntry(HttpExchange exchange, String userId, Map<String, String> params) throws IOException {
+        String foodName = params.get("food");
+        String grams = params.get("grams");
+        String servings = params.get("servings");
+        if (foodName == null || (grams == null && servings == null)) {
+            sendError(exchange, 400, "Expected 'food' and 'grams' parameters");
+            return;
+        }
+        Food food = foodDatabase.getFood(foodName);
+        if (food == null) {
+            sendError(exchange, 404, "Food not found: " + foodName);
+            return;
+        }
+        String parameter = grams != null ? "'grams'" : "'servings'";
+        double amount = Double.parseDouble(grams != null ? grams : servings);
+        if (!(amount > 0) || Double.isInfinite(amount)) {
+            sendError(exchange, 400, parameter + " must be a positive number");
+            return;
+        }
+        double quantity = amount;
+        if (grams == null) {
+            Recipe recipe = foodDatabase.getRecipe(foodName);
+            if (recipe == null) {
+                sendError(exchange, 400, "'servings' only applies to recipes; use 'grams' for " + food.getName());
+                return;
+            }
+            quantity = amount * recipe.getServingGrams();
+        }
+        if (quantity > MAX_ENTRY_GRAMS) {
+            sendError(exchange, 400, parameter + " must come to at most " + (int) MAX_ENTRY_GRAMS + " g per entry");
+            return;
+        }
+        long now = System.currentTimeMillis();
+        MealSlot mealSlot = MealSlot.forMinuteOfDay(DailyNutritionTracker.minuteOfDay(now));
+        if (params.containsKey("meal")) {
+            mealSlot = MealSlot.fromKey(params.get("meal"));
+            if (mealSlot == null) {
+                sendError(exchange, 400, "'meal' must be breakfast, lunch, dinner or snack");
+                return;
+            }
+        }
+        trackingService.addFood(userId, food, quantity, now, mealSlot).join();
+        send(exchange, 201, new JsonWriter().beginObject()
+            .name("food").value(food.getName())
+            .name("grams").value(quantity)
+            .name("meal").value(mealSlot.getKey())
+            .name("calories").value(food.getCalories() * quantity / 100.0)
+            .endObject().toString());
+    }
+    
+    // GET /users/{id}/history?from=2024-01-01&to=2024-03-31&bucket=day|week|month
+    // Each bucket is one O(log n) range query on the history, not a rescan of its days
+    private void sendHistory(HttpExchange exchange, NutritionHistory history, Map<String, String> params) throws IOException {
+        LocalDate to = params.containsKey("to") ? LocalDate.parse(params.get("to")) : LocalDate.now();
+        LocalDate from = params.containsKey("from") ? LocalDate.parse(params.get("from")) : to.minusDays(29);
+        String bucket = params.getOrDefault("bucket", "week");
+        if (from.isAfter(to)) {
+            sendError(exchange, 400, "'from' must not be after 'to'");
+            return;
+        }
+        if (!bucket.equals("day") && !bucket.equals("week") && !bucket.equals("month")) {
+            sendError(exchange, 400, "'bucket' must be day, week or month");
+            return;
+        }
+        JsonWriter json = new JsonWriter().beginObject()
+            .name("from").value(from.toString())
+            .name("to").value(to.toString())
+            .name("days").value(history.getRecordedDays(from, to))
+            .name("totals").nutrients(history.getTotal(from, to))
+            .name("averages").nutrients(history.getAverage(from, to))
+            .name("buckets").beginArray();
+        LocalDate start = from;
+        while (!start.isAfter(to)) {
+            LocalDate next = bucket.equals("day") ? start.plusDays(1)
+                : bucket.equals("week") ? start.plusWeeks(1) : start.plusMonths(1);
+            LocalDate end = next.minusDays(1).isAfter(to) ? to : next.minusDays(1);
+            json.beginObject()
+                .name("from").value(start.toString())
+                .name("to").value(end.toString())
+                .name("days").value(history.getRecordedDays(start, end))
+                .name("averages").nutrients(history.getAverage(start, end))
+                .endObject();
+            start = next;
+        }
+        send(exchange, 200, json.endArray().endObject().toString());
+    }
+    
+    // All parameters are parsed and validated before any is applied, so a rejected update
+    // leaves the profile untouched
+    private void updateProfile(HttpExchange exchange, UserProfile profile, Map<String, String> params) throws IOException {
+        Integer age;
+        Double weight;
+        Double height;
+        Integer activity;
+        try {
+            age = params.containsKey("age") ? Integer.valueOf(params.get("age").trim()) : null;
+            weight = params.containsKey("weight") ? Double.valueOf(params.get("weight")) : null;
+            height = params.containsKey("height") ? Double.valueOf(params.get("height")) : null;
+            activity = params.containsKey("activity") ? Integer.valueOf(params.get("activity").trim()) : null;
+        } catch (NumberFormatException e) {
+            sendError(exchange, 400, "Invalid number: " + e.getMessage());
+            return;
+        }
+        if (age != null && age <= 0) {
+            sendError(exchange, 400, "'age' must be positive");
+            return;
+        }
+        if (weight != null && !(weight > 0 && weight < Double.POSITIVE_INFINITY)) {
+            sendError(exchange, 400, "'weight' must be a positive number");
+            return;
+        }
+        if (height != null && !(height > 0 && height < Double.POSITIVE_INFINITY)) {
+            sendError(exchange, 400, "'height' must be a positive number");
+            return;
+        }
+        Character gender = null;
+        if (params.containsKey("gender")) {
+            String value = params.get("gender").trim().toUpperCase(Locale.ROOT);
+            if (!value.equals("M") && !value.equals("F")) {
+                sendError(exchange, 400, "'gender' must be M or F");
+                return;
+            }
+            gender = value.charAt(0);
+        }
+        if (activity != null && (activity < 1 || activity > 5)) {
+            sendError(exchange, 400, "'activity' must be between 1 and 5");
+            return;
+        }
+        synchronized (profile) {
+            if (age != null) profile.setAge(age);
+            if (gender != null) profile.setGender(gender);
+            if (weight != null) profile.setWeight(weight);
+            if (height != null) profile.setHeight(height);
+            if (activity != null) profile.setActivityLevel(activity);
+        }
+        sendProfile(exchange, profile);
+    }
+    
+    private void sendProfile(HttpExchange exchange, UserProfile profile) throws IOException {
+        JsonWriter json = new JsonWriter().beginObject();
+        synchronized (profile) {
+            json.name("age").value(profile.getAge())
+                .name("gender").value(profile.getGender() == 0 ? null : String.valueOf(profile.getGender()))
+                .name("weight").value(profile.getWeight())
+                .name("height").value(profile.getHeight())
+                .name("activityLevel").value(profile.getActivityLevel())
+                .name("complete").value(profile.isProfileComplete());
+            if (profile.isProfileComplete()) {
+                json.name("bmr").value(profile.calculateBMR())
+                    .name("dailyCalories").value(profile.calculateDailyCalories())
+                    .name("bmi").value(profile.calculateBMI())
+                    .name("bmiCategory").value(profile.getBMICategory());
+            }
+        }
+        send(exchange, 200, json.endObject().toString());
+    }
+    
+    private void sendGaps(HttpExchange exchange, NutrientGapAnalyzer.GapReport report) throws IOException {
+        JsonWriter json = new JsonWriter().beginObject().name("gaps").beginArray();
+        for (NutrientGap gap : report.getGaps()) {
+            json.beginObject()
+                .name("nutrient").value(gap.getNutrient().getKey())
+                .name("intake").value(gap.getIntake())
+                .name("target").value(gap.getTarget())
+                .name("percent").value(gap.getPercentOfTarget())
+                .name("deficit").value(gap.getDeficit())
+                .endObject();
+        }
+        json.endArray().name("suggestions").beginArray();
+        for (TopUpSuggestion suggestion : report.getSuggestions()) {
+            json.beginObject()
+                .name("food").value(suggestion.getFood().getName())
+                .name("grams").value(suggestion.getGrams())
+                .name("closes").beginArray();
+            for (Nutrient nutrient : suggestion.getCloses()) {
+                json.value(nutrient.getKey());
+            }
+            json.endArray().endObject();
+        }
+        send(exchange, 200, json.endArray().endObject().toString());
+    }
+    
+    // Per-meal totals against each meal's share of the daily calories, the rolling 3 and
+    // 24 hour totals, and the most recent alerts
+    private void sendIntakeWindows(HttpExchange exchange, IntakeWindows.Snapshot windows) throws IOException {
+        double dailyCalories = windows.getDailyCalories();
+        JsonWriter json = new JsonWriter().beginObject().name("meals").beginArray();
+        for (MealSlot slot : MealSlot.values()) {
+            json.beginObject().name("meal").value(slot.getKey());
+            if (dailyCalories > 0) {
+                double budget = slot.getCalorieTarget(dailyCalories);
+                json.name("calorieBudget").value(budget)
+                    .name("percentOfBudget").value(windows.getMealCalories(slot) / budget * 100);
+            }
+            json.name("totals").nutrients(windows.getMealTotals(slot)).endObject();
+        }
+        json.endArray()
+            .name(IntakeWindow.ROLLING_3H.getKey()).nutrients(windows.getRolling3h())
+            .name(IntakeWindow.ROLLING_24H.getKey()).nutrients(windows.getRolling24h())
+            .name("alerts").beginArray();
+        for (IntakeAlert alert : windows.getAlerts()) {
+            json.beginObject()
+                .name("window").value(alert.getRule().getWindow().getKey())
+                .name("meal").value(alert.getMealSlot().getKey())
+                .name("nutrient").value(alert.getRule().getNutrient().getKey())
+                .name("value").value(alert.getValue())
+                .name("threshold").value(alert.getThreshold())
+                .name("time").value(Instant.ofEpochMilli(alert.getTimeMillis()).toString())
+                .name("message").value(alert.getMessage())
+                .endObject();
+        }
+        send(exchange, 200, json.endArray().endObject().toString());
+    }
+    
+    // What-if sweep: every combination of the comma-separated deficits, activity levels and
+    // adherence means. A fixed default seed keeps repeated requests comparable.
+    private void sendProjections(HttpExchange exchange, UserProfile profile, Map<String, String> params) throws IOException {
+        int days = Integer.parseInt(params.getOrDefault("days", "182"));
+        int paths = Integer.parseInt(params.getOrDefault("paths", "200"));
+        if (days < 1 || days > MAX_PROJECTION_DAYS || paths < 1 || paths > MAX_PROJECTION_PATHS) {
+            sendError(exchange, 400, "'days' must be 1-" + MAX_PROJECTION_DAYS + " and 'paths' 1-" + MAX_PROJECTION_PATHS);
+            return;
+        }
+        double[] deficits = parseDoubles(params.getOrDefault("deficits", "-500,0,250,500,750,1000"));
+        double[] adherence = parseDoubles(params.getOrDefault("adherence", "0.9"));
+        double spread = Double.parseDouble(params.getOrDefault("spread", "0.1"));
+        long seed = Long.parseLong(params.getOrDefault("seed", "42"));
+        boolean weekly = Boolean.parseBoolean(params.get("weekly"));
+        WeightTrajectorySimulator simulator;
+        int[] levels;
+        synchronized (profile) {
+            if (!profile.isProfileComplete()) {
+                sendError(exchange, 409, "Profile is incomplete");
+                return;
+            }
+            levels = params.containsKey("activity") ? parseInts(params.get("activity"))
+                : new int[] {profile.getActivityLevel()};
+            simulator = new WeightTrajectorySimulator(profile, days, paths, seed);
+        }
+        if (params.containsKey("goal")) {
+            simulator.setGoalWeight(Double.parseDouble(params.get("goal")));
+        }
+        long scenarioCount = (long) deficits.length * levels.length * adherence.length;
+        if (scenarioCount * paths * days > MAX_PROJECTION_PATH_DAYS) {
+            sendError(exchange, 400, "Too many scenarios: " + scenarioCount + " x " + paths + " paths x " + days + " days");
+            return;
+        }
+        List<WeightScenario> scenarios;
+        try {
+            scenarios = WeightScenario.grid(deficits, levels, adherence, spread);
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+            return;
+        }
+        JsonWriter json = new JsonWriter().beginObject()
+            .name("days").value(days)
+            .name("paths").value(paths)
+            .name("seed").value(seed)
+            .name("projections").beginArray();
+        for (WeightProjection projection : simulator.project(scenarios)) {
+            WeightScenario scenario = projection.getScenario();
+            json.beginObject()
+                .name("deficit").value(scenario.getDailyDeficit())
+                .name("activity").value(scenario.getActivityLevel())
+                .name("adherence").value(scenario.getMeanAdherence())
+                .name("spread").value(scenario.getAdherenceSpread())
+                .name("targetCalories").value(projection.getTargetIntake())
+                .name("meanFinal").value(projection.getMeanFinalWeight())
+                .name("p10").value(projection.getFinalP10())
+                .name("median").value(projection.getFinalMedian())
+                .name("p90").value(projection.getFinalP90())
+                .name("goalProbability").value(projection.getGoalProbability());
+            if (weekly) {
+                json.name("weeklyMedian").beginArray();
+                for (double weight : projection.getWeeklyMedian()) {
+                    json.value(weight);
+                }
+                json.endArray();
+            }
+            json.endObject();
+        }
+        send(exchange, 200, json.endArray().endObject().toString());
+    }
+    
+    private static double[] parseDoubles(String list) {
+        String[] parts = list.split(",");
+        double[] values = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Double.parseDouble(parts[i].trim());
+        }
+        return values;
+    }
+    
+    private static int[] parseInts(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+    
+    private void sendRecommendations(HttpExchange exchange, String userId) throws IOException {
+        Map<MealSlot, List<MealPlan>> mealPlans = trackingService.getRecommendations(userId);
+        if (mealPlans == null) {
+            sendError(exchange, 409, "Profile is incomplete");
+            return;
+        }
+        UserProfile profile = trackingService.getProfile(userId);
+        double dailyCalories;
+        synchronized (profile) {
+            dailyCalories = profile.calculateDailyCalories();
+        }
+        JsonWriter json = new JsonWriter().beginObject()
+            .name("dailyCalories").value(dailyCalories)
+            .name("meals").beginArray();
+        for (MealSlot slot : MealSlot.values()) {
+            json.beginObject()
+                .name("meal").value(slot.getDisplayName())
+                .name("share").value(slot.getCalorieShare())
+                .name("calories").value(slot.getCalorieTarget(dailyCalories))
+                .name("options").beginArray();
+            for (MealPlan plan : mealPlans.get(slot)) {
+                json.beginObject().name("items").beginArray();
+                for (int i = 0; i < plan.getFoods().length; i++) {
+                    json.beginObject()
+                        .name("food").value(plan.getFoods()[i].getName())
+                        .name("grams").value(plan.getGrams()[i])
+                        .endObject();
+                }
+                json.endArray().name("totals").beginObject();
+                for (Nutrient nutrient : new Nutrient[] {Nutrient.CALORIES, Nutrient.PROTEIN, Nutrient.CARBS, Nutrient.FAT}) {
+                    json.name(nutrient.getKey()).value(plan.getTotal(nutrient));
+                }
+                json.endObject().endObject();
+            }
+            json.endArray().endObject();
+        }
+        send(exchange, 200, json.endArray().endObject().toString());
+    }
+    
+    private static Map<String, String> queryParams(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+    
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        send(exchange, status, new JsonWriter().beginObject().name("error").value(message).endObject().toString());
+    }
+    
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
+
+// Load Test Client for the HTTP API
+class DietApiLoadTest {
+    private static final String[] FOODS = {"apple", "banana", "rice", "salmon", "oats", "egg", "milk"};
+    
+    // Usage: java dietplanner.DietApiLoadTest [baseUrl] [concurrency] [requests] [users]
+    public static void main(String[] args) throws Exception {
+        String baseUrl = args.length > 0 ? args[0] : "http://localhost:8080";
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int totalRequests = args.length > 2 ? Integer.parseInt(args[2]) : 100_000;
+        int users = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        
+        HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .executor(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()))
+            .build();
+        
+        // Give every user a profile so the recommendation endpoint has something to compute
+        for (int u = 0; u < users; u++) {
+            client.send(HttpRequest.newBuilder(URI.create(baseUrl + "/users/u" + u
+                + "/profile?age=30&gender=F&weight=65&height=168&activity=3"))
+                .PUT(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.discarding());
+        }
+        
+        long[] latencies = new long[totalRequests];
+        AtomicInteger errors = new AtomicInteger();
+        Semaphore inFlight = new Semaphore(concurrency);
+        CountDownLatch done = new CountDownLatch(totalRequests);
+        Random random = new Random(42);
+        
+        long start = System.nanoTime();
+        for (int i = 0; i < totalRequests; i++) {
+            HttpRequest request = nextRequest(baseUrl, random, users);
+            inFlight.acquire();
+            final int index = i;
+            long sent = System.nanoTime();
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, failure) -> {
+                    latencies[index] = System.nanoTime() - sent;
+                    if (failure != null || response.statusCode() >= 400) {
+                        errors.incrementAndGet();
+                    }
+                    inFlight.release();
+                    done.countDown();
+                });
+        }
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        
+        Arrays.sort(latencies);
+        System.out.printf("Requests: %d, concurrency: %d, errors: %d%n", totalRequests, concurrency, errors.get());
+        System.out.printf("Throughput: %.0f req/s%n", totalRequests / seconds);
+        System.out.printf("Latency ms - p50: %.2f  p90: %.2f  p99: %.2f  p99.9: %.2f  max: %.2f%n",
+            percentile(latencies, 0.50), percentile(latencies, 0.90), percentile(latencies, 0.99),
+            percentile(latencies, 0.999), latencies[latencies.length - 1] / 1e6);
+        System.exit(0);
+    }
+    
+    // Mix of 60% entry logging, 20% summaries, 10% food lookups, 10% recommendations
+    private static HttpRequest nextRequest(String baseUrl, Random random, int users) {
+        String user = "u" + random.nextInt(users);
+        int kind = random.nextInt(10);
+        if (kind < 6) {
+            String food = FOODS[random.nextInt(FOODS.length)];
+            return HttpRequest.newBuilder(URI.create(baseUrl + "/users/" + user + "/entries?food=" + food
+                + "&grams=" + (50 + random.nextInt(200)))).POST(HttpRequest.BodyPublishers.noBody()).build();
+        } else if (kind < 8) {
+            return HttpRequest.newBuilder(URI.create(baseUrl + "/users/" + user + "/summary")).GET().build();
+        } else if (kind < 9) {
+            return HttpRequest.newBuilder(URI.create(baseUrl + "/foods?name="
+                + FOODS[random.nextInt(FOODS.length)])).GET().build();
+        }
+        return HttpRequest.newBuilder(URI.create(baseUrl + "/users/" + user + "/recommendations")).GET().build();
+    }
+    
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+}
+
+// Food Name Search Index
+class FoodSearchIndex {
+    // Characters are folded into 6-bit codes so a trigram packs into 18 bits
+    private static final int CHAR_BITS = 6;
+    private static final int PAD = 37;
+    private static final int TRIGRAM_SPACE = 1 << (3 * CHAR_BITS);
+    private static final int MAX_LENGTH = 255;
+    
+    private final String[] names;
+    // Ids ordered by name, for binary-searched prefix ranges
+    private final int[] sortedIds;
+    // Fuzzy matching numbers names by (length, id) so each posting list is grouped by
+    // name length; docs of length L are [lengthStart[L], lengthStart[L + 1])
+    private final int[] docToId;
+    private final int[] lengthStart = new int[MAX_LENGTH + 2];
+    // postings[trigram] = ascending doc numbers of the names containing it
+    private final int[][] postings = new int[TRIGRAM_SPACE][];
+    
+    // Trigram overlap per candidate doc for one search, open-addressed and sized to the
+    // posting hits that can add candidates rather than to the whole catalog
+    private static final class OverlapCounts {
+        final int[] docs;
+        final int[] counts;
+        private final int mask;
+        
+        OverlapCounts(int hits) {
+            // At most half full
+            int capacity = Integer.highestOneBit(Math.max(hits, 4) * 2 - 1) * 2;
+            docs = new int[capacity];
+            counts = new int[capacity];
+            mask = capacity - 1;
+            Arrays.fill(docs, -1);
+        }
+        
+        // Slot holding doc, or -1 if it was never added
+        int find(int doc) {
+            for (int slot = mix(doc) & mask; ; slot = (slot + 1) & mask) {
+                if (docs[slot] == doc) {
+                    return slot;
+                }
+                if (docs[slot] < 0) {
+                    return -1;
+                }
+            }
+        }
+        
+        // Slot holding doc, claiming an empty one (count 0) if it is new
+        int add(int doc) {
+            for (int slot = mix(doc) & mask; ; slot = (slot + 1) & mask) {
+                if (docs[slot] == doc) {
+                    return slot;
+                }
+                if (docs[slot] < 0) {
+                    docs[slot] = doc;
+                    return slot;
+                }
+            }
+        }
+        
+        private static int mix(int doc) {
+            return doc * 0x9E3779B9 >>> 16;
+        }
+    }
+    
+    public FoodSearchIndex(String[] names) {
+        this.names = names;
+        
+        Integer[] order = new Integer[names.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> names[a].compareTo(names[b]));
+        sortedIds = new int[names.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedIds[i] = order[i];
+        }
+        
+        // Counting sort of ids by name length
+        for (String name : names) {
+            lengthStart[clampLength(name.length()) + 1]++;
+        }
+        for (int length = 1; length < lengthStart.length; length++) {
+            lengthStart[length] += lengthStart[length - 1];
+        }
+        docToId = new int[names.length];
+        int[] next = Arrays.copyOf(lengthStart, lengthStart.length);
+        for (int id = 0; id < names.length; id++) {
+            docToId[next[clampLength(names[id].length())]++] = id;
+        }
+        
+        // Two passes: size every posting list, then fill it
+        int[] sizes = new int[TRIGRAM_SPACE];
+        for (String name : names) {
+            for (int trigram : distinctTrigrams(name)) {
+                sizes[trigram]++;
+            }
+        }
+        for (int t = 0; t < TRIGRAM_SPACE; t++) {
+            if (sizes[t] > 0) {
+                postings[t] = new int[sizes[t]];
+                sizes[t] = 0;
+            }
+        }
+        for (int doc = 0; doc < docToId.length; doc++) {
+            for (int trigram : distinctTrigrams(names[docToId[doc]])) {
+                postings[trigram][sizes[trigram]++] = doc;
+            }
+        }
+    }
+    
+    public int size() {
+        return names.length;
+    }
+    
+    public int[] prefixSearch(String prefix, int limit) {
+        int low = 0;
+        int high = sortedIds.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (names[sortedIds[mid]].compareTo(prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int end = low;
+        while (end < sortedIds.length && end - low < limit && names[sortedIds[end]].startsWith(prefix)) {
+            end++;
+        }
+        return Arrays.copyOfRange(sortedIds, low, end);
+    }
+    
+    // Tries one edit first and only widens to two when nothing is that close
+    public int[] fuzzySearch(String query, int limit) {
+        if (query.isEmpty() || limit <= 0) {
+            return new int[0];
+        }
+        int[] result = fuzzySearch(query, limit, 1);
+        if (result.length == 0 && query.length() > 4) {
+            result = fuzzySearch(query, limit, 2);
+        }
+        return result;
+    }
+    
+    // Candidates must have a length within maxEdits of the query and share enough
+    // trigrams with it, then they are ranked by bounded Levenshtein distance
+    private int[] fuzzySearch(String query, int limit, int maxEdits) {
+        int[] queryTrigrams = distinctTrigrams(query);
+        // Each edit destroys at most three trigrams
+        int minOverlap = Math.max(1, queryTrigrams.length - 3 * maxEdits);
+        int docFrom = lengthStart[clampLength(query.length() - maxEdits)];
+        int docTo = lengthStart[clampLength(query.length() + maxEdits) + 1];
+        
+        // Each list is narrowed to [from[l], to[l]), the slice inside the length window
+        int[][] lists = new int[queryTrigrams.length][];
+        int[] from = new int[queryTrigrams.length];
+        int[] to = new int[queryTrigrams.length];
+        int listCount = 0;
+        for (int trigram : queryTrigrams) {
+            int[] list = postings[trigram];
+            if (list == null) {
+                continue;
+            }
+            int start = lowerBound(list, 0, list.length, docFrom);
+            int end = lowerBound(list, start, list.length, docTo);
+            if (start < end) {
+                lists[listCount] = list;
+                from[listCount] = start;
+                to[listCount] = end;
+                listCount++;
+            }
+        }
+        if (listCount < minOverlap) {
+            return new int[0];
+        }
+        // Order the lists by slice length (insertion sort - there are only a few dozen)
+        int[] bySize = new int[listCount];
+        for (int l = 0; l < listCount; l++) {
+            int pos = l;
+            while (pos > 0 && to[bySize[pos - 1]] - from[bySize[pos - 1]] > to[l] - from[l]) {
+                bySize[pos] = bySize[pos - 1];
+                pos--;
+            }
+            bySize[pos] = l;
+        }
+        
+        // A name sharing minOverlap trigrams must appear in one of the shortest
+        // (listCount - minOverlap + 1) lists, so only those generate candidates
+        int scanned = listCount - minOverlap + 1;
+        int hits = 0;
+        for (int k = 0; k < scanned; k++) {
+            hits += to[bySize[k]] - from[bySize[k]];
+        }
+        OverlapCounts overlaps = new OverlapCounts(hits);
+        int[] counts = overlaps.counts;
+        // Slots of the candidates still in the running
+        int[] touched = new int[Math.min(hits, 64)];
+        int touchedCount = 0;
+        for (int k = 0; k < scanned; k++) {
+            int l = bySize[k];
+            int[] list = lists[l];
+            for (int i = from[l]; i < to[l]; i++) {
+                int slot = overlaps.add(list[i]);
+                if (counts[slot]++ == 0) {
+                    if (touchedCount == touched.length) {
+                        touched = Arrays.copyOf(touched, touchedCount * 2);
+                    }
+                    touched[touchedCount++] = slot;
+                }
+            }
+        }
+        
+        // The remaining, longer lists only confirm candidates; any candidate that can
+        // no longer reach minOverlap is dropped before the next list is checked
+        for (int k = scanned; k < listCount && touchedCount > 0; k++) {
+            int remaining = listCount - k;
+            int kept = 0;
+            for (int i = 0; i < touchedCount; i++) {
+                int slot = touched[i];
+                if (counts[slot] + remaining >= minOverlap) {
+                    touched[kept++] = slot;
+                } else {
+                    counts[slot] = 0;
+                }
+            }
+            touchedCount = kept;
+            int l = bySize[k];
+            int[] list = lists[l];
+            if ((long) touchedCount * 16 < to[l] - from[l]) {
+                for (int i = 0; i < touchedCount; i++) {
+                    if (Arrays.binarySearch(list, from[l], to[l], overlaps.docs[touched[i]]) >= 0) {
+                        counts[touched[i]]++;
+                    }
+                }
+            } else {
+                for (int i = from[l]; i < to[l]; i++) {
+                    int slot = overlaps.find(list[i]);
+                    if (slot >= 0 && counts[slot] > 0) {
+                        counts[slot]++;
+                    }
+                }
+            }
+        }
+        
+        // Keep the best `limit` matches ordered by (distance, id)
+        long[] best = new long[limit];
+        int bestCount = 0;
+        for (int i = 0; i < touchedCount; i++) {
+            int slot = touched[i];
+            if (counts[slot] < minOverlap) {
+                continue;
+            }
+            int id = docToId[overlaps.docs[slot]];
+            int bound = bestCount == limit ? (int) (best[limit - 1] >>> 32) : maxEdits;
+            int distance = boundedLevenshtein(query, names[id], bound);
+            if (distance > bound) {
+                continue;
+            }
+            long key = ((long) distance << 32) | id;
+            if (bestCount == limit && key >= best[limit - 1]) {
+                continue;
+            }
+            int pos = bestCount == limit ? limit - 1 : bestCount++;
+            while (pos > 0 && best[pos - 1] > key) {
+                best[pos] = best[pos - 1];
+                pos--;
+            }
+            best[pos] = key;
+        }
+        
+        int[] result = new int[bestCount];
+        for (int i = 0; i < bestCount; i++) {
+            result[i] = (int) best[i];
+        }
+        return result;
+    }
+    
+    private static int lowerBound(int[] list, int from, int to, int value) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (list[mid] < value) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+    
+    private static int clampLength(int length) {
+        return Math.max(0, Math.min(length, MAX_LENGTH));
+    }
+    
+    // Returns the edit distance, or bound + 1 as soon as it must exceed bound
+    static int boundedLevenshtein(String a, String b, int bound) {
+        if (Math.abs(a.length() - b.length()) > bound) {
+            return bound + 1;
+        }
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = i;
+            char ca = a.charAt(i - 1);
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = ca == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > bound) {
+                return bound + 1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+    
+    private static int[] distinctTrigrams(String name) {
+        // Pad both ends so prefixes and suffixes get their own trigrams
+        int length = Math.max(name.length(), 1);
+        int[] trigrams = new int[length];
+        for (int i = 0; i < length; i++) {
+            trigrams[i] = (paddedCode(name, i) << (2 * CHAR_BITS))
+                | (paddedCode(name, i + 1) << CHAR_BITS) | paddedCode(name, i + 2);
+        }
+        Arrays.sort(trigrams);
+        int distinct = 0;
+        for (int i = 0; i < length; i++) {
+            if (i == 0 || trigrams[i] != trigrams[i - 1]) {
+                trigrams[distinct++] = trigrams[i];
+            }
+        }
+        return Arrays.copyOf(trigrams, distinct);
+    }
+    
+    // Code of position i in PAD + name + PAD
+    private static int paddedCode(String name, int i) {
+        return i == 0 || i > name.length() ? PAD : charCode(name.charAt(i - 1));
+    }
+    
+    private static int charCode(char c) {
+        if (c >= 'a' && c <= 'z') return c - 'a' + 1;
+        if (c >= '0' && c <= '9') return c - '0' + 27;
+        if (c == ' ') return PAD;
+        return 38 + (c % 26);
+    }
+}
+
+// Micro-benchmark for FoodSearchIndex over a synthetic catalog
+class FoodSearchBenchmark {
+    private static final String[] ADJECTIVES = {"raw", "boiled", "baked", "grilled", "fried", "steamed",
+        "roasted", "dried", "canned", "frozen", "smoked", "pickled", "fresh", "organic", "salted", "sweetened"};
+    private static final String[] BASES = {"apple", "banana", "chicken breast", "rice", "broccoli", "salmon",
+        "spinach", "oats", "egg", "milk", "almonds", "sweet potato", "beef", "tuna", "lentils", "yogurt",
+        "cheese", "bread", "pasta", "carrot", "tomato", "potato", "quinoa", "tofu", "peanut butter", "avocado"};
+    private static final String[] STYLES = {"with skin", "without skin", "lean", "whole", "low fat", "plain",
+        "unsalted", "in water", "in oil", "enriched", "brown", "white", "wild", "mixed", "sliced", "diced"};
+    
+    // Usage: java dietplanner.FoodSearchBenchmark [items] [queries]
+    public static void main(String[] args) {
+        int items = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        
+        Random random = new Random(7);
+        String[] names = new String[items];
+        for (int i = 0; i < items; i++) {
+            names[i] = ADJECTIVES[random.nextInt(ADJECTIVES.length)] + " " + BASES[random.nextInt(BASES.length)]
+                + " " + STYLES[random.nextInt(STYLES.length)] + " " + Integer.toString(i, 36);
+        }
+        
+        long buildStart = System.nanoTime();
+        FoodSearchIndex index = new FoodSearchIndex(names);
+        System.out.printf("Indexed %d names in %.0f ms%n", items, (System.nanoTime() - buildStart) / 1e6);
+        
+        String[] prefixQueries = new String[queries];
+        String[] typoQueries = new String[queries];
+        for (int i = 0; i < queries; i++) {
+            String name = names[random.nextInt(items)];
+            prefixQueries[i] = name.substring(0, Math.min(name.length(), 6 + random.nextInt(10)));
+            typoQueries[i] = withTypo(name, random);
+        }
+        
+        // Warm up the JIT before measuring
+        for (int i = 0; i < Math.min(queries, 5000); i++) {
+            index.prefixSearch(prefixQueries[i], 10);
+            index.fuzzySearch(typoQueries[i], 10);
+        }
+        
+        report("prefix", index, prefixQueries, true);
+        report("fuzzy", index, typoQueries, false);
+    }
+    
+    private static void report(String label, FoodSearchIndex index, String[] queries, boolean prefix) {
+        long[] latencies = new long[queries.length];
+        long found = 0;
+        for (int i = 0; i < queries.length; i++) {
+            long start = System.nanoTime();
+            int[] result = prefix ? index.prefixSearch(queries[i], 10) : index.fuzzySearch(queries[i], 10);
+            latencies[i] = System.nanoTime() - start;
+            found += result.length > 0 ? 1 : 0;
+        }
+        Arrays.sort(latencies);
+        long total = 0;
+        for (long latency : latencies) {
+            total += latency;
+        }
+        System.out.printf("%-6s top-10: mean %.1f us, p50 %.1f us, p99 %.1f us, hit rate %.1f%%%n", label,
+            total / (double) latencies.length / 1e3, latencies[latencies.length / 2] / 1e3,
+            latencies[(int) (latencies.length * 0.99)] / 1e3, 100.0 * found / queries.length);
+    }
+    
+    // One random substitution, deletion or transposition
+    private static String withTypo(String name, Random random) {
+        int pos = 1 + random.nextInt(name.length() - 2);
+        switch (random.nextInt(3)) {
+            case 0:
+                return name.substring(0, pos) + (char) ('a' + random.nextInt(26)) + name.substring(pos + 1);
+            case 1:
+                return name.substring(0, pos) + name.substring(pos + 1);
+            default:
+                return name.substring(0, pos) + name.charAt(pos + 1) + name.charAt(pos) + name.substring(pos + 2);
+        }
+    }
+}
+
+// Memory-mapped Binary Food Catalog
+//
+// Layout (big-endian):
+//   header   magic "FDC1", int version, int foodCount, int nutrientCount, int hashSlots,
+//            long recordsOffset, long hashOffset, long namesOffset
+//   records  foodCount x (int nameOffset, int nameLength, float[nutrientCount] per 100g)
+//   hash     hashSlots x int (record index + 1, 0 = empty), open addressing on lower-cased names
+//   names    UTF-8 display names, each stored once
+class MappedFoodCatalog {
+    static final int MAGIC = 0x46444331;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 48;
+    
+    private final ByteBuffer buffer;
+    private final int foodCount;
+    private final int nutrientCount;
+    private final int hashSlots;
+    private final int recordSize;
+    private final long recordsOffset;
+    private final long hashOffset;
+    private final long namesOffset;
+    
+    private MappedFoodCatalog(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a food catalog file (bad magic or version)");
+        }
+        foodCount = buffer.getInt(8);
+        nutrientCount = buffer.getInt(12);
+        hashSlots = buffer.getInt(16);
+        recordsOffset = buffer.getLong(20);
+        hashOffset = buffer.getLong(28);
+        namesOffset = buffer.getLong(36);
+        recordSize = 8 + 4 * nutrientCount;
+        if (nutrientCount > Nutrient.COUNT || Integer.bitCount(hashSlots) != 1) {
+            throw new IOException("Unsupported food catalog layout");
+        }
+    }
+    
+    public static MappedFoodCatalog open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Food catalog larger than 2 GB is not supported");
+            }
+            // The mapping stays valid after the channel is closed
+            return new MappedFoodCatalog(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+    
+    public int size() {
+        return foodCount;
+    }
+    
+    public String getName(int index) {
+        int record = (int) (recordsOffset + (long) index * recordSize);
+        byte[] bytes = new byte[buffer.getInt(record + 4)];
+        buffer.get((int) namesOffset + buffer.getInt(record), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    // Copies a record's nutrient values into out[offset..offset + Nutrient.COUNT)
+    public void readNutrients(int index, float[] out, int offset) {
+        int record = (int) (recordsOffset + (long) index * recordSize);
+        for (int n = 0; n < nutrientCount; n++) {
+            out[offset + n] = buffer.getFloat(record + 8 + 4 * n);
+        }
+    }
+    
+    public Food readFood(int index) {
+        int record = (int) (recordsOffset + (long) index * recordSize);
+        Food food = new Food(getName(index), 0, 0, 0, 0);
+        Nutrient[] nutrients = Nutrient.values();
+        for (int n = 0; n < nutrientCount; n++) {
+            food.setNutrient(nutrients[n], buffer.getFloat(record + 8 + 4 * n));
+        }
+        return food;
+    }
+    
+    // Returns the record index of the food with this name in any case, or -1
+    public int find(String name) {
+        String key = key(name);
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int slot = hash(key) & (hashSlots - 1);
+        while (true) {
+            int entry = buffer.getInt((int) hashOffset + 4 * slot);
+            if (entry == 0) {
+                return -1;
+            }
+            if (nameEquals(entry - 1, key, keyBytes)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & (hashSlots - 1);
+        }
+    }
+    
+    // Compares the stored display name against a key(). ASCII names are folded byte by byte;
+    // other names are decoded, since lower-casing them can change their encoded length
+    private boolean nameEquals(int index, String key, byte[] keyBytes) {
+        int record = (int) (recordsOffset + (long) index * recordSize);
+        int length = buffer.getInt(record + 4);
+        int offset = (int) namesOffset + buffer.getInt(record);
+        int i = 0;
+        if (length == keyBytes.length) {
+            for (; i < length; i++) {
+                byte b = buffer.get(offset + i);
+                if (b < 0) {
+                    break;
+                }
+                if (b >= 'A' && b <= 'Z') {
+                    b += 'a' - 'A';
+                }
+                // An ASCII prefix lower-cases to itself, so a mismatch there is final
+                if (b != keyBytes[i]) {
+                    return false;
+                }
+            }
+            if (i == length) {
+                return true;
+            }
+        } else {
+            while (i < length && buffer.get(offset + i) >= 0) {
+                i++;
+            }
+            if (i == length) {
+                return false;
+            }
+        }
+        return key(getName(index)).equals(key);
+    }
+    
+    // Lookup key of a name, independent of the JVM's default locale
+    static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+    
+    static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+    
+    // Writes names/values (per 100g, indexed by Nutrient.ordinal()) as a catalog file
+    public static void write(Path file, List<String> names, List<double[]> values) throws IOException {
+        int count = names.size();
+        int slots = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+        int recordSize = 8 + 4 * Nutrient.COUNT;
+        
+        ByteArrayOutputStream nameTable = new ByteArrayOutputStream();
+        int[] nameOffsets = new int[count];
+        int[] nameLengths = new int[count];
+        int[] hashTable = new int[slots];
+        for (int i = 0; i < count; i++) {
+            String name = names.get(i);
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            nameOffsets[i] = nameTable.size();
+            nameLengths[i] = bytes.length;
+            nameTable.write(bytes);
+            int slot = hash(key(name)) & (slots - 1);
+            while (hashTable[slot] != 0) {
+                slot = (slot + 1) & (slots - 1);
+            }
+            hashTable[slot] = i + 1;
+        }
+        
+        long recordsOffset = HEADER_SIZE;
+        long hashOffset = recordsOffset + (long) count * recordSize;
+        long namesOffset = hashOffset + 4L * slots;
+        
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            out.writeInt(Nutrient.COUNT);
+            out.writeInt(slots);
+            out.writeLong(recordsOffset);
+            out.writeLong(hashOffset);
+            out.writeLong(namesOffset);
+            out.writeInt(0); // pad header to HEADER_SIZE
+            for (int i = 0; i < count; i++) {
+                out.writeInt(nameOffsets[i]);
+                out.writeInt(nameLengths[i]);
+                double[] row = values.get(i);
+                for (int n = 0; n < Nutrient.COUNT; n++) {
+                    out.writeFloat((float) row[n]);
+                }
+            }
+            for (int entry : hashTable) {
+                out.writeInt(entry);
+            }
+            nameTable.writeTo(out);
+        }
+    }
+}
+
+// CSV to Binary Food Catalog Converter
+class FoodCatalogConverter {
+    // Usage: java dietplanner.FoodCatalogConverter foods.csv foods.fdc
+    // The CSV needs a header row with a "name" column; nutrient columns are matched by
+    // their JSON key (calories, protein, vitaminC, ...) and missing ones default to 0
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: java dietplanner.FoodCatalogConverter <input.csv> <output.fdc>");
+            return;
+        }
+        long start = System.nanoTime();
+        List<String> names = new ArrayList<>();
+        List<double[]> values = new ArrayList<>();
+        int duplicates = convert(Paths.get(args[0]), names, values);
+        MappedFoodCatalog.write(Paths.get(args[1]), names, values);
+        System.out.printf("Wrote %d foods (%d duplicate names skipped) in %.0f ms\n",
+            names.size(), duplicates, (System.nanoTime() - start) / 1e6);
+        
+        long openStart = System.nanoTime();
+        FoodDatabase database = new FoodDatabase(Paths.get(args[1]));
+        Food first = names.isEmpty() ? null : database.getFood(names.get(0));
+        System.out.printf("Opened catalog and served first lookup (%s) in %.2f ms\n",
+            first == null ? "none" : first.getName(), (System.nanoTime() - openStart) / 1e6);
+    }
+    
+    static int convert(Path csv, List<String> names, List<double[]> values) throws IOException {
+        Set<String> seen = new HashSet<>();
+        int duplicates = 0;
+        try (BufferedReader reader = Files.newBufferedReader(csv, StandardCharsets.UTF_8)) {
+            String headerLine = reader.readLine();
+            if (headerLine == null) {
+                return 0;
+            }
+            List<String> header = parseCsvLine(headerLine);
+            int nameColumn = -1;
+            int[] nutrientColumn = new int[Nutrient.COUNT];
+            Arrays.fill(nutrientColumn, -1);
+            for (int c = 0; c < header.size(); c++) {
+                String column = header.get(c).trim();
+                if (column.equalsIgnoreCase("name")) {
+                    nameColumn = c;
+                }
+                for (Nutrient nutrient : Nutrient.values()) {
+                    if (column.equalsIgnoreCase(nutrient.getKey())) {
+                        nutrientColumn[nutrient.ordinal()] = c;
+                    }
+                }
+            }
+            if (nameColumn < 0) {
+                throw new IOException("CSV header has no 'name' column");
+            }
+            
+            String line;
+            int lineNumber = 1;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                List<String> fields = parseCsvLine(line);
+                String name = nameColumn < fields.size() ? fields.get(nameColumn).trim() : "";
+                if (name.isEmpty() || !seen.add(name.toLowerCase(Locale.ROOT))) {
+                    duplicates++;
+                    continue;
+                }
+                double[] row = new double[Nutrient.COUNT];
+                for (int n = 0; n < row.length; n++) {
+                    int c = nutrientColumn[n];
+                    if (c >= 0 && c < fields.size() && !fields.get(c).isBlank()) {
+                        try {
+                            row[n] = Double.parseDouble(fields.get(c).trim());
+                        } catch (NumberFormatException e) {
+                            throw new IOException("Line " + lineNumber + ": invalid number '" + fields.get(c) + "'");
+                        }
+                    }
+                }
+                names.add(name);
+                values.add(row);
+            }
+        }
+        return duplicates;
+    }
+    
+    // Splits one CSV line, honouring double-quoted fields with embedded commas and "" escapes
+    static List<String> parseCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
+
+// Meal Plan
+class MealPlan {
+    private final MealSlot slot;
+    private final Food[] foods;
+    private final double[] grams;
+    private final double score;
+    
+    public MealPlan(MealSlot slot, Food[] foods, double[] grams, double score) {
+        this.slot = slot;
+        this.foods = foods;
+        this.grams = grams;
+        this.score = score;
+    }
+    
+    public MealSlot getSlot() { return slot; }
+    public Food[] getFoods() { return foods; }
+    public double[] getGrams() { return grams; }
+    // Weighted squared deviation from the meal's targets; lower is better
+    public double getScore() { return score; }
+    
+    public double getTotal(Nutrient nutrient) {
+        double total = 0;
+        for (int i = 0; i < foods.length; i++) {
+            total += foods[i].getNutrient(nutrient) * grams[i] / 100.0;
+        }
+        return total;
+    }
+    
+    // Lets a recommended meal be saved and then logged as one item
+    public Recipe toRecipe(String name) {
+        Recipe recipe = new Recipe(name);
+        for (int i = 0; i < foods.length; i++) {
+            recipe.add(foods[i].getName(), grams[i]);
+        }
+        return recipe;
+    }
+    
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < foods.length; i++) {
+            if (i > 0) {
+                sb.append(" + ");
+            }
+            sb.append(String.format("%.0fg %s", grams[i], foods[i].getName()));
+        }
+        return sb.toString();
+    }
+}
+
+// Meal Plan Solver
+//
+// Picks two or three foods and their gram amounts for one meal. The catalog is first
+// pruned to the foods that rank best for protein, carbs, fat and fiber per calorie
+// (plus the most energy-dense ones);
+// every pair and triple of that shortlist is then fitted by weighted least squares
+// against the meal's calorie, macro and fiber targets, in parallel on the common pool.
+class MealPlanSolver {
+    private static final int CANDIDATES_PER_RANKING = 12;
+    private static final double MIN_GRAMS = 10;
+    private static final double MAX_GRAMS = 300;
+    private static final double GRAM_STEP = 5;
+    
+    // Share of a meal's calories from each macro, and kcal per gram
+    private static final double PROTEIN_SHARE = 0.25;
+    private static final double CARB_SHARE = 0.50;
+    private static final double FAT_SHARE = 0.25;
+    private static final double FIBER_PER_1000_KCAL = 14;
+    
+    private static final Nutrient[] RANKED = {
+        Nutrient.PROTEIN, Nutrient.CARBS, Nutrient.FAT, Nutrient.FIBER, Nutrient.CALORIES};
+    private static final Nutrient[] FITTED = {
+        Nutrient.CALORIES, Nutrient.PROTEIN, Nutrient.CARBS, Nutrient.FAT, Nutrient.FIBER};
+    private static final double[] FIT_WEIGHTS = {3, 2, 1, 1, 0.5};
+    // Micronutrients only penalise shortfalls against the meal's share of the daily amount
+    private static final Nutrient[] MICROS = {
+        Nutrient.VITAMIN_C, Nutrient.CALCIUM, Nutrient.IRON, Nutrient.MAGNESIUM};
+    private static final double[] DAILY_MICROS = {
+        DietaryReferenceIntakes.ADULT_AVERAGE[Nutrient.VITAMIN_C.ordinal()],
+        DietaryReferenceIntakes.ADULT_AVERAGE[Nutrient.CALCIUM.ordinal()],
+        DietaryReferenceIntakes.ADULT_AVERAGE[Nutrient.IRON.ordinal()],
+        DietaryReferenceIntakes.ADULT_AVERAGE[Nutrient.MAGNESIUM.ordinal()]};
+    private static final double MICRO_WEIGHT = 0.1;
+    
+    private final Food[] candidates;
+    private final long catalogVersion;
+    
+    public MealPlanSolver(FoodDatabase foodDatabase) {
+        this(foodDatabase.getSnapshot());
+    }
+    
+    MealPlanSolver(FoodCatalogSnapshot snapshot) {
+        catalogVersion = snapshot.getVersion();
+        candidates = selectCandidates(snapshot);
+    }
+    
+    public long getCatalogVersion() {
+        return catalogVersion;
+    }
+    
+    // Plans are built from plain foods; a recipe next to its own ingredients makes no sense
+    private static Food[] selectCandidates(FoodCatalogSnapshot snapshot) {
+        List<Food> usable = new ArrayList<>();
+        for (Food food : snapshot.getAllFoods()) {
+            if (food.getCalories() > 0 && !snapshot.isRecipe(food.getId())) {
+                usable.add(food);
+            }
+        }
+        if (usable.size() <= CANDIDATES_PER_RANKING * RANKED.length) {
+            return usable.toArray(new Food[0]);
+        }
+        // Top foods by nutrient per calorie, plus the most energy-dense ones so that
+        // large meals stay reachable within MAX_GRAMS
+        Set<Food> selected = new LinkedHashSet<>();
+        for (Nutrient nutrient : RANKED) {
+            ToDoubleFunction<Food> density = nutrient == Nutrient.CALORIES
+                ? Food::getCalories
+                : f -> f.getNutrient(nutrient) / f.getCalories();
+            selected.addAll(topFoods(usable, density, CANDIDATES_PER_RANKING));
+        }
+        return selected.toArray(new Food[0]);
+    }
+    
+    // Bounded min-heap selection instead of sorting the whole catalog
+    private static List<Food> topFoods(List<Food> foods, ToDoubleFunction<Food> key, int limit) {
+        PriorityQueue<Food> heap = new PriorityQueue<>(limit + 1,
+            Comparator.comparingDouble(key).thenComparing(Comparator.comparingInt(Food::getId).reversed()));
+        for (Food food : foods) {
+            heap.offer(food);
+            if (heap.size() > limit) {
+                heap.poll();
+            }
+        }
+        List<Food> top = new ArrayList<>(heap);
+        top.sort(heap.comparator().reversed());
+        return top;
+    }
+    
+    public List<MealPlan> solve(MealSlot slot, double dailyCalories, int options) {
+        double calories = slot.getCalorieTarget(dailyCalories);
+        double[] targets = {
+            calories,
+            calories * PROTEIN_SHARE / 4,
+            calories * CARB_SHARE / 4,
+            calories * FAT_SHARE / 9,
+            calories / 1000 * FIBER_PER_1000_KCAL
+        };
+        
+        // Per-candidate rows scaled by weight / target, so the fit works on relative
+        // errors; amounts are in units of 100g
+        int n = candidates.length;
+        double[][] scaled = new double[n][FITTED.length];
+        double[][] micros = new double[n][MICROS.length];
+        double[] rhs = new double[FITTED.length];
+        for (int r = 0; r < FITTED.length; r++) {
+            rhs[r] = targets[r] > 0 ? FIT_WEIGHTS[r] : 0;
+        }
+        for (int c = 0; c < n; c++) {
+            for (int r = 0; r < FITTED.length; r++) {
+                scaled[c][r] = targets[r] > 0 ? candidates[c].getNutrient(FITTED[r]) * FIT_WEIGHTS[r] / targets[r] : 0;
+            }
+            for (int m = 0; m < MICROS.length; m++) {
+                micros[c][m] = candidates[c].getNutrient(MICROS[m]) / (DAILY_MICROS[m] * slot.getCalorieShare());
+            }
+        }
+        // Gram matrix and right-hand side of the normal equations, shared by every combination
+        double[][] gram = new double[n][n];
+        double[] gramRhs = new double[n];
+        for (int c1 = 0; c1 < n; c1++) {
+            for (int c2 = 0; c2 < n; c2++) {
+                for (int r = 0; r < FITTED.length; r++) {
+                    gram[c1][c2] += scaled[c1][r] * scaled[c2][r];
+                }
+            }
+            for (int r = 0; r < FITTED.length; r++) {
+                gramRhs[c1] += scaled[c1][r] * rhs[r];
+            }
+        }
+        Problem problem = new Problem(scaled, micros, rhs, gram, gramRhs, calories);
+        
+        // Keep a few extra per branch so distinct options survive the merge
+        int keep = Math.max(options * 8, 8);
+        List<MealPlan> plans = java.util.stream.IntStream.range(0, n).parallel()
+            .mapToObj(i -> {
+                List<MealPlan> best = new ArrayList<>();
+                int[] combo = new int[3];
+                double[] grams = new double[3];
+                double[][] system = new double[3][4];
+                combo[0] = i;
+                for (int j = i + 1; j < n; j++) {
+                    combo[1] = j;
+                    offer(best, keep, slot, problem, combo, 2, grams, system);
+                    for (int k = j + 1; k < n; k++) {
+                        combo[2] = k;
+                        offer(best, keep, slot, problem, combo, 3, grams, system);
+                    }
+                }
+                return best;
+            })
+            .flatMap(List::stream)
+            .sorted(Comparator.comparingDouble(MealPlan::getScore))
+            .collect(java.util.stream.Collectors.toList());
+        
+        // Options may share at most one food with each other
+        List<MealPlan> chosen = new ArrayList<>();
+        for (MealPlan plan : plans) {
+            if (chosen.size() == options) {
+                break;
+            }
+            boolean distinct = true;
+            for (MealPlan other : chosen) {
+                Set<Food> shared = new HashSet<>(Arrays.asList(plan.getFoods()));
+                shared.retainAll(Arrays.asList(other.getFoods()));
+                distinct &= shared.size() <= 1;
+            }
+            if (distinct) {
+                chosen.add(plan);
+            }
+        }
+        return chosen;
+    }
+    
+    // Per-meal inputs shared read-only by all worker threads
+    private static class Problem {
+        final double[][] scaled;
+        final double[][] micros;
+        final double[] rhs;
+        final double[][] gram;
+        final double[] gramRhs;
+        final double calories;
+        
+        Problem(double[][] scaled, double[][] micros, double[] rhs, double[][] gram, double[] gramRhs, double calories) {
+            this.scaled = scaled;
+            this.micros = micros;
+            this.rhs = rhs;
+            this.gram = gram;
+            this.gramRhs = gramRhs;
+            this.calories = calories;
+        }
+    }
+    
+    // Fits the first k foods of combo and adds the plan to best if it ranks among the
+    // top `keep`; a MealPlan is only allocated for combinations that make the cut
+    private void offer(List<MealPlan> best, int keep, MealSlot slot, Problem problem,
+                       int[] combo, int k, double[] grams, double[][] system) {
+        // Cheap feasibility bound: even the maximum amounts can't reach the calorie target
+        double maxCalories = 0;
+        for (int c = 0; c < k; c++) {
+            maxCalories += candidates[combo[c]].getCalories() * MAX_GRAMS / 100;
+        }
+        if (maxCalories < problem.calories * 0.9) {
+            return;
+        }
+        
+        for (int r = 0; r < k; r++) {
+            for (int c = 0; c < k; c++) {
+                system[r][c] = problem.gram[combo[r]][combo[c]];
+            }
+            system[r][3] = problem.gramRhs[combo[r]];
+        }
+        if (!solveLinear(system, k, grams)) {
+            return;
+        }
+        for (int c = 0; c < k; c++) {
+            grams[c] = Math.round(grams[c] * 100 / GRAM_STEP) * GRAM_STEP;
+            if (grams[c] < MIN_GRAMS || grams[c] > MAX_GRAMS) {
+                return;
+            }
+        }
+        
+        // Score the rounded amounts
+        double score = 0;
+        for (int r = 0; r < problem.rhs.length; r++) {
+            double error = -problem.rhs[r];
+            for (int c = 0; c < k; c++) {
+                error += problem.scaled[combo[c]][r] * grams[c] / 100;
+            }
+            score += error * error;
+        }
+        for (int m = 0; m < MICROS.length; m++) {
+            double covered = 0;
+            for (int c = 0; c < k; c++) {
+                covered += problem.micros[combo[c]][m] * grams[c] / 100;
+            }
+            double shortfall = Math.max(0, 1 - covered);
+            score += MICRO_WEIGHT * shortfall * shortfall;
+        }
+        
+        if (best.size() == keep && score >= best.get(keep - 1).getScore()) {
+            return;
+        }
+        Food[] foods = new Food[k];
+        for (int c = 0; c < k; c++) {
+            foods[c] = candidates[combo[c]];
+        }
+        MealPlan plan = new MealPlan(slot, foods, Arrays.copyOf(grams, k), score);
+        int pos = best.size();
+        while (pos > 0 && best.get(pos - 1).getScore() > score) {
+            pos--;
+        }
+        best.add(pos, plan);
+        if (best.size() > keep) {
+            best.remove(keep);
+        }
+    }
+    
+    // Gaussian elimination with partial pivoting on an augmented k x (k + 1) system
+    // stored in the first k rows of m (right-hand side in column 3)
+    private static boolean solveLinear(double[][] m, int k, double[] x) {
+        for (int col = 0; col < k; col++) {
+            int pivot = col;
+            for (int row = col + 1; row < k; row++) {
+                if (Math.abs(m[row][col]) > Math.abs(m[pivot][col])) {
+                    pivot = row;
+                }
+            }
+            if (Math.abs(m[pivot][col]) < 1e-12) {
+                return false;
+            }
+            double[] swap = m[col];
+            m[col] = m[pivot];
+            m[pivot] = swap;
+            for (int row = col + 1; row < k; row++) {
+                double factor = m[row][col] / m[col][col];
+                for (int c = col; c < k; c++) {
+                    m[row][c] -= factor * m[col][c];
+                }
+                m[row][3] -= factor * m[col][3];
+            }
+        }
+        for (int row = k - 1; row >= 0; row--) {
+            double sum = m[row][3];
+            for (int c = row + 1; c < k; c++) {
+                sum -= m[row][c] * x[c];
+            }
+            x[row] = sum / m[row][row];
+        }
+        return true;
+    }
+}
+
+// Fixed-precision Number Formatting
+class FixedPoint {
+    private static final long[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000, 100000, 1000000};
+    
+    // Appends value rounded half-up to `decimals` places (0-6) without going through
+    // String.format; falls back to Double.toString for NaN, infinities and huge values
+    static StringBuilder append(StringBuilder sb, double value, int decimals) {
+        long scale = POWERS_OF_TEN[decimals];
+        if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= 1e15 / scale) {
+            return sb.append(value);
+        }
+        long scaled = Math.round(Math.abs(value) * scale);
+        if (value < 0 && scaled != 0) {
+            sb.append('-');
+        }
+        sb.append(scaled / scale);
+        if (decimals > 0) {
+            sb.append('.');
+            long fraction = scaled % scale;
+            for (long p = scale / 10; p > 0; p /= 10) {
+                sb.append((char) ('0' + fraction / p % 10));
+            }
+        }
+        return sb;
+    }
+}
+
+// Struct-of-arrays Batch of Member Profiles
+class PopulationBatch {
+    // Inputs
+    final String[] ids;
+    final int[] ages;
+    final boolean[] male;
+    final double[] weights;
+    final double[] heights;
+    final int[] activityLevels;
+    // Outputs
+    final double[] bmr;
+    final double[] dailyCalories;
+    final double[] bmi;
+    final byte[] bmiCategory;
+    int size;
+    
+    PopulationBatch(int capacity) {
+        ids = new String[capacity];
+        ages = new int[capacity];
+        male = new boolean[capacity];
+        weights = new double[capacity];
+        heights = new double[capacity];
+        activityLevels = new int[capacity];
+        bmr = new double[capacity];
+        dailyCalories = new double[capacity];
+        bmi = new double[capacity];
+        bmiCategory = new byte[capacity];
+    }
+    
+    int capacity() {
+        return ages.length;
+    }
+}
+
+// Batch BMR/TDEE/BMI Calculator for Large Populations
+class PopulationProfileCalculator {
+    private static final int CHUNK = 4096;
+    
+    // Allocation-free pass over [from, to) using UserProfile's formulas, which inline;
+    // separate loops keep each one simple enough to unroll
+    static void compute(PopulationBatch batch, int from, int to) {
+        int[] ages = batch.ages;
+        boolean[] male = batch.male;
+        double[] weights = batch.weights;
+        double[] heights = batch.heights;
+        double[] bmr = batch.bmr;
+        double[] bmi = batch.bmi;
+        for (int i = from; i < to; i++) {
+            bmi[i] = UserProfile.calculateBMI(weights[i], heights[i]);
+        }
+        for (int i = from; i < to; i++) {
+            bmr[i] = UserProfile.calculateBMR(male[i] ? 'M' : 'F', weights[i], heights[i], ages[i]);
+        }
+        double[] multipliers = UserProfile.ACTIVITY_MULTIPLIERS;
+        int[] activityLevels = batch.activityLevels;
+        double[] dailyCalories = batch.dailyCalories;
+        for (int i = from; i < to; i++) {
+            int level = activityLevels[i];
+            dailyCalories[i] = level > 0 && level < multipliers.length ? bmr[i] * multipliers[level] : Double.NaN;
+        }
+        byte[] categories = batch.bmiCategory;
+        for (int i = from; i < to; i++) {
+            categories[i] = (byte) UserProfile.bmiCategoryIndex(bmi[i]);
+        }
+    }
+    
+    // Splits the batch into CHUNK-sized ranges on the common fork-join pool
+    static void computeParallel(PopulationBatch batch) {
+        int chunks = (batch.size + CHUNK - 1) / CHUNK;
+        java.util.stream.IntStream.range(0, chunks).parallel()
+            .forEach(c -> compute(batch, c * CHUNK, Math.min(batch.size, (c + 1) * CHUNK)));
+    }
+    
+    // Streams id,age,gender,weight,height,activity rows to id,bmr,dailyCalories,bmi,category,
+    // holding at most batchSize members in memory; returns the number of rows written
+    static long processCsv(BufferedReader in, Writer out, int batchSize) throws IOException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1: " + batchSize);
+        }
+        PopulationBatch batch = new PopulationBatch(batchSize);
+        // About 48 chars a row, capped so a huge batch size cannot overflow the capacity
+        StringBuilder sb = new StringBuilder((int) Math.min(batchSize * 48L, 1 << 26));
+        long rows = 0;
+        long lineNumber = 0;
+        out.write("id,bmr,dailyCalories,bmi,category\n");
+        
+        String line = in.readLine();
+        lineNumber++;
+        if (line != null && isHeader(line)) {
+            line = in.readLine();
+            lineNumber++;
+        }
+        while (line != null) {
+            batch.size = 0;
+            while (line != null && batch.size < batch.capacity()) {
+                if (!line.isBlank()) {
+                    parseRow(line, lineNumber, batch, batch.size++);
+                }
+                line = in.readLine();
+                lineNumber++;
+            }
+            computeParallel(batch);
+            
+            sb.setLength(0);
+            for (int i = 0; i < batch.size; i++) {
+                sb.append(batch.ids[i]).append(',');
+                FixedPoint.append(sb, batch.bmr[i], 1).append(',');
+                FixedPoint.append(sb, batch.dailyCalories[i], 1).append(',');
+                FixedPoint.append(sb, batch.bmi[i], 2).append(',');
+                sb.append(UserProfile.BMI_CATEGORIES[batch.bmiCategory[i]]).append('\n');
+            }
+            out.append(sb);
+            rows += batch.size;
+        }
+        out.flush();
+        return rows;
+    }
+    
+    // The header row is recognised by a non-numeric age column
+    private static boolean isHeader(String line) {
+        int comma = line.indexOf(',');
+        return comma >= 0 && comma + 1 < line.length() && !Character.isDigit(line.charAt(comma + 1));
+    }
+    
+    private static void parseRow(String line, long lineNumber, PopulationBatch batch, int i) throws IOException {
+        try {
+            int c1 = line.indexOf(',');
+            int c2 = line.indexOf(',', c1 + 1);
+            int c3 = line.indexOf(',', c2 + 1);
+            int c4 = line.indexOf(',', c3 + 1);
+            int c5 = line.indexOf(',', c4 + 1);
+            if (c5 < 0) {
+                throw new IOException("Line " + lineNumber + ": expected 6 columns");
+            }
+            batch.ids[i] = line.substring(0, c1);
+            batch.ages[i] = Integer.parseInt(line, c1 + 1, c2, 10);
+            char gender = line.charAt(c2 + 1);
+            batch.male[i] = gender == 'M' || gender == 'm';
+            batch.weights[i] = Double.parseDouble(line.substring(c3 + 1, c4));
+            batch.heights[i] = Double.parseDouble(line.substring(c4 + 1, c5));
+            int end = line.length();
+            while (end > c5 + 1 && Character.isWhitespace(line.charAt(end - 1))) {
+                end--;
+            }
+            batch.activityLevels[i] = Integer.parseInt(line, c5 + 1, end, 10);
+        } catch (NumberFormatException e) {
+            throw new IOException("Line " + lineNumber + ": " + e.getMessage());
+        }
+    }
+    
+    // Usage: java dietplanner.PopulationProfileCalculator members.csv results.csv [batchSize]
+    //        java PopulationProfileCalculator --generate members.csv count
+    public static void main(String[] args) throws IOException {
+        if (args.length == 3 && args[0].equals("--generate")) {
+            generate(Paths.get(args[1]), Long.parseLong(args[2]));
+            return;
+        }
+        if (args.length < 2) {
+            System.out.println("Usage: java dietplanner.PopulationProfileCalculator <members.csv> <results.csv> [batchSize]");
+            return;
+        }
+        int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 1 << 16;
+        if (batchSize < 1) {
+            System.out.println("batchSize must be at least 1");
+            return;
+        }
+        long start = System.nanoTime();
+        long rows;
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8);
+             Writer out = new BufferedWriter(Files.newBufferedWriter(Paths.get(args[1]), StandardCharsets.UTF_8), 1 << 16)) {
+            rows = processCsv(in, out, batchSize);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Processed %d profiles in %.2f s (%.0f profiles/s)\n", rows, seconds, rows / seconds);
+    }
+    
+    private static void generate(Path file, long count) throws IOException {
+        Random random = new Random(1);
+        try (Writer out = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8), 1 << 16)) {
+            out.write("id,age,gender,weight,height,activity\n");
+            StringBuilder sb = new StringBuilder();
+            for (long i = 0; i < count; i++) {
+                sb.setLength(0);
+                sb.append('m').append(i).append(',').append(18 + random.nextInt(70)).append(',')
+                    .append(random.nextBoolean() ? 'M' : 'F').append(',');
+                FixedPoint.append(sb, 45 + random.nextDouble() * 80, 1).append(',');
+                FixedPoint.append(sb, 150 + random.nextDouble() * 50, 1).append(',');
+                sb.append(1 + random.nextInt(5)).append('\n');
+                out.append(sb);
+            }
+        }
+    }
+}
+
+// Meal Log Event
+class MealLogEvent {
+    static final byte ADD = 1;
+    static final byte UNDO = 2;
+    static final byte CLEAR = 3;
+    // Records the intake so far under the closed date (kept in foodId as an epoch day) and
+    // starts a new day
+    static final byte CLOSE_DAY = 4;
+    
+    final byte type;
+    final long timestamp;
+    final String userId;
+    final int foodId;
+    final double grams;
+    // Only set for ADD; records written before slots existed fall back to the time of day
+    final MealSlot mealSlot;
+    
+    MealLogEvent(byte type, long timestamp, String userId, int foodId, double grams) {
+        this(type, timestamp, userId, foodId, grams, null);
+    }
+    
+    MealLogEvent(byte type, long timestamp, String userId, int foodId, double grams, MealSlot mealSlot) {
+        this.type = type;
+        this.timestamp = timestamp;
+        this.userId = userId;
+        this.foodId = foodId;
+        this.grams = grams;
+        this.mealSlot = mealSlot;
+    }
+    
+    MealSlot getMealSlot() {
+        return mealSlot != null ? mealSlot : MealSlot.forMinuteOfDay(DailyNutritionTracker.minuteOfDay(timestamp));
+    }
+    
+    static MealLogEvent closeDay(long timestamp, String userId, LocalDate date) {
+        return new MealLogEvent(CLOSE_DAY, timestamp, userId, (int) date.toEpochDay(), 0);
+    }
+    
+    // CLOSE_DAY records written before the date was logged carry -1 and fall back to the day they were logged on
+    LocalDate getClosedDate(ZoneId zone) {
+        return foodId != -1 ? LocalDate.ofEpochDay(foodId) : Instant.ofEpochMilli(timestamp).atZone(zone).toLocalDate();
+    }
+}
+
+// Durable Append-only Meal Log
+//
+// meal.log holds one record per event:
+//   int payloadLength, payload (byte type, long timestamp, int foodId, double grams,
+//   short userLength, user UTF-8[, byte mealSlot]), int crc32(payload)
+// ADD records end with the meal slot ordinal; older records without it are still read
+// A single writer thread drains the queue, writes everything pending in one go and
+// calls force() once per batch (group commit). Replay stops at the first torn or
+// corrupt record and truncates the tail.
+//
+// Compaction folds every closed day into daily-summaries.dat (one record per user and
+// day: short userLength, user, long epochDay, int entries, double[Nutrient.COUNT] totals,
+// framed like log records; a later record for the same user/day replaces an earlier one)
+// and rewrites meal.log with only the events of today's open day. Entries up to a CLOSE_DAY
+// are filed under the date it closed; entries from earlier days that were never closed are
+// filed under the day they were logged on.
+class MealLog implements AutoCloseable {
+    private static final String LOG_FILE = "meal.log";
+    private static final String SUMMARY_FILE = "daily-summaries.dat";
+    private static final int MAX_BATCH = 8192;
+    
+    private final Path directory;
+    private final FoodDatabase foodDatabase;
+    private final ZoneId zone;
+    private FileChannel channel;
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean running = true;
+    private ScheduledExecutorService compactionScheduler;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+    private final java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+    private final LongAdder syncs = new LongAdder();
+    // Set by the writer thread when a torn write could not be rolled back; later appends fail
+    // rather than land after a record replay would stop at
+    private IOException failure;
+    
+    private static class PendingWrite {
+        final MealLogEvent event;
+        final Runnable task;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        
+        PendingWrite(MealLogEvent event, Runnable task) {
+            this.event = event;
+            this.task = task;
+        }
+    }
+    
+    static class ReplayResult {
+        long events;
+        int users;
+        long truncatedBytes;
+        double millis;
+    }
+    
+    static class DailySummaryRecord {
+        final String userId;
+        final LocalDate date;
+        final int entries;
+        final NutritionSummary summary;
+        
+        DailySummaryRecord(String userId, LocalDate date, int entries, NutritionSummary summary) {
+            this.userId = userId;
+            this.date = date;
+            this.entries = entries;
+            this.summary = summary;
+        }
+    }
+    
+    private MealLog(Path directory, FoodDatabase foodDatabase, ZoneId zone) throws IOException {
+        this.directory = directory;
+        this.foodDatabase = foodDatabase;
+        this.zone = zone;
+        Files.createDirectories(directory);
+        channel = FileChannel.open(directory.resolve(LOG_FILE),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        writer = new Thread(this::writeLoop, "meal-log-writer");
+        writer.setDaemon(true);
+    }
+    
+    public static MealLog open(Path directory, FoodDatabase foodDatabase) throws IOException {
+        return open(directory, foodDatabase, ZoneId.systemDefault());
+    }
+    
+    public static MealLog open(Path directory, FoodDatabase foodDatabase, ZoneId zone) throws IOException {
+        return new MealLog(directory, foodDatabase, zone);
+    }
+    
+    // Rebuilds today's trackers from the log, then starts accepting appends
+    public ReplayResult replay(NutritionTrackingService service) throws IOException {
+        long start = System.nanoTime();
+        ReplayResult result = new ReplayResult();
+        LocalDate today = LocalDate.now(zone);
+        Set<String> users = new HashSet<>();
+        long validLength = readLog(event -> {
+            if (!dayOf(event).equals(today)) {
+                return; // closed days are folded by compaction
+            }
+            applyTo(service, event);
+            users.add(event.userId);
+            result.events++;
+        });
+        result.truncatedBytes = channel.size() - validLength;
+        if (result.truncatedBytes > 0) {
+            channel.truncate(validLength);
+            channel.force(true);
+        }
+        channel.position(validLength);
+        result.users = users.size();
+        result.millis = (System.nanoTime() - start) / 1e6;
+        writer.start();
+        return result;
+    }
+    
+    private void applyTo(NutritionTrackingService service, MealLogEvent event) {
+        switch (event.type) {
+            case MealLogEvent.ADD:
+                if (event.foodId >= 0 && event.foodId < foodDatabase.size()) {
+                    service.addFood(event.userId, foodDatabase.getFoodById(event.foodId), event.grams, event.timestamp,
+                        event.getMealSlot());
+                }
+                break;
+            case MealLogEvent.UNDO:
+                service.undoLastFood(event.userId, event.timestamp);
+                break;
+            case MealLogEvent.CLEAR:
+                service.clearDailyIntake(event.userId, event.timestamp);
+                break;
+            case MealLogEvent.CLOSE_DAY:
+                service.closeDay(event.userId, event.getClosedDate(zone));
+                break;
+            default:
+                break;
+        }
+    }
+    
+    public CompletableFuture<Void> append(MealLogEvent event) {
+        PendingWrite pending = new PendingWrite(event, null);
+        if (!running) {
+            pending.done.completeExceptionally(new IllegalStateException("Meal log is closed"));
+        } else {
+            queue.add(pending);
+        }
+        return pending.done;
+    }
+    
+    // Runs on the writer thread between batches, so it never interleaves with appends
+    public CompletableFuture<Void> compact() {
+        PendingWrite pending = new PendingWrite(null, this::compactNow);
+        queue.add(pending);
+        return pending.done;
+    }
+    
+    public void startBackgroundCompaction(long period, TimeUnit unit) {
+        compactionScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "meal-log-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactionScheduler.scheduleAtFixedRate(this::compact, period, period, unit);
+    }
+    
+    public long getSyncCount() {
+        return syncs.sum();
+    }
+    
+    private void writeLoop() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+    
+    private void writeBatch(List<PendingWrite> batch) {
+        int from = 0;
+        while (from < batch.size()) {
+            // Events up to the next task (or the end) share one write and one force()
+            int to = from;
+            while (to < batch.size() && batch.get(to).task == null) {
+                to++;
+            }
+            if (to > from) {
+                long start = -1;
+                try {
+                    if (failure != null) {
+                        throw new IOException("Meal log failed earlier", failure);
+                    }
+                    start = channel.position();
+                    buffer.clear();
+                    for (int i = from; i < to; i++) {
+                        encode(batch.get(i).event);
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(false);
+                    syncs.increment();
+                    for (int i = from; i < to; i++) {
+                        batch.get(i).done.complete(null);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    if (start >= 0) {
+                        rollBack(start, e);
+                    }
+                    for (int i = from; i < to; i++) {
+                        batch.get(i).done.completeExceptionally(e);
+                    }
+                }
+            }
+            if (to < batch.size()) {
+                PendingWrite task = batch.get(to);
+                try {
+                    task.task.run();
+                    task.done.complete(null);
+                } catch (RuntimeException e) {
+                    task.done.completeExceptionally(e);
+                }
+                to++;
+            }
+            from = to;
+        }
+    }
+    
+    private void reopen() throws IOException {
+        try {
+            channel = FileChannel.open(directory.resolve(LOG_FILE), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+    }
+    
+    // Cuts a partly written batch off the end of the log
+    private void rollBack(long position, Exception cause) {
+        try {
+            channel.truncate(position);
+            channel.position(position);
+        } catch (IOException e) {
+            e.addSuppressed(cause);
+            failure = e;
+        }
+    }
+    
+    private void encode(MealLogEvent event) {
+        byte[] user = event.userId.getBytes(StandardCharsets.UTF_8);
+        int payloadLength = 1 + 8 + 4 + 8 + 2 + user.length + (event.mealSlot != null ? 1 : 0);
+        ensureCapacity(4 + payloadLength + 4);
+        buffer.putInt(payloadLength);
+        int payloadStart = buffer.position();
+        buffer.put(event.type).putLong(event.timestamp).putInt(event.foodId).putDouble(event.grams)
+            .putShort((short) user.length).put(user);
+        if (event.mealSlot != null) {
+            buffer.put((byte) event.mealSlot.ordinal());
+        }
+        buffer.putInt(checksum(buffer, payloadStart, payloadLength));
+    }
+    
+    private void ensureCapacity(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+    
+    private int checksum(ByteBuffer source, int offset, int length) {
+        crc.reset();
+        crc.update(source.duplicate().position(offset).limit(offset + length));
+        return (int) crc.getValue();
+    }
+    
+    // Reads every intact record in order; returns the length of the valid prefix
+    private long readLog(Consumer<MealLogEvent> consumer) throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return 0;
+        }
+        ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        java.util.zip.CRC32 readCrc = new java.util.zip.CRC32();
+        long valid = 0;
+        while (data.remaining() >= 4) {
+            int start = data.position();
+            int payloadLength = data.getInt();
+            if (payloadLength < 23 || payloadLength > data.remaining() - 4) {
+                break;
+            }
+            int payloadStart = data.position();
+            readCrc.reset();
+            readCrc.update(data.duplicate().position(payloadStart).limit(payloadStart + payloadLength));
+            if (data.getInt(payloadStart + payloadLength) != (int) readCrc.getValue()) {
+                break;
+            }
+            byte type = data.get();
+            long timestamp = data.getLong();
+            int foodId = data.getInt();
+            double grams = data.getDouble();
+            byte[] user = new byte[data.getShort()];
+            data.get(user);
+            MealSlot mealSlot = null;
+            if (data.position() < payloadStart + payloadLength) {
+                int slot = data.get();
+                if (slot >= 0 && slot < MealSlot.values().length) {
+                    mealSlot = MealSlot.ofOrdinal(slot);
+                }
+            }
+            data.position(payloadStart + payloadLength + 4);
+            consumer.accept(new MealLogEvent(type, timestamp, new String(user, StandardCharsets.UTF_8), foodId, grams,
+                mealSlot));
+            valid = data.position();
+        }
+        return valid;
+    }
+    
+    private LocalDate dayOf(MealLogEvent event) {
+        return Instant.ofEpochMilli(event.timestamp).atZone(zone).toLocalDate();
+    }
+    
+    private void compactNow() {
+        try {
+            LocalDate today = LocalDate.now(zone);
+            List<MealLogEvent> events = new ArrayList<>();
+            readLog(events::add);
+            // Everything a user logged up to their last CLOSE_DAY belongs to a closed day
+            Map<String, Integer> lastClose = new HashMap<>();
+            for (int i = 0; i < events.size(); i++) {
+                if (events.get(i).type == MealLogEvent.CLOSE_DAY) {
+                    lastClose.put(events.get(i).userId, i);
+                }
+            }
+            // Closed days are folded by replaying them into scratch trackers
+            Map<String, Map<LocalDate, DailyNutritionTracker>> closed = new HashMap<>();
+            Map<String, DailyNutritionTracker> sinceClose = new HashMap<>();
+            List<MealLogEvent> open = new ArrayList<>();
+            for (int i = 0; i < events.size(); i++) {
+                MealLogEvent event = events.get(i);
+                DailyNutritionTracker tracker;
+                if (i <= lastClose.getOrDefault(event.userId, -1)) {
+                    tracker = sinceClose.computeIfAbsent(event.userId, u -> new DailyNutritionTracker(foodDatabase));
+                    if (event.type == MealLogEvent.CLOSE_DAY) {
+                        closed.computeIfAbsent(event.userId, u -> new TreeMap<>()).put(event.getClosedDate(zone), tracker);
+                        sinceClose.remove(event.userId);
+                        continue;
+                    }
+                } else if (dayOf(event).isBefore(today)) {
+                    // Never closed; entries logged after a close on the same date join that day
+                    tracker = closed.computeIfAbsent(event.userId, u -> new TreeMap<>())
+                        .computeIfAbsent(dayOf(event), d -> new DailyNutritionTracker(foodDatabase));
+                } else {
+                    open.add(event);
+                    continue;
+                }
+                switch (event.type) {
+                    case MealLogEvent.ADD:
+                        if (event.foodId >= 0 && event.foodId < foodDatabase.size()) {
+                            tracker.addFood(foodDatabase.getFoodById(event.foodId), event.grams, event.getMealSlot(),
+                                event.timestamp);
+                        }
+                        break;
+                    case MealLogEvent.UNDO:
+                        tracker.undoLastFood();
+                        break;
+                    case MealLogEvent.CLEAR:
+                        tracker.clearDailyIntake();
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (closed.isEmpty()) {
+                return;
+            }
+            
+            // 1. Make the summaries durable; re-running after a crash just rewrites the same days
+            try (FileChannel summaries = FileChannel.open(directory.resolve(SUMMARY_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ByteBuffer out = ByteBuffer.allocate(1 << 16);
+                for (Map.Entry<String, Map<LocalDate, DailyNutritionTracker>> user : closed.entrySet()) {
+                    byte[] userBytes = user.getKey().getBytes(StandardCharsets.UTF_8);
+                    for (Map.Entry<LocalDate, DailyNutritionTracker> day : user.getValue().entrySet()) {
+                        int payloadLength = 2 + userBytes.length + 8 + 4 + 8 * Nutrient.COUNT;
+                        if (out.remaining() < payloadLength + 8) {
+                            out.flip();
+                            writeFully(summaries, out);
+                        }
+                        out.putInt(payloadLength);
+                        int payloadStart = out.position();
+                        out.putShort((short) userBytes.length).put(userBytes)
+                            .putLong(day.getKey().toEpochDay()).putInt(day.getValue().getEntryCount());
+                        NutritionSummary summary = day.getValue().getNutritionSummary();
+                        for (Nutrient nutrient : Nutrient.values()) {
+                            out.putDouble(summary.get(nutrient));
+                        }
+                        out.putInt(checksum(out, payloadStart, payloadLength));
+                    }
+                }
+                out.flip();
+                writeFully(summaries, out);
+                summaries.force(true);
+            }
+            
+            // 2. Rewrite the log with only today's events and swap it in atomically
+            Path compacted = directory.resolve(LOG_FILE + ".compact");
+            try (FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                buffer.clear();
+                for (MealLogEvent event : open) {
+                    encode(event);
+                    if (buffer.position() > buffer.capacity() / 2) {
+                        buffer.flip();
+                        writeFully(target, buffer);
+                        buffer.clear();
+                    }
+                }
+                buffer.flip();
+                writeFully(target, buffer);
+                buffer.clear();
+                target.force(true);
+            }
+            channel.close();
+            try {
+                Files.move(compacted, directory.resolve(LOG_FILE),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                // Whichever file is in place now, old or compacted, takes the next appends
+                reopen();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Meal log compaction failed", e);
+        }
+    }
+    
+    private static void writeFully(FileChannel target, ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            target.write(source);
+        }
+        source.clear();
+    }
+    
+    // Latest snapshot per user and day
+    public List<DailySummaryRecord> loadDailySummaries() throws IOException {
+        Path file = directory.resolve(SUMMARY_FILE);
+        Map<String, DailySummaryRecord> latest = new LinkedHashMap<>();
+        if (!Files.exists(file)) {
+            return new ArrayList<>();
+        }
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+        java.util.zip.CRC32 readCrc = new java.util.zip.CRC32();
+        while (data.remaining() >= 4) {
+            int payloadLength = data.getInt();
+            if (payloadLength <= 0 || payloadLength > data.remaining() - 4) {
+                break;
+            }
+            int payloadStart = data.position();
+            readCrc.reset();
+            readCrc.update(data.array(), payloadStart, payloadLength);
+            if (data.getInt(payloadStart + payloadLength) != (int) readCrc.getValue()) {
+                break;
+            }
+            byte[] user = new byte[data.getShort()];
+            data.get(user);
+            LocalDate date = LocalDate.ofEpochDay(data.getLong());
+            int entries = data.getInt();
+            double[] totals = new double[Nutrient.COUNT];
+            for (int n = 0; n < totals.length; n++) {
+                totals[n] = data.getDouble();
+            }
+            NutritionSummary summary = new NutritionSummary();
+            summary.add(totals, 1);
+            String userId = new String(user, StandardCharsets.UTF_8);
+            latest.put(userId + "\u0000" + date, new DailySummaryRecord(userId, date, entries, summary));
+            data.position(payloadStart + payloadLength + 4);
+        }
+        return new ArrayList<>(latest.values());
+    }
+    
+    @Override
+    public void close() {
+        if (compactionScheduler != null) {
+            compactionScheduler.shutdownNow();
+        }
+        running = false;
+        try {
+            writer.join(5000);
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("Could not close meal log: " + e.getMessage());
+        }
+    }
+}
+
+// Meal Log Write Throughput Benchmark
+class MealLogBenchmark {
+    // Usage: java dietplanner.MealLogBenchmark [dir] [threads] [entriesPerThread]
+    public static void main(String[] args) throws Exception {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "meal-log-bench");
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int perThread = args.length > 2 ? Integer.parseInt(args[2]) : 250_000;
+        
+        FoodDatabase foodDatabase = new FoodDatabase();
+        NutritionTrackingService service = new NutritionTrackingService(foodDatabase);
+        MealLog log = MealLog.open(dir, foodDatabase);
+        log.replay(service);
+        service.attachMealLog(log);
+        
+        Food food = foodDatabase.getFood("banana");
+        List<CompletableFuture<Void>> last = Collections.synchronizedList(new ArrayList<>());
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int worker = t;
+            workers[t] = new Thread(() -> {
+                CompletableFuture<Void> durable = null;
+                for (int i = 0; i < perThread; i++) {
+                    durable = service.addFood("bench-" + worker + "-" + (i % 100), food, 120);
+                }
+                last.add(durable);
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        // The writer is FIFO, so each producer's last future covers all its earlier entries
+        CompletableFuture.allOf(last.toArray(new CompletableFuture<?>[0])).join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long entries = (long) threads * perThread;
+        System.out.printf("Logged %d entries durably in %.2f s (%.0f entries/s, %d fsyncs)\n",
+            entries, seconds, entries / seconds, log.getSyncCount());
+        log.close();
+    }
+}
+
+// Nutrition History
+//
+// Per-day NutritionSummary rollups for one user. Each day occupies STRIDE slots (the
+// nutrients, a recorded-day flag and the entry count) and the slots are kept in a Fenwick
+// tree over days, so totals and averages for any date range cost O(log days).
+class NutritionHistory {
+    private static final int RECORDED = Nutrient.COUNT;
+    private static final int ENTRIES = Nutrient.COUNT + 1;
+    private static final int STRIDE = Nutrient.COUNT + 2;
+    // Room left before the first recorded day so backfilling a few weeks does not rebuild
+    private static final int BACKFILL_DAYS = 31;
+    private static final Nutrient[] NUTRIENTS = Nutrient.values();
+    
+    private long originDay;
+    private int capacity;
+    // Raw per-day values, STRIDE per day
+    private double[] days = new double[0];
+    // Fenwick tree, 1-based, STRIDE per node
+    private double[] tree = new double[STRIDE];
+    
+    // Stores (or replaces) the rollup for a day
+    public synchronized void recordDay(LocalDate date, NutritionSummary summary, int entries) {
+        long epochDay = date.toEpochDay();
+        ensureCovers(epochDay);
+        int index = (int) (epochDay - originDay);
+        int base = index * STRIDE;
+        double[] delta = new double[STRIDE];
+        for (int n = 0; n < Nutrient.COUNT; n++) {
+            double value = summary.get(NUTRIENTS[n]);
+            delta[n] = value - days[base + n];
+            days[base + n] = value;
+        }
+        delta[RECORDED] = 1 - days[base + RECORDED];
+        days[base + RECORDED] = 1;
+        delta[ENTRIES] = entries - days[base + ENTRIES];
+        days[base + ENTRIES] = entries;
+        for (int node = index + 1; node <= capacity; node += node & -node) {
+            int offset = node * STRIDE;
+            for (int s = 0; s < STRIDE; s++) {
+                tree[offset + s] += delta[s];
+            }
+        }
+    }
+    
+    // The rollup for one day, or null if nothing was recorded for it
+    public synchronized NutritionSummary getDay(LocalDate date) {
+        long index = date.toEpochDay() - originDay;
+        if (index < 0 || index >= capacity || days[(int) index * STRIDE + RECORDED] == 0) {
+            return null;
+        }
+        NutritionSummary summary = new NutritionSummary();
+        summary.add(Arrays.copyOfRange(days, (int) index * STRIDE, (int) index * STRIDE + Nutrient.COUNT), 1);
+        return summary;
+    }
+    
+    public NutritionSummary getTotal(LocalDate from, LocalDate to) {
+        NutritionSummary summary = new NutritionSummary();
+        summary.add(range(from, to), 1);
+        return summary;
+    }
+    
+    // Average per recorded day; days without a rollup do not pull the average down
+    public NutritionSummary getAverage(LocalDate from, LocalDate to) {
+        double[] sums = range(from, to);
+        NutritionSummary summary = new NutritionSummary();
+        if (sums[RECORDED] > 0) {
+            summary.add(sums, 1 / sums[RECORDED]);
+        }
+        return summary;
+    }
+    
+    public int getRecordedDays(LocalDate from, LocalDate to) {
+        return (int) Math.round(range(from, to)[RECORDED]);
+    }
+    
+    public long getEntryCount(LocalDate from, LocalDate to) {
+        return Math.round(range(from, to)[ENTRIES]);
+    }
+    
+    private synchronized double[] range(LocalDate from, LocalDate to) {
+        double[] sums = new double[STRIDE];
+        long first = Math.max(from.toEpochDay() - originDay, 0);
+        long last = Math.min(to.toEpochDay() - originDay, capacity - 1L);
+        if (first > last) {
+            return sums;
+        }
+        accumulate((int) last + 1, sums, 1);
+        accumulate((int) first, sums, -1);
+        return sums;
+    }
+    
+    // Adds sign * (sum of the first count days) to sums
+    private void accumulate(int count, double[] sums, int sign) {
+        for (int node = count; node > 0; node -= node & -node) {
+            int offset = node * STRIDE;
+            for (int s = 0; s < STRIDE; s++) {
+                sums[s] += sign * tree[offset + s];
+            }
+        }
+    }
+    
+    // Grows the covered day range (doubling) and rebuilds the tree in O(days)
+    private void ensureCovers(long epochDay) {
+        if (capacity > 0 && epochDay >= originDay && epochDay < originDay + capacity) {
+            return;
+        }
+        long newOrigin = capacity == 0 ? epochDay - BACKFILL_DAYS : Math.min(originDay, epochDay - BACKFILL_DAYS);
+        long newEnd = capacity == 0 ? epochDay + 1 : Math.max(originDay + capacity, epochDay + 1);
+        int newCapacity = Math.max(64, capacity);
+        while (newCapacity < newEnd - newOrigin) {
+            newCapacity *= 2;
+        }
+        double[] newDays = new double[newCapacity * STRIDE];
+        if (capacity > 0) {
+            System.arraycopy(days, 0, newDays, (int) (originDay - newOrigin) * STRIDE, capacity * STRIDE);
+        }
+        double[] newTree = new double[(newCapacity + 1) * STRIDE];
+        System.arraycopy(newDays, 0, newTree, STRIDE, newDays.length);
+        for (int node = 1; node <= newCapacity; node++) {
+            int parent = node + (node & -node);
+            if (parent <= newCapacity) {
+                for (int s = 0; s < STRIDE; s++) {
+                    newTree[parent * STRIDE + s] += newTree[node * STRIDE + s];
+                }
+            }
+        }
+        originDay = newOrigin;
+        capacity = newCapacity;
+        days = newDays;
+        tree = newTree;
+    }
+}
+
+// Report Output Format
+enum ReportFormat {
+    TEXT, JSON, CSV
+}
+
+// Buffered Report Renderer
+//
+// Reports are appended to one reusable StringBuilder (numbers go through FixedPoint rather
+// than String.format) and writeTo() encodes the whole batch as UTF-8 into a reusable direct
+// buffer, so rendering many reports costs a few channel writes instead of a flush per line.
+// Not thread-safe; use one renderer per thread.
+class ReportRenderer {
+    private static final ThreadLocal<ReportRenderer[]> PER_THREAD =
+        ThreadLocal.withInitial(() -> new ReportRenderer[ReportFormat.values().length]);
+    private static final WritableByteChannel STDOUT = Channels.newChannel(System.out);
+    private static final Nutrient[] MACRONUTRIENTS = {Nutrient.CALORIES, Nutrient.PROTEIN, Nutrient.CARBS, Nutrient.FAT, Nutrient.FIBER};
+    private static final Nutrient[] VITAMINS = {Nutrient.VITAMIN_C, Nutrient.VITAMIN_D, Nutrient.VITAMIN_E, Nutrient.VITAMIN_B12, Nutrient.FOLATE};
+    private static final Nutrient[] MINERALS = {Nutrient.CALCIUM, Nutrient.IRON, Nutrient.MAGNESIUM, Nutrient.POTASSIUM, Nutrient.ZINC};
+    private static final Nutrient[] OTHER = {Nutrient.OMEGA3};
+    private static final Nutrient[] NUTRIENTS = Nutrient.values();
+    private static final int ASCII_RUN = 4096;
+    
+    private final ReportFormat format;
+    private final StringBuilder sb = new StringBuilder(8192);
+    // Allocated on the first writeTo(); renderers only used through toString() never need them
+    private ByteBuffer buffer;
+    private char[] chars;
+    private byte[] bytes;
+    // CSV headers are written once per renderer so batches form a single table
+    private enum Table { FOODS, INTAKE, SUMMARY }
+    private Table csvHeader;
+    
+    public ReportRenderer(ReportFormat format) {
+        this.format = format;
+    }
+    
+    static ReportRenderer console() {
+        return forThread(ReportFormat.TEXT);
+    }
+    
+    // Reusable renderer for the calling thread; callers reset() it before and after use
+    static ReportRenderer forThread(ReportFormat format) {
+        ReportRenderer[] renderers = PER_THREAD.get();
+        if (renderers[format.ordinal()] == null) {
+            renderers[format.ordinal()] = new ReportRenderer(format);
+        }
+        return renderers[format.ordinal()];
+    }
+    
+    public ReportFormat getFormat() {
+        return format;
+    }
+    
+    public int pendingChars() {
+        return sb.length();
+    }
+    
+    CharSequence pending() {
+        return sb;
+    }
+    
+    // For callers that interleave their own lines with rendered reports before writeTo()
+    StringBuilder builder() {
+        return sb;
+    }
+    
+    public ReportRenderer renderFoodList(Collection<Food> foods) {
+        switch (format) {
+            case TEXT:
+                sb.append("\nAvailable Foods:\n");
+                repeat('-', 40).append('\n');
+                for (Food food : foods) {
+                    padRight(food.getName(), 15).append(" - ");
+                    fixed(food.getCalories(), 0, 3).append(" cal/100g\n");
+                }
+                break;
+            case JSON:
+                sb.append('[');
+                boolean first = true;
+                for (Food food : foods) {
+                    if (!first) {
+                        sb.append(',');
+                    }
+                    first = false;
+                    sb.append("{\"name\":");
+                    jsonString(food.getName()).append(",\"per100g\":");
+                    jsonNutrients(food.getNutrientValues());
+                    sb.append('}');
+                }
+                sb.append("]\n");
+                break;
+            case CSV:
+                csvHeader(Table.FOODS, "food");
+                for (Food food : foods) {
+                    csvField(food.getName());
+                    double[] values = food.getNutrientValues();
+                    for (int n = 0; n < Nutrient.COUNT; n++) {
+                        sb.append(',');
+                        number(values[n]);
+                    }
+                    sb.append('\n');
+                }
+                break;
+        }
+        return this;
+    }
+    
+    public ReportRenderer renderDailyIntake(List<FoodEntry> entries, NutritionSummary summary) {
+        switch (format) {
+            case TEXT:
+                if (entries.isEmpty()) {
+                    sb.append("No food items added today.\n");
+                    break;
+                }
+                sb.append("\n=== Today's Food Intake ===\n");
+                repeat('-', 50).append('\n');
+                for (FoodEntry entry : entries) {
+                    double calories = (entry.getFood().getCalories() * entry.getQuantity()) / 100;
+                    clock(entry.getMinuteOfDay()).append(' ');
+                    padRight(entry.getMealSlot().getDisplayName(), 9).append(' ');
+                    padRight(entry.getFood().getName(), 15).append(' ');
+                    fixed(entry.getQuantity(), 0, 6).append("g - ");
+                    fixed(calories, 0, 4).append(" cal\n");
+                }
+                repeat('-', 50).append('\n');
+                sb.append("Total Calories: ");
+                fixed(summary.get(Nutrient.CALORIES), 0, 0).append('\n');
+                break;
+            case JSON:
+                sb.append("{\"entries\":[");
+                for (int i = 0; i < entries.size(); i++) {
+                    FoodEntry entry = entries.get(i);
+                    if (i > 0) {
+                        sb.append(',');
+                    }
+                    sb.append("{\"time\":\"");
+                    clock(entry.getMinuteOfDay()).append("\",\"meal\":\"").append(entry.getMealSlot().getKey())
+                        .append("\",\"food\":");
+                    jsonString(entry.getFood().getName()).append(",\"grams\":");
+                    number(entry.getQuantity()).append(",\"calories\":");
+                    number(entry.getFood().getCalories() * entry.getQuantity() / 100).append('}');
+                }
+                sb.append("],\"totalCalories\":");
+                number(summary.get(Nutrient.CALORIES)).append("}\n");
+                break;
+            case CSV:
+                csvHeader(Table.INTAKE, "time,meal,food,grams,calories");
+                for (FoodEntry entry : entries) {
+                    clock(entry.getMinuteOfDay()).append(',').append(entry.getMealSlot().getKey()).append(',');
+                    csvField(entry.getFood().getName()).append(',');
+                    number(entry.getQuantity()).append(',');
+                    number(entry.getFood().getCalories() * entry.getQuantity() / 100).append('\n');
+                }
+                break;
+        }
+        return this;
+    }
+    
+    public ReportRenderer renderNutritionSummary(String userId, NutritionSummary summary) {
+        return renderNutritionSummary(userId, summary, DietaryReferenceIntakes.ADULT_AVERAGE);
+    }
+    
+    // userId may be null for the console's single-user report; targets are daily reference
+    // intakes indexed by Nutrient.ordinal(), NaN where a nutrient has none
+    public ReportRenderer renderNutritionSummary(String userId, NutritionSummary summary, double[] targets) {
+        switch (format) {
+            case TEXT:
+                if (userId != null) {
+                    sb.append("User: ").append(userId).append('\n');
+                }
+                sb.append("=== Detailed Nutrition Summary ===\n");
+                repeat('-', 40).append('\n');
+                sb.append("MACRONUTRIENTS:\n");
+                for (Nutrient nutrient : MACRONUTRIENTS) {
+                    nutrientLine("", nutrient, summary, nutrient == Nutrient.CALORIES ? 0 : 1);
+                }
+                sb.append("\nMICRONUTRIENTS:\nVitamins:\n");
+                for (Nutrient nutrient : VITAMINS) {
+                    nutrientLine("  ", nutrient, summary, 1);
+                }
+                sb.append("Minerals:\n");
+                for (Nutrient nutrient : MINERALS) {
+                    nutrientLine("  ", nutrient, summary, 1);
+                }
+                sb.append("Other:\n");
+                for (Nutrient nutrient : OTHER) {
+                    nutrientLine("  ", nutrient, summary, 1);
+                }
+                sb.append("\n=== Daily Value Percentages ===\n");
+                for (Nutrient nutrient : NUTRIENTS) {
+                    double target = targets[nutrient.ordinal()];
+                    if (!Double.isNaN(target)) {
+                        sb.append(nutrient.getDisplayName()).append(": ");
+                        fixed(summary.get(nutrient) / target * 100, 0, 0).append("% (target ");
+                        number(target).append(' ').append(nutrient.getUnit()).append(")\n");
+                    }
+                }
+                break;
+            case JSON:
+                sb.append('{');
+                if (userId != null) {
+                    sb.append("\"user\":");
+                    jsonString(userId).append(',');
+                }
+                sb.append("\"totals\":");
+                jsonNutrients(summary);
+                sb.append(",\"percentOfTarget\":{");
+                boolean first = true;
+                for (Nutrient nutrient : NUTRIENTS) {
+                    double target = targets[nutrient.ordinal()];
+                    if (!Double.isNaN(target)) {
+                        sb.append(first ? "\"" : ",\"").append(nutrient.getKey()).append("\":");
+                        number(summary.get(nutrient) / target * 100);
+                        first = false;
+                    }
+                }
+                sb.append("}}\n");
+                break;
+            case CSV:
+                csvHeader(Table.SUMMARY, "user");
+                csvField(userId == null ? "" : userId);
+                for (Nutrient nutrient : NUTRIENTS) {
+                    sb.append(',');
+                    number(summary.get(nutrient));
+                }
+                sb.append('\n');
+                break;
+        }
+        return this;
+    }
+    
+    // Encodes everything rendered so far as UTF-8 and writes it in buffer-sized batches
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(64 * 1024);
+            chars = new char[ASCII_RUN];
+            bytes = new byte[ASCII_RUN];
+        }
+        int length = sb.length();
+        for (int i = 0; i < length; i++) {
+            if (buffer.remaining() < 4) {
+                drain(channel);
+            }
+            char c = sb.charAt(i);
+            if (c < 0x80) {
+                // Runs of ASCII, nearly all output, are narrowed through scratch arrays and put in bulk
+                int end = Math.min(length, i + Math.min(buffer.remaining(), ASCII_RUN));
+                sb.getChars(i, end, chars, 0);
+                int run = 0;
+                while (run < end - i && chars[run] < 0x80) {
+                    bytes[run] = (byte) chars[run];
+                    run++;
+                }
+                buffer.put(bytes, 0, run);
+                i += run - 1;
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6))).put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(sb.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, sb.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18))).put((byte) (0x80 | ((codePoint >> 12) & 0x3F)))
+                    .put((byte) (0x80 | ((codePoint >> 6) & 0x3F))).put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12))).put((byte) (0x80 | ((c >> 6) & 0x3F)))
+                    .put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        drain(channel);
+        sb.setLength(0);
+    }
+    
+    public void writeToConsole() {
+        try {
+            writeTo(STDOUT);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    // Discards rendered output and the CSV header state
+    public void reset() {
+        sb.setLength(0);
+        if (buffer != null) {
+            buffer.clear();
+        }
+        csvHeader = null;
+    }
+    
+    // The rendered output not yet written to a channel
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+    
+    private void drain(WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+    
+    private void nutrientLine(String indent, Nutrient nutrient, NutritionSummary summary, int decimals) {
+        sb.append(indent).append(nutrient.getDisplayName()).append(": ");
+        fixed(summary.get(nutrient), decimals, 0).append(' ').append(nutrient.getUnit()).append('\n');
+    }
+    
+    private void csvHeader(Table kind, String leadingColumns) {
+        if (csvHeader == kind) {
+            return;
+        }
+        csvHeader = kind;
+        sb.append(leadingColumns);
+        if (kind != Table.INTAKE) {
+            for (Nutrient nutrient : NUTRIENTS) {
+                sb.append(',').append(nutrient.getKey());
+            }
+        }
+        sb.append('\n');
+    }
+    
+    private StringBuilder csvField(String value) {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            return sb.append(value);
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                sb.append('"');
+            }
+            sb.append(c);
+        }
+        return sb.append('"');
+    }
+    
+    private StringBuilder jsonString(String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"');
+    }
+    
+    private void jsonNutrients(NutritionSummary summary) {
+        sb.append('{');
+        for (int n = 0; n < Nutrient.COUNT; n++) {
+            if (n > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(NUTRIENTS[n].getKey()).append("\":");
+            number(summary.get(NUTRIENTS[n]));
+        }
+        sb.append('}');
+    }
+    
+    private void jsonNutrients(double[] values) {
+        sb.append('{');
+        for (int n = 0; n < Nutrient.COUNT; n++) {
+            if (n > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(NUTRIENTS[n].getKey()).append("\":");
+            number(values[n]);
+        }
+        sb.append('}');
+    }
+    
+    // Machine-readable number: at most two decimals, trailing zeros dropped (matches JsonWriter)
+    private StringBuilder number(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return sb.append(format == ReportFormat.JSON ? "null" : "");
+        }
+        int start = sb.length();
+        FixedPoint.append(sb, value, 2);
+        int end = sb.length();
+        if (sb.indexOf(".", start) >= 0) {
+            while (sb.charAt(end - 1) == '0') {
+                end--;
+            }
+            if (sb.charAt(end - 1) == '.') {
+                end--;
+            }
+            sb.setLength(end);
+        }
+        return sb;
+    }
+    
+    // Equivalent of %width.decimalsf
+    private StringBuilder fixed(double value, int decimals, int width) {
+        int start = sb.length();
+        FixedPoint.append(sb, value, decimals);
+        for (int pad = width - (sb.length() - start); pad > 0; pad--) {
+            sb.insert(start, ' ');
+        }
+        return sb;
+    }
+    
+    // Equivalent of %-widths
+    private StringBuilder padRight(String value, int width) {
+        sb.append(value);
+        for (int pad = width - value.length(); pad > 0; pad--) {
+            sb.append(' ');
+        }
+        return sb;
+    }
+    
+    // HH:MM
+    private StringBuilder clock(int minuteOfDay) {
+        int hours = minuteOfDay / 60;
+        int minutes = minuteOfDay % 60;
+        return sb.append((char) ('0' + hours / 10)).append((char) ('0' + hours % 10)).append(':')
+            .append((char) ('0' + minutes / 10)).append((char) ('0' + minutes % 10));
+    }
+    
+    private StringBuilder repeat(char c, int count) {
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb;
+    }
+}
+
+// Bulk Meal Log Ingestion
+//
+// Reads partner exports of "user,food,grams,timestamp" lines. The file is split into
+// chunks on line boundaries, each chunk is memory-mapped and parsed straight from the
+// mapped bytes by a pool of workers. Every worker keeps its own food-name cache and
+// per-user accumulators, so memory grows with distinct users and foods, not file size;
+// the per-worker results are merged at the end. The food name may contain commas
+// (user is the first field, grams and timestamp the last two).
+class MealLogIngestor {
+    private static final long CHUNK_BYTES = 64L << 20;
+    private static final int REPORTED_UNKNOWN_FOODS = 10;
+    
+    private final FoodDatabase foodDatabase;
+    private final int threads;
+    
+    static class IngestResult {
+        final Map<String, NutritionSummary> summaries = new HashMap<>();
+        final Map<String, Long> unknownFoods = new HashMap<>();
+        long lines;
+        long entries;
+        long unknownFoodEntries;
+        long malformedLines;
+        long minTimestamp = Long.MAX_VALUE;
+        long maxTimestamp = Long.MIN_VALUE;
+        long bytes;
+        double millis;
+    }
+    
+    // Open-addressing table from raw UTF-8 field bytes to an int, so cache hits never
+    // decode a String
+    private static final class ByteKeyTable {
+        private byte[][] keys = new byte[1024][];
+        private int[] hashes = new int[1024];
+        private int[] values = new int[1024];
+        private int size;
+        
+        int get(ByteBuffer data, int offset, int length, int hash) {
+            int mask = keys.length - 1;
+            for (int slot = hash & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+                if (hashes[slot] == hash && matches(keys[slot], data, offset, length)) {
+                    return values[slot];
+                }
+            }
+            return Integer.MIN_VALUE;
+        }
+        
+        void put(byte[] key, int hash, int value) {
+            if (size * 2 >= keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int slot = hash & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            hashes[slot] = hash;
+            values[slot] = value;
+            size++;
+        }
+        
+        private void grow() {
+            byte[][] oldKeys = keys;
+            int[] oldHashes = hashes;
+            int[] oldValues = values;
+            keys = new byte[oldKeys.length * 2][];
+            hashes = new int[keys.length];
+            values = new int[keys.length];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    put(oldKeys[i], oldHashes[i], oldValues[i]);
+                }
+            }
+        }
+        
+        private static boolean matches(byte[] key, ByteBuffer data, int offset, int length) {
+            if (key.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (key[i] != data.get(offset + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    // State owned by one worker thread
+    private final class Worker {
+        final ByteKeyTable foodCache = new ByteKeyTable();
+        final ByteKeyTable userIndex = new ByteKeyTable();
+        final List<String> userIds = new ArrayList<>();
+        final List<NutritionSummary> userSummaries = new ArrayList<>();
+        // Unknown names are cached too, as -(index + 1) into these lists
+        final List<String> unknownNames = new ArrayList<>();
+        long[] unknownCounts = new long[16];
+        long lines;
+        long entries;
+        long unknownFoodEntries;
+        long malformedLines;
+        long minTimestamp = Long.MAX_VALUE;
+        long maxTimestamp = Long.MIN_VALUE;
+        
+        void parse(ByteBuffer data, boolean firstChunk) {
+            int limit = data.limit();
+            int position = 0;
+            while (position < limit) {
+                int lineStart = position;
+                int firstComma = -1;
+                int previousComma = -1;
+                int lastComma = -1;
+                while (position < limit) {
+                    byte b = data.get(position);
+                    if (b == '\n') {
+                        break;
+                    }
+                    if (b == ',') {
+                        if (firstComma < 0) {
+                            firstComma = position;
+                        }
+                        previousComma = lastComma;
+                        lastComma = position;
+                    }
+                    position++;
+                }
+                int lineEnd = position;
+                position++;
+                if (lineEnd > lineStart && data.get(lineEnd - 1) == '\r') {
+                    lineEnd--;
+                }
+                if (lineEnd == lineStart) {
+                    continue;
+                }
+                lines++;
+                if (firstChunk && lines == 1 && startsWith(data, lineStart, "user,")) {
+                    lines--;
+                    continue;
+                }
+                if (previousComma <= firstComma) {
+                    malformedLines++;
+                    continue;
+                }
+                parseLine(data, lineStart, firstComma, previousComma, lastComma, lineEnd);
+            }
+        }
+        
+        private void parseLine(ByteBuffer data, int start, int c1, int c2, int c3, int end) {
+            double grams = parseDecimal(data, c2 + 1, c3);
+            long timestamp = parseTimestamp(data, c3 + 1, end);
+            if (Double.isNaN(grams) || grams <= 0 || timestamp == Long.MIN_VALUE) {
+                malformedLines++;
+                return;
+            }
+            int foodStart = skipSpaces(data, c1 + 1, c2);
+            int foodEnd = trimSpaces(data, foodStart, c2);
+            int foodHash = hash(data, foodStart, foodEnd);
+            int foodId = foodCache.get(data, foodStart, foodEnd - foodStart, foodHash);
+            if (foodId == Integer.MIN_VALUE) {
+                byte[] key = bytes(data, foodStart, foodEnd);
+                String name = new String(key, StandardCharsets.UTF_8);
+                Food food = foodDatabase.getFood(name);
+                if (food != null) {
+                    foodId = food.getId();
+                } else {
+                    foodId = -(unknownNames.size() + 1);
+                    unknownNames.add(name.toLowerCase(Locale.ROOT));
+                    if (unknownNames.size() > unknownCounts.length) {
+                        unknownCounts = Arrays.copyOf(unknownCounts, unknownCounts.length * 2);
+                    }
+                }
+                foodCache.put(key, foodHash, foodId);
+            }
+            if (foodId < 0) {
+                unknownFoodEntries++;
+                unknownCounts[-foodId - 1]++;
+                return;
+            }
+            
+            int userEnd = trimSpaces(data, start, c1);
+            int userHash = hash(data, start, userEnd);
+            int user = userIndex.get(data, start, userEnd - start, userHash);
+            if (user == Integer.MIN_VALUE) {
+                byte[] key = bytes(data, start, userEnd);
+                user = userIds.size();
+                userIds.add(new String(key, StandardCharsets.UTF_8));
+                userSummaries.add(new NutritionSummary());
+                userIndex.put(key, userHash, user);
+            }
+            userSummaries.get(user).add(foodDatabase.getFoodById(foodId).getNutrientValues(), grams / 100.0);
+            entries++;
+            minTimestamp = Math.min(minTimestamp, timestamp);
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+        }
+    }
+    
+    public MealLogIngestor(FoodDatabase foodDatabase, int threads) {
+        this.foodDatabase = foodDatabase;
+        this.threads = Math.max(1, threads);
+    }
+    
+    public IngestResult ingest(Path file) throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long[] bounds = chunkBounds(channel);
+            int chunks = bounds.length - 1;
+            AtomicInteger nextChunk = new AtomicInteger();
+            List<Worker> workers = new ArrayList<>();
+            List<Future<?>> futures = new ArrayList<>();
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, chunks)));
+            try {
+                for (int t = 0; t < Math.min(threads, Math.max(1, chunks)); t++) {
+                    Worker worker = new Worker();
+                    workers.add(worker);
+                    futures.add(pool.submit(() -> {
+                        for (int c = nextChunk.getAndIncrement(); c < chunks; c = nextChunk.getAndIncrement()) {
+                            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, bounds[c], bounds[c + 1] - bounds[c]);
+                            worker.parse(data, c == 0);
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Ingest interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Ingest failed", e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+            
+            IngestResult result = merge(workers);
+            result.bytes = channel.size();
+            result.millis = (System.nanoTime() - start) / 1e6;
+            return result;
+        }
+    }
+    
+    // Chunk boundaries moved forward to the byte after the next newline
+    private static long[] chunkBounds(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long position = CHUNK_BYTES;
+        while (position < size) {
+            long boundary = -1;
+            for (long scan = position; scan < size && boundary < 0; scan += probe.capacity()) {
+                probe.clear();
+                int read = channel.read(probe, scan);
+                for (int i = 0; i < read; i++) {
+                    if (probe.get(i) == '\n') {
+                        boundary = scan + i + 1;
+                        break;
+                    }
+                }
+            }
+            if (boundary < 0 || boundary >= size) {
+                break;
+            }
+            bounds.add(boundary);
+            position = boundary + CHUNK_BYTES;
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+    
+    private static IngestResult merge(List<Worker> workers) {
+        IngestResult result = new IngestResult();
+        for (Worker worker : workers) {
+            result.lines += worker.lines;
+            result.entries += worker.entries;
+            result.unknownFoodEntries += worker.unknownFoodEntries;
+            result.malformedLines += worker.malformedLines;
+            result.minTimestamp = Math.min(result.minTimestamp, worker.minTimestamp);
+            result.maxTimestamp = Math.max(result.maxTimestamp, worker.maxTimestamp);
+            for (int u = 0; u < worker.userIds.size(); u++) {
+                NutritionSummary total = result.summaries.get(worker.userIds.get(u));
+                if (total == null) {
+                    result.summaries.put(worker.userIds.get(u), worker.userSummaries.get(u));
+                } else {
+                    total.merge(worker.userSummaries.get(u));
+                }
+            }
+            for (int i = 0; i < worker.unknownNames.size(); i++) {
+                result.unknownFoods.merge(worker.unknownNames.get(i), worker.unknownCounts[i], Long::sum);
+            }
+        }
+        return result;
+    }
+    
+    private static boolean startsWith(ByteBuffer data, int offset, String prefix) {
+        if (offset + prefix.length() > data.limit()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (Character.toLowerCase((char) data.get(offset + i)) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static int skipSpaces(ByteBuffer data, int from, int to) {
+        while (from < to && data.get(from) == ' ') {
+            from++;
+        }
+        return from;
+    }
+    
+    private static int trimSpaces(ByteBuffer data, int from, int to) {
+        while (to > from && data.get(to - 1) == ' ') {
+            to--;
+        }
+        return to;
+    }
+    
+    private static byte[] bytes(ByteBuffer data, int from, int to) {
+        byte[] key = new byte[to - from];
+        data.get(from, key);
+        return key;
+    }
+    
+    // FNV-1a
+    private static int hash(ByteBuffer data, int from, int to) {
+        int h = 0x811C9DC5;
+        for (int i = from; i < to; i++) {
+            h = (h ^ data.get(i)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+    
+    // Plain decimal such as "150" or "87.5"; NaN for anything else
+    private static double parseDecimal(ByteBuffer data, int from, int to) {
+        from = skipSpaces(data, from, to);
+        to = trimSpaces(data, from, to);
+        long mantissa = 0;
+        int fractionDigits = 0;
+        boolean seenDot = false;
+        boolean seenDigit = false;
+        for (int i = from; i < to; i++) {
+            byte b = data.get(i);
+            if (b >= '0' && b <= '9') {
+                if (mantissa > 100_000_000_000_000L) {
+                    return Double.NaN;
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                seenDigit = true;
+                if (seenDot) {
+                    fractionDigits++;
+                }
+            } else if (b == '.' && !seenDot) {
+                seenDot = true;
+            } else {
+                return Double.NaN;
+            }
+        }
+        if (!seenDigit) {
+            return Double.NaN;
+        }
+        double value = mantissa;
+        for (int i = 0; i < fractionDigits; i++) {
+            value /= 10;
+        }
+        return value;
+    }
+    
+    // Epoch milliseconds, epoch seconds (10 digits or fewer) or ISO-8601; Long.MIN_VALUE if invalid
+    private static long parseTimestamp(ByteBuffer data, int from, int to) {
+        from = skipSpaces(data, from, to);
+        to = trimSpaces(data, from, to);
+        if (from == to) {
+            return Long.MIN_VALUE;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            byte b = data.get(i);
+            if (b < '0' || b > '9') {
+                try {
+                    return Instant.parse(new String(bytes(data, from, to), StandardCharsets.US_ASCII)).toEpochMilli();
+                } catch (DateTimeException e) {
+                    return Long.MIN_VALUE;
+                }
+            }
+            value = value * 10 + (b - '0');
+        }
+        return to - from <= 10 ? value * 1000 : value;
+    }
+    
+    // Usage: java dietplanner.MealLogIngestor log.csv [threads] [summaries.csv]
+    //        java dietplanner.MealLogIngestor --generate log.csv lines users
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 4 && args[0].equals("--generate")) {
+            generate(Paths.get(args[1]), Long.parseLong(args[2]), Integer.parseInt(args[3]));
+            return;
+        }
+        if (args.length < 1) {
+            System.out.println("Usage: java dietplanner.MealLogIngestor <log.csv> [threads] [summaries.csv]");
+            return;
+        }
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        IngestResult result = new MealLogIngestor(new FoodDatabase(), threads).ingest(Paths.get(args[0]));
+        
+        double seconds = result.millis / 1000;
+        System.out.printf("Ingested %d lines (%.1f MB) in %.2f s: %.0f lines/s, %.0f MB/s%n",
+            result.lines, result.bytes / 1e6, seconds, result.lines / seconds, result.bytes / 1e6 / seconds);
+        System.out.printf("%d entries for %d users, %d unknown-food entries (%d distinct foods), %d malformed lines%n",
+            result.entries, result.summaries.size(), result.unknownFoodEntries, result.unknownFoods.size(), result.malformedLines);
+        if (result.entries > 0) {
+            System.out.println("Timestamps from " + Instant.ofEpochMilli(result.minTimestamp)
+                + " to " + Instant.ofEpochMilli(result.maxTimestamp));
+        }
+        if (!result.unknownFoods.isEmpty()) {
+            System.out.println("Most frequent unknown foods:");
+            result.unknownFoods.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(REPORTED_UNKNOWN_FOODS)
+                .forEach(e -> System.out.println("  " + e.getKey() + ": " + e.getValue()));
+        }
+        
+        if (args.length > 2) {
+            try (FileChannel out = FileChannel.open(Paths.get(args[2]), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ReportRenderer renderer = new ReportRenderer(ReportFormat.CSV);
+                for (Map.Entry<String, NutritionSummary> user : result.summaries.entrySet()) {
+                    renderer.renderNutritionSummary(user.getKey(), user.getValue());
+                    if (renderer.pendingChars() > 256 * 1024) {
+                        renderer.writeTo(out);
+                    }
+                }
+                renderer.writeTo(out);
+            }
+        }
+    }
+    
+    private static void generate(Path file, long lines, int users) throws IOException {
+        String[] foods = {"apple", "Banana", "chicken breast", "rice", "Broccoli", "salmon", "spinach", "oats",
+            "egg", "milk", "almonds", "sweet potato", "kale chips", "protein bar, chocolate"};
+        Random random = new Random(3);
+        long timestamp = 1_700_000_000_000L;
+        try (Writer out = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8), 1 << 16)) {
+            out.write("user,food,grams,timestamp\n");
+            StringBuilder sb = new StringBuilder();
+            for (long i = 0; i < lines; i++) {
+                sb.setLength(0);
+                sb.append("partner-").append(random.nextInt(users)).append(',')
+                    .append(foods[random.nextInt(foods.length)]).append(',');
+                FixedPoint.append(sb, 10 + random.nextDouble() * 290, 1).append(',');
+                timestamp += random.nextInt(2000);
+                sb.append(timestamp).append('\n');
+                out.append(sb);
+            }
+        }
+    }
+}
+
+// Bounded LRU Cache
+//
+// Access-ordered LinkedHashMap with an optional time-to-live and hit/miss/eviction counts.
+// Values are computed outside the lock, so two threads missing the same key at once may
+// both compute it; the cached values here are deterministic, so that only costs time.
+class LruCache<K, V> {
+    private final int maxSize;
+    private final long ttlNanos;
+    private final LinkedHashMap<K, CachedValue<V>> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    
+    private static final class CachedValue<V> {
+        final V value;
+        final long createdNanos;
+        
+        CachedValue(V value, long createdNanos) {
+            this.value = value;
+            this.createdNanos = createdNanos;
+        }
+    }
+    
+    // A ttl of 0 keeps entries until they are evicted
+    public LruCache(int maxSize, long ttl, TimeUnit unit) {
+        this.maxSize = maxSize;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<K, CachedValue<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CachedValue<V>> eldest) {
+                if (size() > LruCache.this.maxSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+    
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        synchronized (this) {
+            CachedValue<V> cached = entries.get(key);
+            if (cached != null) {
+                if (ttlNanos == 0 || System.nanoTime() - cached.createdNanos < ttlNanos) {
+                    hits.increment();
+                    return cached.value;
+                }
+                entries.remove(key);
+                expirations.increment();
+            }
+        }
+        misses.increment();
+        V value = loader.apply(key);
+        synchronized (this) {
+            entries.put(key, new CachedValue<>(value, System.nanoTime()));
+        }
+        return value;
+    }
+    
+    public synchronized void invalidate(K key) {
+        entries.remove(key);
+    }
+    
+    public synchronized void invalidateAll() {
+        entries.clear();
+    }
+    
+    public synchronized int size() {
+        return entries.size();
+    }
+    
+    public int getMaxSize() { return maxSize; }
+    public long getHitCount() { return hits.sum(); }
+    public long getMissCount() { return misses.sum(); }
+    public long getEvictionCount() { return evictions.sum(); }
+    public long getExpirationCount() { return expirations.sum(); }
+    
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+}
+
+// Food Substitution Query
+//
+// Which nutrients count towards similarity (all equally by default) and hard bounds on
+// the per-100g values of acceptable substitutes.
+class SubstitutionQuery {
+    final double[] weights = new double[Nutrient.COUNT];
+    final double[] minimums = new double[Nutrient.COUNT];
+    final double[] maximums = new double[Nutrient.COUNT];
+    // Approximate search: subtrees are skipped unless they could beat the k-th best by (1 + epsilon)
+    double epsilon;
+    
+    public SubstitutionQuery() {
+        Arrays.fill(weights, 1);
+        Arrays.fill(minimums, Double.NEGATIVE_INFINITY);
+        Arrays.fill(maximums, Double.POSITIVE_INFINITY);
+    }
+    
+    // Only these nutrients count towards similarity
+    public SubstitutionQuery focusOn(Nutrient... nutrients) {
+        Arrays.fill(weights, 0);
+        for (Nutrient nutrient : nutrients) {
+            weights[nutrient.ordinal()] = 1;
+        }
+        return this;
+    }
+    
+    public SubstitutionQuery weight(Nutrient nutrient, double weight) {
+        weights[nutrient.ordinal()] = Math.max(0, weight);
+        return this;
+    }
+    
+    public SubstitutionQuery atMost(Nutrient nutrient, double per100g) {
+        maximums[nutrient.ordinal()] = per100g;
+        return this;
+    }
+    
+    public SubstitutionQuery atLeast(Nutrient nutrient, double per100g) {
+        minimums[nutrient.ordinal()] = per100g;
+        return this;
+    }
+    
+    public SubstitutionQuery approximate(double epsilon) {
+        this.epsilon = Math.max(0, epsilon);
+        return this;
+    }
+}
+
+// Nutrient-vector KD-tree
+//
+// Each food is a point whose coordinates are its per-100g nutrients divided by the
+// catalog's standard deviation for that nutrient, so every nutrient contributes on the
+// same scale. Points are stored contiguously in tree order; every node keeps its bounding
+// box, which gives a lower bound on the distance to anything inside it and lets subtrees
+// that cannot meet a query's bounds be skipped entirely.
+class FoodSubstitutionIndex {
+    static final int DIMENSIONS = Nutrient.COUNT;
+    private static final int LEAF_SIZE = 16;
+    
+    private final int size;
+    private final float[] scale = new float[DIMENSIONS];
+    // Normalized coordinates in tree order, DIMENSIONS per point
+    private final float[] points;
+    // Tree position -> food id
+    private final int[] ids;
+    private int nodeCount;
+    private int[] nodeStart;
+    private int[] nodeEnd;
+    private int[] nodeLeft;
+    private float[] boxMin;
+    private float[] boxMax;
+    
+    static final class Match {
+        final int foodId;
+        final double distance;
+        
+        Match(int foodId, double distance) {
+            this.foodId = foodId;
+            this.distance = distance;
+        }
+    }
+    
+    // vectors holds count foods, DIMENSIONS per-100g values each, indexed by food id
+    FoodSubstitutionIndex(float[] vectors, int count) {
+        size = count;
+        points = new float[count * DIMENSIONS];
+        ids = new int[count];
+        double[] sum = new double[DIMENSIONS];
+        double[] sumSquares = new double[DIMENSIONS];
+        for (int i = 0; i < count; i++) {
+            for (int d = 0; d < DIMENSIONS; d++) {
+                double v = vectors[i * DIMENSIONS + d];
+                sum[d] += v;
+                sumSquares[d] += v * v;
+            }
+        }
+        for (int d = 0; d < DIMENSIONS; d++) {
+            double mean = count == 0 ? 0 : sum[d] / count;
+            double variance = count == 0 ? 0 : sumSquares[d] / count - mean * mean;
+            scale[d] = variance > 1e-12 ? (float) (1 / Math.sqrt(variance)) : 1f;
+        }
+        for (int i = 0; i < count; i++) {
+            ids[i] = i;
+            for (int d = 0; d < DIMENSIONS; d++) {
+                points[i * DIMENSIONS + d] = vectors[i * DIMENSIONS + d] * scale[d];
+            }
+        }
+        // Median splits stop at LEAF_SIZE, so every leaf holds at least LEAF_SIZE / 2 points
+        int maxNodes = 2 * (count / (LEAF_SIZE / 2) + 1) + 1;
+        nodeStart = new int[maxNodes];
+        nodeEnd = new int[maxNodes];
+        nodeLeft = new int[maxNodes];
+        boxMin = new float[maxNodes * DIMENSIONS];
+        boxMax = new float[maxNodes * DIMENSIONS];
+        if (count > 0) {
+            nodeCount = 1;
+            build(0, 0, count);
+        }
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    // Children of an inner node are nodeLeft and nodeLeft + 1
+    private void build(int node, int start, int end) {
+        nodeStart[node] = start;
+        nodeEnd[node] = end;
+        nodeLeft[node] = -1;
+        int box = node * DIMENSIONS;
+        for (int d = 0; d < DIMENSIONS; d++) {
+            boxMin[box + d] = Float.POSITIVE_INFINITY;
+            boxMax[box + d] = Float.NEGATIVE_INFINITY;
+        }
+        for (int i = start; i < end; i++) {
+            for (int d = 0; d < DIMENSIONS; d++) {
+                float v = points[i * DIMENSIONS + d];
+                if (v < boxMin[box + d]) boxMin[box + d] = v;
+                if (v > boxMax[box + d]) boxMax[box + d] = v;
+            }
+        }
+        if (end - start <= LEAF_SIZE) {
+            return;
+        }
+        int splitDim = 0;
+        float widest = -1;
+        for (int d = 0; d < DIMENSIONS; d++) {
+            float spread = boxMax[box + d] - boxMin[box + d];
+            if (spread > widest) {
+                widest = spread;
+                splitDim = d;
+            }
+        }
+        if (widest <= 0) {
+            return; // all points identical
+        }
+        int middle = (start + end) >>> 1;
+        select(start, end - 1, middle, splitDim);
+        int left = nodeCount;
+        nodeCount += 2;
+        nodeLeft[node] = left;
+        build(left, start, middle);
+        build(left + 1, middle, end);
+    }
+    
+    // Quickselect so that position k holds the median along dim
+    private void select(int low, int high, int k, int dim) {
+        while (high > low) {
+            float pivot = points[((low + high) >>> 1) * DIMENSIONS + dim];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (points[i * DIMENSIONS + dim] < pivot) i++;
+                while (points[j * DIMENSIONS + dim] > pivot) j--;
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (k <= j) {
+                high = j;
+            } else if (k >= i) {
+                low = i;
+            } else {
+                return;
+            }
+        }
+    }
+    
+    private void swap(int a, int b) {
+        int tmpId = ids[a];
+        ids[a] = ids[b];
+        ids[b] = tmpId;
+        int pa = a * DIMENSIONS;
+        int pb = b * DIMENSIONS;
+        for (int d = 0; d < DIMENSIONS; d++) {
+            float tmp = points[pa + d];
+            points[pa + d] = points[pb + d];
+            points[pb + d] = tmp;
+        }
+    }
+    
+    // Per-search state; searches are independent so the index itself is immutable
+    private final class Search {
+        final float[] target = new float[DIMENSIONS];
+        final float[] weights = new float[DIMENSIONS];
+        final float[] low = new float[DIMENSIONS];
+        final float[] high = new float[DIMENSIONS];
+        final int[] weighted;
+        final int[] bounded;
+        final int excludeId;
+        final double pruneFactor;
+        // Max-heap of the best k so far
+        final double[] heapDistance;
+        final int[] heapId;
+        int heapSize;
+        
+        Search(double[] targetValues, int excludeId, int k, SubstitutionQuery query) {
+            this.excludeId = excludeId;
+            int weightedCount = 0;
+            int boundedCount = 0;
+            for (int d = 0; d < DIMENSIONS; d++) {
+                target[d] = (float) targetValues[d] * scale[d];
+                weights[d] = (float) query.weights[d];
+                low[d] = (float) (query.minimums[d] * scale[d]);
+                high[d] = (float) (query.maximums[d] * scale[d]);
+                if (weights[d] > 0) weightedCount++;
+                if (low[d] > Float.NEGATIVE_INFINITY || high[d] < Float.POSITIVE_INFINITY) boundedCount++;
+            }
+            weighted = new int[weightedCount];
+            bounded = new int[boundedCount];
+            for (int d = 0, w = 0, b = 0; d < DIMENSIONS; d++) {
+                if (weights[d] > 0) weighted[w++] = d;
+                if (low[d] > Float.NEGATIVE_INFINITY || high[d] < Float.POSITIVE_INFINITY) bounded[b++] = d;
+            }
+            double factor = 1 + query.epsilon;
+            pruneFactor = factor * factor;
+            heapDistance = new double[k];
+            heapId = new int[k];
+        }
+        
+        double worst() {
+            return heapSize < heapDistance.length ? Double.POSITIVE_INFINITY : heapDistance[0];
+        }
+        
+        double boxDistance(int node) {
+            int box = node * DIMENSIONS;
+            double distance = 0;
+            for (int d : weighted) {
+                float t = target[d];
+                float gap = t < boxMin[box + d] ? boxMin[box + d] - t : t > boxMax[box + d] ? t - boxMax[box + d] : 0;
+                distance += weights[d] * gap * gap;
+            }
+            return distance;
+        }
+        
+        boolean boxFeasible(int node) {
+            int box = node * DIMENSIONS;
+            for (int d : bounded) {
+                if (boxMax[box + d] < low[d] || boxMin[box + d] > high[d]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        void visit(int node, double lowerBound) {
+            if (lowerBound * pruneFactor >= worst() || !boxFeasible(node)) {
+                return;
+            }
+            int left = nodeLeft[node];
+            if (left < 0) {
+                scanLeaf(nodeStart[node], nodeEnd[node]);
+                return;
+            }
+            double leftBound = boxDistance(left);
+            double rightBound = boxDistance(left + 1);
+            if (leftBound <= rightBound) {
+                visit(left, leftBound);
+                visit(left + 1, rightBound);
+            } else {
+                visit(left + 1, rightBound);
+                visit(left, leftBound);
+            }
+        }
+        
+        void scanLeaf(int start, int end) {
+            for (int i = start; i < end; i++) {
+                consider(i);
+            }
+        }
+        
+        void consider(int position) {
+            if (ids[position] == excludeId) {
+                return;
+            }
+            int p = position * DIMENSIONS;
+            for (int d : bounded) {
+                float v = points[p + d];
+                if (v < low[d] || v > high[d]) {
+                    return;
+                }
+            }
+            double worst = worst();
+            double distance = 0;
+            for (int d : weighted) {
+                float diff = points[p + d] - target[d];
+                distance += weights[d] * diff * diff;
+                if (distance >= worst) {
+                    return;
+                }
+            }
+            offer(ids[position], distance);
+        }
+        
+        void offer(int id, double distance) {
+            if (heapSize < heapDistance.length) {
+                int i = heapSize++;
+                while (i > 0 && heapDistance[(i - 1) / 2] < distance) {
+                    heapDistance[i] = heapDistance[(i - 1) / 2];
+                    heapId[i] = heapId[(i - 1) / 2];
+                    i = (i - 1) / 2;
+                }
+                heapDistance[i] = distance;
+                heapId[i] = id;
+                return;
+            }
+            // Replace the root and sift down
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= heapSize) break;
+                if (child + 1 < heapSize && heapDistance[child + 1] > heapDistance[child]) child++;
+                if (heapDistance[child] <= distance) break;
+                heapDistance[i] = heapDistance[child];
+                heapId[i] = heapId[child];
+                i = child;
+            }
+            heapDistance[i] = distance;
+            heapId[i] = id;
+        }
+        
+        List<Match> results() {
+            List<Match> matches = new ArrayList<>(heapSize);
+            for (int i = 0; i < heapSize; i++) {
+                matches.add(new Match(heapId[i], Math.sqrt(heapDistance[i])));
+            }
+            matches.sort(Comparator.comparingDouble((Match m) -> m.distance).thenComparingInt(m -> m.foodId));
+            return matches;
+        }
+    }
+    
+    // k nearest foods to the target's nutrient values; excludeId (e.g. the target itself) is skipped
+    public List<Match> search(double[] targetValues, int excludeId, int k, SubstitutionQuery query) {
+        Search search = new Search(targetValues, excludeId, Math.max(1, k), query);
+        if (size > 0) {
+            search.visit(0, search.boxDistance(0));
+        }
+        return search.results();
+    }
+    
+    // Exhaustive scan with the same metric and bounds, for checking recall
+    public List<Match> searchBruteForce(double[] targetValues, int excludeId, int k, SubstitutionQuery query) {
+        Search search = new Search(targetValues, excludeId, Math.max(1, k), query);
+        search.scanLeaf(0, size);
+        return search.results();
+    }
+}
+
+// Dietary Reference Intakes
+//
+// Daily RDA (or AI where no RDA is set) per nutrient by gender and age, from the US
+// National Academies DRI tables. Calories, carbohydrates and fat have no entry (NaN):
+// they are energy targets, not minimums to top up.
+class DietaryReferenceIntakes {
+    // Age bands: 9-13, 14-18, 19-30, 31-50, 51-70, 71+
+    private static final int[] BAND_STARTS = {0, 14, 19, 31, 51, 71};
+    private static final double[][] MALE = new double[Nutrient.COUNT][];
+    private static final double[][] FEMALE = new double[Nutrient.COUNT][];
+    
+    static {
+        set(Nutrient.PROTEIN, new double[] {34, 52, 56, 56, 56, 56}, new double[] {34, 46, 46, 46, 46, 46});
+        set(Nutrient.FIBER, new double[] {31, 38, 38, 38, 30, 30}, new double[] {26, 26, 25, 25, 21, 21});
+        set(Nutrient.VITAMIN_C, new double[] {45, 75, 90, 90, 90, 90}, new double[] {45, 65, 75, 75, 75, 75});
+        set(Nutrient.VITAMIN_D, new double[] {15, 15, 15, 15, 15, 20}, new double[] {15, 15, 15, 15, 15, 20});
+        set(Nutrient.VITAMIN_E, new double[] {11, 15, 15, 15, 15, 15}, new double[] {11, 15, 15, 15, 15, 15});
+        set(Nutrient.VITAMIN_B12, new double[] {1.8, 2.4, 2.4, 2.4, 2.4, 2.4}, new double[] {1.8, 2.4, 2.4, 2.4, 2.4, 2.4});
+        set(Nutrient.CALCIUM, new double[] {1300, 1300, 1000, 1000, 1000, 1200}, new double[] {1300, 1300, 1000, 1000, 1200, 1200});
+        set(Nutrient.IRON, new double[] {8, 11, 8, 8, 8, 8}, new double[] {8, 15, 18, 18, 8, 8});
+        set(Nutrient.MAGNESIUM, new double[] {240, 410, 400, 420, 420, 420}, new double[] {240, 360, 310, 320, 320, 320});
+        set(Nutrient.POTASSIUM, new double[] {2500, 3000, 3400, 3400, 3400, 3400}, new double[] {2300, 2300, 2600, 2600, 2600, 2600});
+        set(Nutrient.ZINC, new double[] {8, 11, 11, 11, 11, 11}, new double[] {8, 9, 8, 8, 8, 8});
+        set(Nutrient.FOLATE, new double[] {300, 400, 400, 400, 400, 400}, new double[] {300, 400, 400, 400, 400, 400});
+        set(Nutrient.OMEGA3, new double[] {1.2, 1.6, 1.6, 1.6, 1.6, 1.6}, new double[] {1.0, 1.1, 1.1, 1.1, 1.1, 1.1});
+    }
+    
+    // Mean of men and women aged 19-30, used while the profile is incomplete
+    static final double[] ADULT_AVERAGE = average(2);
+    
+    private static void set(Nutrient nutrient, double[] male, double[] female) {
+        MALE[nutrient.ordinal()] = male;
+        FEMALE[nutrient.ordinal()] = female;
+    }
+    
+    private static double[] average(int band) {
+        double[] targets = new double[Nutrient.COUNT];
+        for (int n = 0; n < targets.length; n++) {
+            targets[n] = MALE[n] == null ? Double.NaN : (MALE[n][band] + FEMALE[n][band]) / 2;
+        }
+        return targets;
+    }
+    
+    // Targets indexed by Nutrient.ordinal(); a fresh array the caller may modify
+    static double[] forProfile(char gender, int age) {
+        if ((gender != 'M' && gender != 'F') || age <= 0) {
+            return ADULT_AVERAGE.clone();
+        }
+        int band = 0;
+        while (band + 1 < BAND_STARTS.length && age >= BAND_STARTS[band + 1]) {
+            band++;
+        }
+        double[][] table = gender == 'M' ? MALE : FEMALE;
+        double[] targets = new double[Nutrient.COUNT];
+        for (int n = 0; n < targets.length; n++) {
+            targets[n] = table[n] == null ? Double.NaN : table[n][band];
+        }
+        return targets;
+    }
+    
+    static double[] forProfile(UserProfile profile) {
+        return forProfile(profile.getGender(), profile.getAge());
+    }
+}
+
+// Per-nutrient Food Rankings
+//
+// For every nutrient, the ids of foods that contain it sorted by amount per calorie, best
+// first. Built once per FoodDatabase so gap filling only looks at the head of each list.
+class NutrientRankings {
+    private final float[] vectors;
+    private final int[][] ranked = new int[Nutrient.COUNT][];
+    
+    NutrientRankings(float[] vectors, int count) {
+        this.vectors = vectors;
+        // Densities are non-negative, so their float bits order like the values; packing the
+        // inverted bits above the id sorts best first, ties by id, without boxing
+        long[] keys = new long[count];
+        for (int n = 0; n < Nutrient.COUNT; n++) {
+            int size = 0;
+            for (int id = 0; id < count; id++) {
+                if (vectors[id * Nutrient.COUNT + n] > 0 && vectors[id * Nutrient.COUNT] > 0) {
+                    int bits = Float.floatToIntBits((float) density(id, n));
+                    keys[size++] = ((long) (Integer.MAX_VALUE - bits) << 32) | id;
+                }
+            }
+            Arrays.sort(keys, 0, size);
+            int[] ids = new int[size];
+            for (int i = 0; i < size; i++) {
+                ids[i] = (int) keys[i];
+            }
+            ranked[n] = ids;
+        }
+    }
+    
+    // Amount of the nutrient per kcal
+    double density(int foodId, int nutrient) {
+        return vectors[foodId * Nutrient.COUNT + nutrient] / vectors[foodId * Nutrient.COUNT];
+    }
+    
+    double per100g(int foodId, int nutrient) {
+        return vectors[foodId * Nutrient.COUNT + nutrient];
+    }
+    
+    int[] ranked(Nutrient nutrient) {
+        return ranked[nutrient.ordinal()];
+    }
+}
+
+// Nutrient Gap
+class NutrientGap {
+    private final Nutrient nutrient;
+    private final double intake;
+    private final double target;
+    
+    NutrientGap(Nutrient nutrient, double intake, double target) {
+        this.nutrient = nutrient;
+        this.intake = intake;
+        this.target = target;
+    }
+    
+    public Nutrient getNutrient() { return nutrient; }
+    public double getIntake() { return intake; }
+    public double getTarget() { return target; }
+    public double getPercentOfTarget() { return intake / target * 100; }
+    public double getDeficit() { return Math.max(0, target - intake); }
+}
+
+// Top-up Suggestion
+class TopUpSuggestion {
+    private final Food food;
+    private final double grams;
+    // Nutrients this portion contributes at least a tenth of the remaining deficit to
+    private final List<Nutrient> closes;
+    
+    TopUpSuggestion(Food food, double grams, List<Nutrient> closes) {
+        this.food = food;
+        this.grams = grams;
+        this.closes = closes;
+    }
+    
+    public Food getFood() { return food; }
+    public double getGrams() { return grams; }
+    public List<Nutrient> getCloses() { return closes; }
+}
+
+// Nutrient Gap Analysis
+//
+// Compares a day's totals with the profile's reference intakes and greedily picks foods to
+// close the deficits: each step takes the nutrient furthest below target, looks at the top
+// of its per-calorie ranking, and keeps the portion that closes the most total relative
+// deficit per kcal. This is a greedy set cover, so the set is small but not guaranteed minimal.
+class NutrientGapAnalyzer {
+    private static final int CANDIDATES_PER_STEP = 32;
+    private static final int MAX_SUGGESTIONS = 5;
+    private static final double MIN_GRAMS = 10;
+    private static final double MAX_GRAMS = 200;
+    private static final double GRAM_STEP = 5;
+    // Deficits below this share of the target count as closed
+    private static final double CLOSED_SHARE = 0.05;
+    
+    private final FoodDatabase foodDatabase;
+    
+    static class GapReport {
+        final List<NutrientGap> gaps;
+        final List<TopUpSuggestion> suggestions;
+        
+        GapReport(List<NutrientGap> gaps, List<TopUpSuggestion> suggestions) {
+            this.gaps = gaps;
+            this.suggestions = suggestions;
+        }
+        
+        public List<NutrientGap> getGaps() { return gaps; }
+        public List<TopUpSuggestion> getSuggestions() { return suggestions; }
+    }
+    
+    public NutrientGapAnalyzer(FoodDatabase foodDatabase) {
+        this.foodDatabase = foodDatabase;
+    }
+    
+    public GapReport analyze(NutritionSummary summary, double[] targets) {
+        List<NutrientGap> gaps = new ArrayList<>();
+        double[] deficit = new double[Nutrient.COUNT];
+        for (Nutrient nutrient : Nutrient.values()) {
+            double target = targets[nutrient.ordinal()];
+            if (!Double.isNaN(target) && target > 0) {
+                NutrientGap gap = new NutrientGap(nutrient, summary.get(nutrient), target);
+                gaps.add(gap);
+                deficit[nutrient.ordinal()] = gap.getDeficit();
+            }
+        }
+        return new GapReport(gaps, suggest(deficit, targets));
+    }
+    
+    private List<TopUpSuggestion> suggest(double[] deficit, double[] targets) {
+        // One version for both the rankings and the foods they point at
+        FoodCatalogSnapshot catalog = foodDatabase.getSnapshot();
+        NutrientRankings rankings = catalog.getNutrientRankings();
+        List<TopUpSuggestion> suggestions = new ArrayList<>();
+        Set<Integer> used = new HashSet<>();
+        Nutrient[] nutrients = Nutrient.values();
+        
+        while (suggestions.size() < MAX_SUGGESTIONS) {
+            Nutrient worst = null;
+            double worstShare = CLOSED_SHARE;
+            for (Nutrient nutrient : nutrients) {
+                int n = nutrient.ordinal();
+                if (deficit[n] > 0 && deficit[n] / targets[n] > worstShare && rankings.ranked(nutrient).length > 0) {
+                    worstShare = deficit[n] / targets[n];
+                    worst = nutrient;
+                }
+            }
+            if (worst == null) {
+                break;
+            }
+            
+            int w = worst.ordinal();
+            int bestFood = -1;
+            double bestGrams = 0;
+            double bestScore = 0;
+            int[] ranked = rankings.ranked(worst);
+            for (int r = 0, examined = 0; r < ranked.length && examined < CANDIDATES_PER_STEP; r++) {
+                int food = ranked[r];
+                if (used.contains(food)) {
+                    continue;
+                }
+                examined++;
+                double grams = deficit[w] / rankings.per100g(food, w) * 100;
+                grams = Math.min(MAX_GRAMS, Math.max(MIN_GRAMS, Math.ceil(grams / GRAM_STEP) * GRAM_STEP));
+                double closed = 0;
+                for (int n = 0; n < Nutrient.COUNT; n++) {
+                    if (deficit[n] > 0) {
+                        closed += Math.min(deficit[n], rankings.per100g(food, n) * grams / 100) / targets[n];
+                    }
+                }
+                double score = closed / (rankings.per100g(food, Nutrient.CALORIES.ordinal()) * grams / 100);
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestFood = food;
+                    bestGrams = grams;
+                }
+            }
+            if (bestFood < 0) {
+                deficit[w] = 0; // every food rich in it is already suggested
+                continue;
+            }
+            
+            List<Nutrient> closes = new ArrayList<>();
+            for (int n = 0; n < Nutrient.COUNT; n++) {
+                if (deficit[n] > 0) {
+                    double added = rankings.per100g(bestFood, n) * bestGrams / 100;
+                    if (added >= deficit[n] * 0.1) {
+                        closes.add(nutrients[n]);
+                    }
+                    deficit[n] = Math.max(0, deficit[n] - added);
+                }
+            }
+            used.add(bestFood);
+            suggestions.add(new TopUpSuggestion(catalog.getFoodById(bestFood), bestGrams, closes));
+        }
+        return suggestions;
+    }
+}
+
+// Latency Recorder
+//
+// Log-linear histogram in the style of HdrHistogram: every power of two is split into
+// SUB_BUCKETS linear buckets, so any recorded value is reported to within 1/128 (two
+// significant digits) from 1ns up to Long.MAX_VALUE in a fixed 58KB array.
+//
+// Reading the clock costs more than a food lookup, so only one call in sampleRate is timed
+// and counted; the rest pay for a thread-local random number. Counts and sums are scaled
+// back up, which keeps them unbiased while the hot paths stay free of shared writes.
+class LatencyRecorder {
+    static final long NOT_SAMPLED = Long.MIN_VALUE;
+    private static final int SUB_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+    
+    private final String name;
+    private final String help;
+    private final int sampleMask;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder sampledNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    
+    // sampleRate must be a power of two
+    LatencyRecorder(String name, String help, int sampleRate) {
+        if (Integer.bitCount(sampleRate) != 1) {
+            throw new IllegalArgumentException("Sample rate must be a power of two: " + sampleRate);
+        }
+        this.name = name;
+        this.help = help;
+        this.sampleMask = sampleRate - 1;
+    }
+    
+    // Start time of a sampled call, or NOT_SAMPLED
+    long start() {
+        if (!Metrics.isEnabled() || (ThreadLocalRandom.current().nextInt() & sampleMask) != 0) {
+            return NOT_SAMPLED;
+        }
+        return System.nanoTime();
+    }
+    
+    void stop(long start) {
+        if (start != NOT_SAMPLED) {
+            record(System.nanoTime() - start);
+        }
+    }
+    
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets.incrementAndGet(bucketIndex(value));
+        sampledNanos.add(value);
+        maxNanos.accumulate(value);
+    }
+    
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+    
+    // Largest value that falls into the bucket
+    static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+    
+    public String getName() { return name; }
+    public String getHelp() { return help; }
+    public int getSampleRate() { return sampleMask + 1; }
+    
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long sampled = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = buckets.get(i);
+            sampled += copy[i];
+        }
+        return new Snapshot(copy, sampled, sampledNanos.sum(), maxNanos.get(), getSampleRate());
+    }
+    
+    // Buckets are read one by one while recording continues, which is close enough for reporting
+    static final class Snapshot {
+        private final long[] buckets;
+        private final long sampled;
+        private final long sampledNanos;
+        private final long maxNanos;
+        private final int sampleRate;
+        
+        Snapshot(long[] buckets, long sampled, long sampledNanos, long maxNanos, int sampleRate) {
+            this.buckets = buckets;
+            this.sampled = sampled;
+            this.sampledNanos = sampledNanos;
+            this.maxNanos = maxNanos;
+            this.sampleRate = sampleRate;
+        }
+        
+        public long getCount() { return sampled * sampleRate; }
+        public double getTotalNanos() { return (double) sampledNanos * sampleRate; }
+        public long getMaxNanos() { return maxNanos; }
+        
+        public long getValueAtPercentile(double percentile) {
+            if (sampled == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * sampled));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(highestEquivalentValue(i), maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+    }
+}
+
+// Metrics Class
+//
+// Process-wide recorders for the hot paths, exported in Prometheus text format by GET /metrics.
+// Each instrumented operation also emits a JFR event, so a flight recording shows the
+// individual slow calls behind a percentile.
+class Metrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    
+    // Sample rates keep the cost per call near a nanosecond against operations that take
+    // tens of nanoseconds (lookups), hundreds (adds, cached summaries) or milliseconds (plans)
+    static final LatencyRecorder FOOD_LOOKUP =
+        new LatencyRecorder("diet_food_lookup_seconds", "Food lookups by name, sampled 1 in 1024", 1024);
+    static final LatencyRecorder ADD_FOOD =
+        new LatencyRecorder("diet_add_food_seconds", "Food entries added to a user's day, sampled 1 in 128", 128);
+    static final LatencyRecorder SUMMARY =
+        new LatencyRecorder("diet_summary_seconds", "Nutrition summary reports including cache hits, sampled 1 in 128", 128);
+    static final LatencyRecorder RECOMMENDATION =
+        new LatencyRecorder("diet_recommendation_seconds", "Meal plan generation for all meal slots", 1);
+    static final LongAdder FOOD_LOOKUP_MISSES = new LongAdder();
+    
+    private static final LatencyRecorder[] RECORDERS = {FOOD_LOOKUP, ADD_FOOD, SUMMARY, RECOMMENDATION};
+    private static volatile boolean enabled = true;
+    
+    static boolean isEnabled() {
+        return enabled;
+    }
+    
+    // For measuring the instrumentation's own overhead
+    static void setEnabled(boolean value) {
+        enabled = value;
+    }
+    
+    static void writePrometheus(StringBuilder out) {
+        for (LatencyRecorder recorder : RECORDERS) {
+            LatencyRecorder.Snapshot snapshot = recorder.snapshot();
+            String name = recorder.getName();
+            header(out, name, recorder.getHelp(), "summary");
+            for (double quantile : QUANTILES) {
+                out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(snapshot.getValueAtPercentile(quantile * 100) / 1e9).append('\n');
+            }
+            out.append(name).append("_sum ").append(snapshot.getTotalNanos() / 1e9).append('\n');
+            out.append(name).append("_count ").append(snapshot.getCount()).append('\n');
+            gauge(out, name + "_max", "Slowest sampled call since startup", snapshot.getMaxNanos() / 1e9);
+        }
+        counter(out, "diet_food_lookup_misses_total", "Food lookups that matched no food", FOOD_LOOKUP_MISSES.sum());
+    }
+    
+    static void counter(StringBuilder out, String name, String help, double value) {
+        header(out, name, help, "counter");
+        sample(out, name, value);
+    }
+    
+    static void gauge(StringBuilder out, String name, String help, double value) {
+        header(out, name, help, "gauge");
+        sample(out, name, value);
+    }
+    
+    static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+    
+    static void sample(StringBuilder out, String name, double value) {
+        out.append(name).append(' ');
+        if (value == (long) value) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+}
+
+// JFR Events
+//
+// Disabled events cost nothing after JIT compilation; enable them with
+// -XX:StartFlightRecording or JDK Mission Control. Lookups are too frequent to record
+// individually, so only slow ones pass the threshold.
+@Name("dietplanner.FoodLookup")
+@Label("Food Lookup")
+@Category("Diet Planner")
+@Threshold("10 us")
+class FoodLookupEvent extends Event {
+    @Label("Query")
+    String query;
+    @Label("Found")
+    boolean found;
+}
+
+@Name("dietplanner.AddFood")
+@Label("Add Food")
+@Category("Diet Planner")
+class AddFoodEvent extends Event {
+    @Label("User")
+    String userId;
+    @Label("Food")
+    String food;
+    @Label("Grams")
+    double grams;
+}
+
+@Name("dietplanner.NutritionSummary")
+@Label("Nutrition Summary")
+@Category("Diet Planner")
+class NutritionSummaryEvent extends Event {
+    @Label("User")
+    String userId;
+    @Label("Format")
+    String format;
+}
+
+@Name("dietplanner.Recommendation")
+@Label("Meal Recommendation")
+@Category("Diet Planner")
+class RecommendationEvent extends Event {
+    @Label("Daily Calories")
+    double dailyCalories;
+    @Label("Plans")
+    int plans;
+}
+
+// Shard Transport
+//
+// Carries encoded ShardProtocol requests to a node and returns its encoded response.
+// Implementations own the wire (sockets, HTTP, a message bus); LoopbackShardTransport
+// runs every node in this JVM so multi-node behaviour can be exercised on one machine.
+interface ShardTransport extends AutoCloseable {
+    CompletableFuture<byte[]> call(String nodeId, byte[] request);
+    
+    @Override
+    void close();
+}
+
+// Loopback Shard Transport
+//
+// Each node gets its own executor and only ever sees bytes, so nodes share no tracker state
+// even though they live in one process. Nodes can be marked down to test failure handling.
+class LoopbackShardTransport implements ShardTransport {
+    private final Map<String, ShardNode> nodes = new ConcurrentHashMap<>();
+    private final Map<String, ExecutorService> executors = new ConcurrentHashMap<>();
+    private final Set<String> down = ConcurrentHashMap.newKeySet();
+    private final int threadsPerNode;
+    
+    LoopbackShardTransport(int threadsPerNode) {
+        this.threadsPerNode = threadsPerNode;
+    }
+    
+    public void register(ShardNode node) {
+        nodes.put(node.getNodeId(), node);
+        executors.computeIfAbsent(node.getNodeId(), id -> Executors.newFixedThreadPool(threadsPerNode, task -> {
+            Thread thread = new Thread(task, "shard-" + id);
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+    
+    public void setDown(String nodeId, boolean isDown) {
+        if (isDown) {
+            down.add(nodeId);
+        } else {
+            down.remove(nodeId);
+        }
+    }
+    
+    @Override
+    public CompletableFuture<byte[]> call(String nodeId, byte[] request) {
+        ShardNode node = nodes.get(nodeId);
+        if (node == null || down.contains(nodeId)) {
+            return CompletableFuture.failedFuture(new IOException("Node unreachable: " + nodeId));
+        }
+        // Copy so neither side can observe the other's buffer afterwards
+        byte[] copy = request.clone();
+        return CompletableFuture.supplyAsync(() -> node.handle(copy), executors.get(nodeId));
+    }
+    
+    @Override
+    public void close() {
+        for (ExecutorService executor : executors.values()) {
+            executor.shutdownNow();
+        }
+    }
+}
+
+// Shard Protocol
+//
+// Request: op byte, user id (or cohort filter), then op-specific fields, all big-endian.
+// Response: status byte, then either the result or an error message.
+class ShardProtocol {
+    static final byte ADD_FOOD = 1;
+    static final byte SUMMARY = 2;
+    static final byte SET_PROFILE = 3;
+    static final byte COHORT = 4;
+    
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+    
+    static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+    
+    static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    static int stringSize(String value) {
+        return 2 + value.getBytes(StandardCharsets.UTF_8).length;
+    }
+    
+    static void putSummary(ByteBuffer buffer, NutritionSummary summary) {
+        for (Nutrient nutrient : Nutrient.values()) {
+            buffer.putDouble(summary.get(nutrient));
+        }
+    }
+    
+    static NutritionSummary getSummary(ByteBuffer buffer) {
+        double[] values = new double[Nutrient.COUNT];
+        for (int n = 0; n < values.length; n++) {
+            values[n] = buffer.getDouble();
+        }
+        NutritionSummary summary = new NutritionSummary();
+        summary.add(values, 1);
+        return summary;
+    }
+    
+    static byte[] ok(ByteBuffer result) {
+        byte[] response = new byte[1 + result.remaining()];
+        response[0] = OK;
+        result.get(response, 1, response.length - 1);
+        return response;
+    }
+    
+    static byte[] error(String message) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + stringSize(message));
+        buffer.put(ERROR);
+        putString(buffer, message);
+        return buffer.array();
+    }
+    
+    // Positioned after the status byte; throws for an error response
+    static ByteBuffer result(byte[] response) {
+        ByteBuffer buffer = ByteBuffer.wrap(response);
+        if (buffer.get() != OK) {
+            throw new IllegalStateException(getString(buffer));
+        }
+        return buffer;
+    }
+}
+
+// Cohort Summary
+//
+// Nutrition totals summed over the users matching a cohort filter. Partial results from
+// different shards merge by adding counts and totals, so averages are computed only once
+// all of them are in.
+class CohortSummary {
+    private int users;
+    private final NutritionSummary totals = new NutritionSummary();
+    
+    void addUser(NutritionSummary summary) {
+        users++;
+        totals.merge(summary);
+    }
+    
+    public void merge(CohortSummary other) {
+        users += other.users;
+        totals.merge(other.totals);
+    }
+    
+    public int getUserCount() { return users; }
+    public double getTotal(Nutrient nutrient) { return totals.get(nutrient); }
+    
+    public double getAverage(Nutrient nutrient) {
+        return users == 0 ? 0 : totals.get(nutrient) / users;
+    }
+    
+    void write(ByteBuffer buffer) {
+        buffer.putInt(users);
+        ShardProtocol.putSummary(buffer, totals);
+    }
+    
+    static CohortSummary read(ByteBuffer buffer) {
+        CohortSummary summary = new CohortSummary();
+        summary.users = buffer.getInt();
+        summary.totals.merge(ShardProtocol.getSummary(buffer));
+        return summary;
+    }
+    
+    static int size() {
+        return 4 + 8 * Nutrient.COUNT;
+    }
+}
+
+// Shard Node
+//
+// One partition of the users: a NutritionTrackingService behind the shard protocol.
+// Food ids travel on the wire, so every node must serve the same catalog version.
+class ShardNode {
+    private final String nodeId;
+    private final NutritionTrackingService service;
+    
+    ShardNode(String nodeId, NutritionTrackingService service) {
+        this.nodeId = nodeId;
+        this.service = service;
+    }
+    
+    public String getNodeId() { return nodeId; }
+    public NutritionTrackingService getService() { return service; }
+    
+    byte[] handle(byte[] request) {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(request);
+            byte op = in.get();
+            switch (op) {
+                case ShardProtocol.ADD_FOOD: {
+                    String userId = ShardProtocol.getString(in);
+                    int foodId = in.getInt();
+                    double grams = in.getDouble();
+                    long timeMillis = in.getLong();
+                    FoodDatabase foodDatabase = service.getFoodDatabase();
+                    if (foodId < 0 || foodId >= foodDatabase.size()) {
+                        return ShardProtocol.error("Unknown food id " + foodId + " on " + nodeId);
+                    }
+                    // Durable before the router's call completes, as for a local add
+                    service.addFood(userId, foodDatabase.getFoodById(foodId), grams, timeMillis).join();
+                    return ShardProtocol.ok(ByteBuffer.allocate(0));
+                }
+                case ShardProtocol.SUMMARY: {
+                    String userId = ShardProtocol.getString(in);
+                    ByteBuffer out = ByteBuffer.allocate(8 * Nutrient.COUNT);
+                    ShardProtocol.putSummary(out, service.getNutritionSummary(userId));
+                    return ShardProtocol.ok(out.flip());
+                }
+                case ShardProtocol.SET_PROFILE: {
+                    UserProfile profile = service.getProfile(ShardProtocol.getString(in));
+                    synchronized (profile) {
+                        profile.setAge(in.getInt());
+                        profile.setGender(in.getChar());
+                        profile.setWeight(in.getDouble());
+                        profile.setHeight(in.getDouble());
+                        profile.setActivityLevel(in.getInt());
+                    }
+                    return ShardProtocol.ok(ByteBuffer.allocate(0));
+                }
+                case ShardProtocol.COHORT: {
+                    char gender = in.getChar();
+                    int minAge = in.getInt();
+                    int maxAge = in.getInt();
+                    ByteBuffer out = ByteBuffer.allocate(CohortSummary.size());
+                    cohort(gender, minAge, maxAge).write(out);
+                    return ShardProtocol.ok(out.flip());
+                }
+                default:
+                    return ShardProtocol.error("Unknown op " + op);
+            }
+        } catch (RuntimeException e) {
+            return ShardProtocol.error(nodeId + ": " + e);
+        }
+    }
+    
+    // Users on this node with a profile in the cohort; gender 0 matches either
+    private CohortSummary cohort(char gender, int minAge, int maxAge) {
+        CohortSummary cohort = new CohortSummary();
+        for (String userId : service.getUserIds()) {
+            UserProfile profile = service.findProfile(userId);
+            if (profile == null) {
+                continue;
+            }
+            boolean matches;
+            synchronized (profile) {
+                matches = (gender == 0 || profile.getGender() == gender)
+                    && profile.getAge() >= minAge && profile.getAge() <= maxAge;
+            }
+            if (matches) {
+                cohort.addUser(service.getNutritionSummary(userId));
+            }
+        }
+        return cohort;
+    }
+}
+
+// Consistent Hash Ring
+//
+// Each node owns VIRTUAL_NODES points on a 64-bit ring and a user belongs to the first point
+// at or after the hash of their id, so adding or removing one of N nodes moves only about
+// 1/N of the users. Rings are immutable; withNode/withoutNode return a new one.
+class ConsistentHashRing {
+    static final int VIRTUAL_NODES = 160;
+    
+    private final long[] points;
+    private final String[] owners;
+    private final List<String> nodes;
+    
+    ConsistentHashRing(Collection<String> nodeIds) {
+        nodes = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(nodeIds)));
+        long[] keys = new long[nodes.size() * VIRTUAL_NODES];
+        Map<Long, String> byPoint = new HashMap<>();
+        int count = 0;
+        for (String node : nodes) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                long point = hash(node + "#" + v);
+                // Ties are vanishingly rare; the first node (in name order) keeps the point
+                if (byPoint.putIfAbsent(point, node) == null) {
+                    keys[count++] = point;
+                }
+            }
+        }
+        points = Arrays.copyOf(keys, count);
+        Arrays.sort(points);
+        owners = new String[count];
+        for (int i = 0; i < count; i++) {
+            owners[i] = byPoint.get(points[i]);
+        }
+    }
+    
+    public ConsistentHashRing withNode(String nodeId) {
+        Set<String> next = new TreeSet<>(nodes);
+        next.add(nodeId);
+        return new ConsistentHashRing(next);
+    }
+    
+    public ConsistentHashRing withoutNode(String nodeId) {
+        Set<String> next = new TreeSet<>(nodes);
+        next.remove(nodeId);
+        return new ConsistentHashRing(next);
+    }
+    
+    public String nodeFor(String userId) {
+        if (points.length == 0) {
+            throw new IllegalStateException("No shard nodes");
+        }
+        int index = Arrays.binarySearch(points, hash(userId));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+    
+    public List<String> getNodes() {
+        return nodes;
+    }
+    
+    // FNV-1a over the chars, finished with the MurmurHash3 mixer so similar ids spread out
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+}
+
+// Shard Router
+//
+// Client side of the partitioned tracker: per-user calls go to the node that owns the user,
+// cohort queries are scattered to every node and the partial sums gathered and merged.
+// The ring can be swapped at runtime; moving the state of reassigned users is left to the
+// caller (replaying their meal log on the new owner).
+class ShardRouter {
+    private final ShardTransport transport;
+    private final long timeoutMillis;
+    private volatile ConsistentHashRing ring;
+    
+    ShardRouter(ShardTransport transport, ConsistentHashRing ring, long timeoutMillis) {
+        this.transport = transport;
+        this.ring = ring;
+        this.timeoutMillis = timeoutMillis;
+    }
+    
+    public ConsistentHashRing getRing() { return ring; }
+    public void setRing(ConsistentHashRing ring) { this.ring = ring; }
+    
+    public String nodeFor(String userId) {
+        return ring.nodeFor(userId);
+    }
+    
+    public CompletableFuture<Void> addFood(String userId, Food food, double grams) {
+        ByteBuffer request = ByteBuffer.allocate(1 + ShardProtocol.stringSize(userId) + 20);
+        request.put(ShardProtocol.ADD_FOOD);
+        ShardProtocol.putString(request, userId);
+        request.putInt(food.getId()).putDouble(grams).putLong(System.currentTimeMillis());
+        return call(nodeFor(userId), request).thenApply(result -> null);
+    }
+    
+    public CompletableFuture<NutritionSummary> getNutritionSummary(String userId) {
+        ByteBuffer request = ByteBuffer.allocate(1 + ShardProtocol.stringSize(userId));
+        request.put(ShardProtocol.SUMMARY);
+        ShardProtocol.putString(request, userId);
+        return call(nodeFor(userId), request).thenApply(ShardProtocol::getSummary);
+    }
+    
+    public CompletableFuture<Void> setProfile(String userId, int age, char gender, double weight, double height,
+                                              int activityLevel) {
+        ByteBuffer request = ByteBuffer.allocate(1 + ShardProtocol.stringSize(userId) + 30);
+        request.put(ShardProtocol.SET_PROFILE);
+        ShardProtocol.putString(request, userId);
+        request.putInt(age).putChar(gender).putDouble(weight).putDouble(height).putInt(activityLevel);
+        return call(nodeFor(userId), request).thenApply(result -> null);
+    }
+    
+    // Scatter-gather over every node; fails if any node does, since a missing shard would
+    // silently skew the averages
+    public CompletableFuture<CohortSummary> getCohortSummary(char gender, int minAge, int maxAge) {
+        List<String> nodes = ring.getNodes();
+        List<CompletableFuture<CohortSummary>> partials = new ArrayList<>(nodes.size());
+        for (String node : nodes) {
+            ByteBuffer request = ByteBuffer.allocate(11);
+            request.put(ShardProtocol.COHORT).putChar(gender).putInt(minAge).putInt(maxAge);
+            partials.add(call(node, request).thenApply(CohortSummary::read));
+        }
+        return CompletableFuture.allOf(partials.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            CohortSummary merged = new CohortSummary();
+            for (CompletableFuture<CohortSummary> partial : partials) {
+                merged.merge(partial.join());
+            }
+            return merged;
+        });
+    }
+    
+    private CompletableFuture<ByteBuffer> call(String node, ByteBuffer request) {
+        return transport.call(node, request.array())
+            .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+            .thenApply(ShardProtocol::result);
+    }
+}
+
+// Intake Window Enum
+enum IntakeWindow {
+    MEAL("meal", 0),
+    ROLLING_3H("rolling3h", 3 * 60 * 60_000L),
+    ROLLING_24H("rolling24h", 24 * 60 * 60_000L);
+    
+    private final String key;
+    private final long spanMillis;
+    
+    IntakeWindow(String key, long spanMillis) {
+        this.key = key;
+        this.spanMillis = spanMillis;
+    }
+    
+    public String getKey() { return key; }
+    public long getSpanMillis() { return spanMillis; }
+}
+
+// Sliding Nutrient Window
+//
+// Rolling totals over a fixed span, kept as a ring of per-bucket nutrient sums. An entry lands
+// in the bucket for its time and buckets that slide out of the span are dropped when a newer
+// bucket starts. A running sum of the live buckets answers totals as of the newest bucket, the
+// common case while logging; totals at other times add up the live buckets instead.
+// Windows are bucket-aligned, so a 3 hour window with 15 minute buckets may reach back up to
+// 15 minutes further than 3 hours.
+class SlidingNutrientWindow {
+    private final long bucketMillis;
+    private final double[][] sums;
+    // Absolute bucket number (time / bucketMillis) each ring slot currently holds
+    private final long[] bucketIds;
+    // Far enough below any real bucket that subtracting the ring length cannot overflow
+    private static final long NO_BUCKET = Long.MIN_VALUE / 2;
+    
+    private long newestBucket = NO_BUCKET;
+    // Sum of every bucket in the span ending at newestBucket
+    private final double[] live = new double[Nutrient.COUNT];
+    
+    SlidingNutrientWindow(long spanMillis, int buckets) {
+        if (spanMillis % buckets != 0) {
+            throw new IllegalArgumentException("Span must divide into " + buckets + " buckets");
+        }
+        bucketMillis = spanMillis / buckets;
+        sums = new double[buckets][Nutrient.COUNT];
+        bucketIds = new long[buckets];
+        Arrays.fill(bucketIds, NO_BUCKET);
+    }
+    
+    // Adds values * multiplier at the given time; false if that time is older than anything the
+    // ring still holds (removing such an entry is a no-op because it already expired)
+    boolean add(long timeMillis, double[] values, double multiplier) {
+        long bucket = Math.floorDiv(timeMillis, bucketMillis);
+        if (bucket <= newestBucket - sums.length) {
+            return false;
+        }
+        if (bucket > newestBucket) {
+            if (multiplier < 0) {
+                return false;
+            }
+            newestBucket = bucket;
+            expire();
+        }
+        int slot = (int) Math.floorMod(bucket, (long) sums.length);
+        double[] sum = sums[slot];
+        if (bucketIds[slot] != bucket) {
+            if (multiplier < 0) {
+                return false;
+            }
+            bucketIds[slot] = bucket;
+        }
+        for (int n = 0; n < sum.length; n++) {
+            double value = values[n] * multiplier;
+            sum[n] += value;
+            live[n] += value;
+        }
+        return true;
+    }
+    
+    // Drops the buckets newestBucket has pushed out of the span, clearing their slots for reuse
+    private void expire() {
+        boolean anyLive = false;
+        for (int slot = 0; slot < sums.length; slot++) {
+            if (bucketIds[slot] == NO_BUCKET) {
+                continue;
+            }
+            if (bucketIds[slot] > newestBucket - sums.length) {
+                anyLive = true;
+                continue;
+            }
+            double[] sum = sums[slot];
+            for (int n = 0; n < sum.length; n++) {
+                live[n] -= sum[n];
+            }
+            Arrays.fill(sum, 0);
+            bucketIds[slot] = NO_BUCKET;
+        }
+        if (!anyLive) {
+            // Start the next span from exact zeros rather than accumulated rounding error
+            Arrays.fill(live, 0);
+        }
+    }
+    
+    // Total of one nutrient over the span ending at the given time
+    double total(long nowMillis, Nutrient nutrient) {
+        long now = Math.floorDiv(nowMillis, bucketMillis);
+        int n = nutrient.ordinal();
+        if (now == newestBucket) {
+            return live[n];
+        }
+        double total = 0;
+        for (int slot = 0; slot < sums.length; slot++) {
+            long bucket = bucketIds[slot];
+            if (bucket <= now && bucket > now - sums.length) {
+                total += sums[slot][n];
+            }
+        }
+        return total;
+    }
+    
+    double[] totals(long nowMillis) {
+        long now = Math.floorDiv(nowMillis, bucketMillis);
+        if (now == newestBucket) {
+            return live.clone();
+        }
+        double[] totals = new double[Nutrient.COUNT];
+        for (int slot = 0; slot < sums.length; slot++) {
+            long bucket = bucketIds[slot];
+            if (bucket <= now && bucket > now - sums.length) {
+                for (int n = 0; n < totals.length; n++) {
+                    totals[n] += sums[slot][n];
+                }
+            }
+        }
+        return totals;
+    }
+}
 
-// Meal Recommendation Engine
-class MealRecommendationEngine {
-    public static void generateRecommendations(double dailyCalories, FoodDatabase foodDatabase) {
-        double breakfastCals = dailyCalories * 0.25;
-        double lunchCals = dailyCalories * 0.35;
-        double dinnerCals = dailyCalories * 0.30;
-        double snackCals = dailyCalories * 0.10;
+// Intake Alert Rule
+//
+// Fires when a window's total for one nutrient crosses a limit. The limit is either absolute
+// or a factor of a calorie budget taken from the profile: the meal slot's share for MEAL, the
+// whole day for the rolling windows. Budget rules are skipped while the profile is incomplete.
+class IntakeAlertRule {
+    private final IntakeWindow window;
+    private final Nutrient nutrient;
+    private final double limit;
+    private final double budgetFactor;
+    
+    private IntakeAlertRule(IntakeWindow window, Nutrient nutrient, double limit, double budgetFactor) {
+        this.window = window;
+        this.nutrient = nutrient;
+        this.limit = limit;
+        this.budgetFactor = budgetFactor;
+    }
+    
+    public static IntakeAlertRule above(IntakeWindow window, Nutrient nutrient, double limit) {
+        return new IntakeAlertRule(window, nutrient, limit, 0);
+    }
+    
+    // e.g. 1.2 alerts once a meal reaches 120% of its calorie budget
+    public static IntakeAlertRule mealOverBudget(double factor) {
+        return new IntakeAlertRule(IntakeWindow.MEAL, Nutrient.CALORIES, 0, factor);
+    }
+    
+    public static IntakeAlertRule overDailyBudget(IntakeWindow window, double factor) {
+        return new IntakeAlertRule(window, Nutrient.CALORIES, 0, factor);
+    }
+    
+    public IntakeWindow getWindow() { return window; }
+    public Nutrient getNutrient() { return nutrient; }
+    
+    // NaN when the rule needs a budget and there is none
+    double thresholdFor(MealSlot mealSlot, double dailyCalories) {
+        if (budgetFactor == 0) {
+            return limit;
+        }
+        if (dailyCalories <= 0) {
+            return Double.NaN;
+        }
+        double budget = window == IntakeWindow.MEAL ? mealSlot.getCalorieTarget(dailyCalories) : dailyCalories;
+        return budget * budgetFactor;
+    }
+}
+
+// Intake Alert
+class IntakeAlert {
+    private final String userId;
+    private final IntakeAlertRule rule;
+    private final MealSlot mealSlot;
+    private final double value;
+    private final double threshold;
+    private final long timeMillis;
+    
+    IntakeAlert(String userId, IntakeAlertRule rule, MealSlot mealSlot, double value, double threshold, long timeMillis) {
+        this.userId = userId;
+        this.rule = rule;
+        this.mealSlot = mealSlot;
+        this.value = value;
+        this.threshold = threshold;
+        this.timeMillis = timeMillis;
+    }
+    
+    public String getUserId() { return userId; }
+    public IntakeAlertRule getRule() { return rule; }
+    public MealSlot getMealSlot() { return mealSlot; }
+    public double getValue() { return value; }
+    public double getThreshold() { return threshold; }
+    public long getTimeMillis() { return timeMillis; }
+    
+    public String getMessage() {
+        Nutrient nutrient = rule.getNutrient();
+        String scope;
+        switch (rule.getWindow()) {
+            case MEAL:
+                scope = mealSlot.getDisplayName();
+                break;
+            case ROLLING_3H:
+                scope = "Last 3 hours";
+                break;
+            default:
+                scope = "Last 24 hours";
+                break;
+        }
+        StringBuilder sb = new StringBuilder(64).append(scope).append(": ")
+            .append(nutrient.getDisplayName().toLowerCase(Locale.ROOT)).append(' ');
+        FixedPoint.append(sb, value, 0).append(' ').append(nutrient.getUnit()).append(" reached the ");
+        return FixedPoint.append(sb, threshold, 0).append(' ').append(nutrient.getUnit()).append(" limit").toString();
+    }
+}
+
+// Intake Windows
+//
+// One user's streaming aggregates: tumbling per-meal totals for the current day plus rolling
+// 3 and 24 hour windows. Every entry is folded in as it is logged and the alert rules are
+// checked against the updated totals only, so nothing is rescanned. Callers hold the
+// user's stripe.
+class IntakeWindows {
+    private static final int RECENT_ALERTS = 16;
+    
+    private final double[][] mealTotals = new double[MealSlot.values().length][Nutrient.COUNT];
+    private final SlidingNutrientWindow last3h = new SlidingNutrientWindow(IntakeWindow.ROLLING_3H.getSpanMillis(), 12);
+    private final SlidingNutrientWindow last24h = new SlidingNutrientWindow(IntakeWindow.ROLLING_24H.getSpanMillis(), 24);
+    private final IntakeAlert[] recentAlerts = new IntakeAlert[RECENT_ALERTS];
+    private int alertCount;
+    
+    // Returns the alerts this entry triggered, usually none
+    List<IntakeAlert> add(String userId, long timeMillis, MealSlot mealSlot, double[] values, double multiplier,
+                          List<IntakeAlertRule> rules, double dailyCalories) {
+        double[] meal = mealTotals[mealSlot.ordinal()];
+        for (int n = 0; n < meal.length; n++) {
+            meal[n] += values[n] * multiplier;
+        }
+        boolean in3h = last3h.add(timeMillis, values, multiplier);
+        boolean in24h = last24h.add(timeMillis, values, multiplier);
+        List<IntakeAlert> fired = Collections.emptyList();
+        for (IntakeAlertRule rule : rules) {
+            double threshold = rule.thresholdFor(mealSlot, dailyCalories);
+            if (Double.isNaN(threshold)) {
+                continue;
+            }
+            Nutrient nutrient = rule.getNutrient();
+            double after;
+            switch (rule.getWindow()) {
+                case MEAL:
+                    after = meal[nutrient.ordinal()];
+                    break;
+                case ROLLING_3H:
+                    if (!in3h) {
+                        continue;
+                    }
+                    after = last3h.total(timeMillis, nutrient);
+                    break;
+                default:
+                    if (!in24h) {
+                        continue;
+                    }
+                    after = last24h.total(timeMillis, nutrient);
+                    break;
+            }
+            // Only the entry that crosses the limit alerts, not every one after it
+            double before = after - values[nutrient.ordinal()] * multiplier;
+            if (before < threshold && after >= threshold) {
+                IntakeAlert alert = new IntakeAlert(userId, rule, mealSlot, after, threshold, timeMillis);
+                recentAlerts[alertCount++ % RECENT_ALERTS] = alert;
+                if (fired.isEmpty()) {
+                    fired = new ArrayList<>(2);
+                }
+                fired.add(alert);
+            }
+        }
+        return fired;
+    }
+    
+    void remove(long timeMillis, MealSlot mealSlot, double[] values, double multiplier) {
+        double[] meal = mealTotals[mealSlot.ordinal()];
+        for (int n = 0; n < meal.length; n++) {
+            meal[n] -= values[n] * multiplier;
+        }
+        last3h.add(timeMillis, values, -multiplier);
+        last24h.add(timeMillis, values, -multiplier);
+    }
+    
+    // Swaps an entry's values for its values in a newer catalog version, without alerting
+    void replace(long timeMillis, MealSlot mealSlot, double[] before, double[] after, double multiplier) {
+        remove(timeMillis, mealSlot, before, multiplier);
+        add(null, timeMillis, mealSlot, after, multiplier, Collections.emptyList(), 0);
+    }
+    
+    // A new day starts every meal from zero; the rolling windows carry on across midnight
+    void resetMeals() {
+        for (double[] meal : mealTotals) {
+            Arrays.fill(meal, 0);
+        }
+    }
+    
+    // Point-in-time copy for reports, taken while the stripe is held
+    static final class Snapshot {
+        private final double[][] mealTotals;
+        private final double[] last3h;
+        private final double[] last24h;
+        private final List<IntakeAlert> alerts;
+        private final double dailyCalories;
         
-        System.out.println("\n=== Meal Distribution ===");
-        System.out.printf("Breakfast: %.0f calories (25%%)\n", breakfastCals);
-        System.out.printf("Lunch: %.0f calories (35%%)\n", lunchCals);
-        System.out.printf("Dinner: %.0f calories (30%%)\n", dinnerCals);
-        System.out.printf("Snacks: %.0f calories (10%%)\n", snackCals);
+        Snapshot(double[][] mealTotals, double[] last3h, double[] last24h, List<IntakeAlert> alerts, double dailyCalories) {
+            this.mealTotals = mealTotals;
+            this.last3h = last3h;
+            this.last24h = last24h;
+            this.alerts = alerts;
+            this.dailyCalories = dailyCalories;
+        }
         
-        System.out.println("\n=== Sample Meal Plans ===");
+        public double[] getMealTotals(MealSlot mealSlot) { return mealTotals[mealSlot.ordinal()]; }
+        public double[] getRolling3h() { return last3h; }
+        public double[] getRolling24h() { return last24h; }
+        public List<IntakeAlert> getAlerts() { return alerts; }
+        // 0 while the profile is incomplete
+        public double getDailyCalories() { return dailyCalories; }
+        
+        public double getMealCalories(MealSlot mealSlot) {
+            return mealTotals[mealSlot.ordinal()][Nutrient.CALORIES.ordinal()];
+        }
+    }
+    
+    Snapshot snapshot(long nowMillis, double dailyCalories) {
+        double[][] meals = new double[mealTotals.length][];
+        for (int m = 0; m < meals.length; m++) {
+            meals[m] = mealTotals[m].clone();
+        }
+        return new Snapshot(meals, last3h.totals(nowMillis), last24h.totals(nowMillis), getRecentAlerts(), dailyCalories);
+    }
+    
+    // Oldest first
+    List<IntakeAlert> getRecentAlerts() {
+        List<IntakeAlert> alerts = new ArrayList<>(RECENT_ALERTS);
+        for (int i = Math.max(0, alertCount - RECENT_ALERTS); i < alertCount; i++) {
+            alerts.add(recentAlerts[i % RECENT_ALERTS]);
+        }
+        return alerts;
+    }
+}
+
+// Weight Scenario
+//
+// One what-if: a daily deficit against the starting maintenance calories (negative for a
+// surplus), an activity level and how closely the plan is followed. Daily adherence is drawn
+// from a normal distribution around meanAdherence, truncated to [0, 1]; 1 eats exactly the
+// target, 0 eats at maintenance.
+class WeightScenario {
+    private final double dailyDeficit;
+    private final int activityLevel;
+    private final double meanAdherence;
+    private final double adherenceSpread;
+    
+    public WeightScenario(double dailyDeficit, int activityLevel, double meanAdherence, double adherenceSpread) {
+        if (activityLevel < 1 || activityLevel >= UserProfile.ACTIVITY_MULTIPLIERS.length) {
+            throw new IllegalArgumentException("Activity level must be between 1 and 5");
+        }
+        if (!(meanAdherence >= 0 && meanAdherence <= 1) || !(adherenceSpread >= 0)) {
+            throw new IllegalArgumentException("Adherence must be in [0, 1] with a non-negative spread");
+        }
+        this.dailyDeficit = dailyDeficit;
+        this.activityLevel = activityLevel;
+        this.meanAdherence = meanAdherence;
+        this.adherenceSpread = adherenceSpread;
+    }
+    
+    // Every combination, deficits varying fastest
+    public static List<WeightScenario> grid(double[] deficits, int[] activityLevels, double[] adherence, double spread) {
+        List<WeightScenario> scenarios = new ArrayList<>(deficits.length * activityLevels.length * adherence.length);
+        for (double mean : adherence) {
+            for (int level : activityLevels) {
+                for (double deficit : deficits) {
+                    scenarios.add(new WeightScenario(deficit, level, mean, spread));
+                }
+            }
+        }
+        return scenarios;
+    }
+    
+    public double getDailyDeficit() { return dailyDeficit; }
+    public int getActivityLevel() { return activityLevel; }
+    public double getMeanAdherence() { return meanAdherence; }
+    public double getAdherenceSpread() { return adherenceSpread; }
+}
+
+// Weight Projection
+//
+// Monte Carlo outcome of one scenario: the spread of final weights across paths, the median
+// weight at the end of every week, and the share of paths that reached the goal weight
+class WeightProjection {
+    private final WeightScenario scenario;
+    private final double targetIntake;
+    private final double meanFinalWeight;
+    private final double[] finalPercentiles;
+    private final double[] weeklyMedian;
+    private final double goalProbability;
+    
+    WeightProjection(WeightScenario scenario, double targetIntake, double meanFinalWeight, double[] finalPercentiles,
+                     double[] weeklyMedian, double goalProbability) {
+        this.scenario = scenario;
+        this.targetIntake = targetIntake;
+        this.meanFinalWeight = meanFinalWeight;
+        this.finalPercentiles = finalPercentiles;
+        this.weeklyMedian = weeklyMedian;
+        this.goalProbability = goalProbability;
+    }
+    
+    public WeightScenario getScenario() { return scenario; }
+    // Daily calories the plan aims for, after the minimum intake floor
+    public double getTargetIntake() { return targetIntake; }
+    public double getMeanFinalWeight() { return meanFinalWeight; }
+    public double getFinalP10() { return finalPercentiles[0]; }
+    public double getFinalMedian() { return finalPercentiles[1]; }
+    public double getFinalP90() { return finalPercentiles[2]; }
+    // Index 0 is the starting weight, index w the median after w weeks
+    public double[] getWeeklyMedian() { return weeklyMedian; }
+    // NaN when no goal weight was set
+    public double getGoalProbability() { return goalProbability; }
+}
+
+// Weight Trajectory Simulator
+//
+// Projects day-by-day weight for many scenarios at once. Every day recomputes BMR from the
+// current weight (and age), so the deficit shrinks as weight comes off and trajectories
+// flatten instead of falling in a straight line; each kilogram is 7700 kcal of imbalance.
+// Scenarios are split across the common fork-join pool. Each split hands one half a
+// SplittableRandom split from its parent, so the results depend only on the seed, not on
+// the number of threads or how the work was stolen.
+class WeightTrajectorySimulator {
+    static final double KCAL_PER_KG = 7700;
+    // Plans below this are simulated at this intake rather than starving the model
+    static final double MIN_DAILY_INTAKE = 800;
+    private static final int SCENARIOS_PER_TASK = 16;
+    private static final double[] PERCENTILES = {0.1, 0.5, 0.9};
+    // Daily adherence is drawn by indexing a table of 4096 equally likely values (standard
+    // normal quantiles at the bin midpoints, scaled and truncated per scenario), which costs
+    // one nextLong() instead of a nextGaussian()
+    private static final int ADHERENCE_BITS = 12;
+    private static final double[] NORMAL_QUANTILES = normalQuantiles(1 << ADHERENCE_BITS);
+    
+    private final double startWeight;
+    // BMR = bmrBase + bmrPerKg * weight + bmrPerYear * years elapsed, from UserProfile's formula
+    private final double bmrBase;
+    private final double bmrPerKg;
+    private final double bmrPerYear;
+    private final int days;
+    private final int paths;
+    private final long seed;
+    private double goalWeight;
+    
+    // The caller holds the profile's lock if it is shared
+    public WeightTrajectorySimulator(UserProfile profile, int days, int paths, long seed) {
+        if (!profile.isProfileComplete()) {
+            throw new IllegalArgumentException("Profile is incomplete");
+        }
+        if (days < 1 || paths < 1) {
+            throw new IllegalArgumentException("Need at least one day and one path");
+        }
+        char gender = profile.getGender();
+        double height = profile.getHeight();
+        int age = profile.getAge();
+        startWeight = profile.getWeight();
+        bmrBase = UserProfile.calculateBMR(gender, 0, height, age);
+        bmrPerKg = UserProfile.calculateBMR(gender, 1, height, age) - bmrBase;
+        bmrPerYear = UserProfile.calculateBMR(gender, 0, height, age + 1) - bmrBase;
+        this.days = days;
+        this.paths = paths;
+        this.seed = seed;
+    }
+    
+    // Paths that end at or beyond this weight, in the direction of travel, count as reaching it
+    public WeightTrajectorySimulator setGoalWeight(double goalWeight) {
+        this.goalWeight = goalWeight;
+        return this;
+    }
+    
+    public List<WeightProjection> project(List<WeightScenario> scenarios) {
+        WeightProjection[] results = new WeightProjection[scenarios.size()];
+        ForkJoinPool.commonPool().invoke(new SweepTask(scenarios, results, 0, results.length, new SplittableRandom(seed)));
+        return Arrays.asList(results);
+    }
+    
+    private final class SweepTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
         
-        // Breakfast suggestions
-        System.out.println("\nBREAKFAST OPTIONS:");
-        System.out.printf("• 80g Oats + 200ml Milk = %.0f cal\n", 
-            (389 * 0.8) + (42 * 2));
-        System.out.printf("• 2 Eggs + 1 slice bread = %.0f cal\n", 
-            (155 * 2) + 80);
-        System.out.printf("• 150g Banana + 30g Almonds = %.0f cal\n", 
-            (89 * 1.5) + (579 * 0.3));
-        
-        // Lunch suggestions
-        System.out.println("\nLUNCH OPTIONS:");
-        System.out.printf("• 150g Chicken Breast + 200g Rice + 100g Broccoli = %.0f cal\n", 
-            (165 * 1.5) + (130 * 2) + (34 * 1));
-        System.out.printf("• 200g Salmon + 150g Sweet Potato = %.0f cal\n", 
-            (208 * 2) + (86 * 1.5));
-        
-        // Dinner suggestions
-        System.out.println("\nDINNER OPTIONS:");
-        System.out.printf("• 120g Chicken + 150g Rice + 100g Spinach = %.0f cal\n", 
-            (165 * 1.2) + (130 * 1.5) + (23 * 1));
-        System.out.printf("• 150g Salmon + 200g Sweet Potato + vegetables = %.0f cal\n", 
-            (208 * 1.5) + (86 * 2) + 50);
-        
-        // Snack suggestions
-        System.out.println("\nHEALTHY SNACK OPTIONS:");
-        System.out.printf("• 1 Apple + 20g Almonds = %.0f cal\n", 
-            (52 * 1.5) + (579 * 0.2));
-        System.out.printf("• 200ml Milk + 1 Banana = %.0f cal\n", 
-            (42 * 2) + (89 * 1));
+        private final List<WeightScenario> scenarios;
+        private final WeightProjection[] results;
+        private final int from;
+        private final int to;
+        private final SplittableRandom random;
         
-        System.out.println("\n=== Nutrition Tips ===");
-        System.out.println("• Include protein in every meal");
-        System.out.println("• Eat 5-9 servings of fruits and vegetables daily");
-        System.out.println("• Choose whole grains over refined grains");
-        System.out.println("• Include healthy fats (omega-3, nuts, avocado)");
-        System.out.println("• Stay hydrated - drink 8-10 glasses of water daily");
-        System.out.println("• Limit processed foods and added sugars");
+        SweepTask(List<WeightScenario> scenarios, WeightProjection[] results, int from, int to, SplittableRandom random) {
+            this.scenarios = scenarios;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.random = random;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from <= SCENARIOS_PER_TASK) {
+                double[] adherence = new double[NORMAL_QUANTILES.length];
+                double[] weekly = new double[paths * (days / 7 + 1)];
+                double[] finals = new double[paths];
+                for (int i = from; i < to; i++) {
+                    results[i] = simulate(scenarios.get(i), random.split(), adherence, weekly, finals);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new SweepTask(scenarios, results, from, mid, random.split()),
+                new SweepTask(scenarios, results, mid, to, random));
+        }
+    }
+    
+    // adherence, weekly (week-major) and finals are scratch space reused across a task's scenarios
+    private WeightProjection simulate(WeightScenario scenario, SplittableRandom random, double[] adherence,
+                                      double[] weekly, double[] finals) {
+        double multiplier = UserProfile.ACTIVITY_MULTIPLIERS[scenario.getActivityLevel()];
+        double target = Math.max(MIN_DAILY_INTAKE,
+            (bmrBase + bmrPerKg * startWeight) * multiplier - scenario.getDailyDeficit());
+        for (int i = 0; i < adherence.length; i++) {
+            double value = scenario.getMeanAdherence() + scenario.getAdherenceSpread() * NORMAL_QUANTILES[i];
+            adherence[i] = Math.min(1, Math.max(0, value));
+        }
+        int weeks = days / 7 + 1;
+        // Following the plan fully eats the target, not at all eats at maintenance:
+        //   weight += followed * (target - maintenance(weight, day)) / KCAL_PER_KG
+        // with maintenance's terms folded into decay and drift. All paths advance one day at a
+        // time, so the updates of different paths overlap instead of waiting on each other.
+        double decay = bmrPerKg * multiplier / KCAL_PER_KG;
+        double level = (target - bmrBase * multiplier) / KCAL_PER_KG;
+        double aging = bmrPerYear / 365.25 * multiplier / KCAL_PER_KG;
+        double[] weights = finals;
+        Arrays.fill(weights, 0, paths, startWeight);
+        System.arraycopy(weights, 0, weekly, 0, paths);
+        for (int day = 1; day <= days; day++) {
+            double drift = level - aging * day;
+            for (int path = 0; path < paths; path++) {
+                double followed = adherence[(int) (random.nextLong() >>> (64 - ADHERENCE_BITS))];
+                weights[path] += followed * (drift - decay * weights[path]);
+            }
+            if (day % 7 == 0) {
+                System.arraycopy(weights, 0, weekly, day / 7 * paths, paths);
+            }
+        }
+        double total = 0;
+        int reached = 0;
+        boolean losing = goalWeight < startWeight;
+        for (int path = 0; path < paths; path++) {
+            total += weights[path];
+            if (goalWeight > 0 && (losing ? weights[path] <= goalWeight : weights[path] >= goalWeight)) {
+                reached++;
+            }
+        }
+        double[] column = new double[paths];
+        double[] weeklyMedian = new double[weeks];
+        for (int week = 0; week < weeks; week++) {
+            System.arraycopy(weekly, week * paths, column, 0, paths);
+            Arrays.sort(column);
+            weeklyMedian[week] = column[(paths - 1) / 2];
+        }
+        Arrays.sort(finals, 0, paths);
+        double[] percentiles = new double[PERCENTILES.length];
+        for (int p = 0; p < percentiles.length; p++) {
+            percentiles[p] = finals[(int) Math.round(PERCENTILES[p] * (paths - 1))];
+        }
+        return new WeightProjection(scenario, target, total / paths, percentiles, weeklyMedian,
+            goalWeight > 0 ? (double) reached / paths : Double.NaN);
+    }
+    
+    private static double[] normalQuantiles(int bins) {
+        double[] quantiles = new double[bins];
+        for (int i = 0; i < bins; i++) {
+            quantiles[i] = inverseNormal((i + 0.5) / bins);
+        }
+        return quantiles;
+    }
+    
+    // Acklam's rational approximation of the standard normal quantile (relative error < 1.2e-9)
+    static double inverseNormal(double p) {
+        double[] a = {-3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02,
+            1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+        double[] b = {-5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02,
+            6.680131188771972e+01, -1.328068155288572e+01};
+        double[] c = {-7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00,
+            -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+        double[] d = {7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00,
+            3.754408661907416e+00};
+        if (p < 0.02425) {
+            double q = Math.sqrt(-2 * Math.log(p));
+            return (((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5])
+                / ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+        }
+        if (p > 1 - 0.02425) {
+            return -inverseNormal(1 - p);
+        }
+        double q = p - 0.5;
+        double r = q * q;
+        return (((((a[0] * r + a[1]) * r + a[2]) * r + a[3]) * r + a[4]) * r + a[5]) * q
+            / (((((b[0] * r + b[1]) * r + b[2]) * r + b[3]) * r + b[4]) * r + 1);
+    }
+    
+    // Usage: java dietplanner.WeightTrajectorySimulator [scenarios] [paths] [days]
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int paths = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int days = args.length > 2 ? Integer.parseInt(args[2]) : 365;
+        UserProfile profile = new UserProfile();
+        profile.setAge(38);
+        profile.setGender('F');
+        profile.setWeight(82);
+        profile.setHeight(167);
+        profile.setActivityLevel(2);
+        // Deficits from a 500 kcal surplus upwards, for every activity level and five adherence means
+        int perGrid = 5 * 5;
+        double[] deficits = new double[Math.max(1, count / perGrid)];
+        for (int i = 0; i < deficits.length; i++) {
+            deficits[i] = -500 + 1500.0 * i / Math.max(1, deficits.length - 1);
+        }
+        List<WeightScenario> scenarios = WeightScenario.grid(deficits, new int[] {1, 2, 3, 4, 5},
+            new double[] {0.6, 0.7, 0.8, 0.9, 1.0}, 0.15);
+        WeightTrajectorySimulator simulator = new WeightTrajectorySimulator(profile, days, paths, 42).setGoalWeight(72);
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            List<WeightProjection> projections = simulator.project(scenarios);
+            double millis = (System.nanoTime() - start) / 1e6;
+            double reaching = 0;
+            for (WeightProjection projection : projections) {
+                reaching += projection.getGoalProbability();
+            }
+            System.out.printf("%d scenarios x %d paths x %d days in %.0f ms (%.0f M path-days/s), mean goal probability %.2f\n",
+                scenarios.size(), paths, days, millis, (double) scenarios.size() * paths * days / millis / 1e3,
+                reaching / projections.size());
+        }
+    }
+}
+
+// Command Line Reader
+//
+// Reads lines from a channel into one reusable buffer and tokenizes and parses numbers
+// straight from the bytes, so piped input never goes through Scanner's regular
+// expressions or a String per token. Lines may end in \n or \r\n; a final line without a
+// newline still counts. Not thread-safe.
+class CommandReader {
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    // Mantissas up to 15 digits are exact doubles, so one division by an exact power of ten rounds correctly
+    private static final int FAST_DIGITS = 15;
+    
+    private final ReadableByteChannel channel;
+    private byte[] data = new byte[64 * 1024];
+    private ByteBuffer buffer = ByteBuffer.wrap(data);
+    private int limit;
+    private int next;
+    // Newline ending the next line once found, so hasBufferedLine() and nextLine() scan it once
+    private int nextNewline = -1;
+    private int scanned;
+    private boolean endOfInput;
+    private int lineStart;
+    private int lineEnd;
+    private int cursor;
+    private int tokenStart;
+    private int tokenEnd;
+    private long lineNumber;
+    
+    public CommandReader(ReadableByteChannel channel) {
+        this.channel = channel;
+    }
+    
+    // Advances to the next line, reading more input if needed; false at the end of input
+    public boolean nextLine() throws IOException {
+        int newline;
+        while ((newline = findNewline()) < 0) {
+            if (endOfInput) {
+                if (next == limit) {
+                    return false;
+                }
+                newline = limit;
+                break;
+            }
+            fill();
+        }
+        lineStart = next;
+        lineEnd = newline;
+        next = Math.min(newline + 1, limit);
+        nextNewline = -1;
+        scanned = next;
+        if (lineEnd > lineStart && data[lineEnd - 1] == '\r') {
+            lineEnd--;
+        }
+        cursor = lineStart;
+        tokenStart = tokenEnd = lineStart;
+        lineNumber++;
+        return true;
+    }
+    
+    // Whether nextLine() can return without reading, i.e. without possibly blocking
+    public boolean hasBufferedLine() {
+        return findNewline() >= 0 || (endOfInput && next < limit);
+    }
+    
+    public long getLineNumber() {
+        return lineNumber;
+    }
+    
+    public String line() {
+        return new String(data, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+    }
+    
+    // Moves to the next space-separated token of the line; false if there is none
+    public boolean nextToken() {
+        while (cursor < lineEnd && isSpace(data[cursor])) {
+            cursor++;
+        }
+        if (cursor == lineEnd) {
+            tokenStart = tokenEnd = cursor;
+            return false;
+        }
+        tokenStart = cursor;
+        while (cursor < lineEnd && !isSpace(data[cursor])) {
+            cursor++;
+        }
+        tokenEnd = cursor;
+        return true;
+    }
+    
+    public String token() {
+        return new String(data, tokenStart, tokenEnd - tokenStart, StandardCharsets.UTF_8);
+    }
+    
+    public boolean tokenStartsWith(char c) {
+        return tokenEnd > tokenStart && data[tokenStart] == c;
+    }
+    
+    // ASCII case-insensitive comparison with a lower-case word, without decoding the token
+    public boolean tokenIs(String word) {
+        if (tokenEnd - tokenStart != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            byte b = data[tokenStart + i];
+            if (b != word.charAt(i) && (b < 'A' || b > 'Z' || b + ('a' - 'A') != word.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // The rest of the line after the current token, trimmed; "" if nothing is left
+    public String rest() {
+        int from = cursor;
+        int to = lineEnd;
+        while (from < to && isSpace(data[from])) {
+            from++;
+        }
+        while (to > from && isSpace(data[to - 1])) {
+            to--;
+        }
+        cursor = lineEnd;
+        return new String(data, from, to - from, StandardCharsets.UTF_8);
+    }
+    
+    // Next token as an int; Integer.MIN_VALUE if it is missing or not an integer
+    public int nextInt() {
+        if (!nextToken()) {
+            return Integer.MIN_VALUE;
+        }
+        int i = tokenStart;
+        boolean negative = data[i] == '-';
+        if (negative || data[i] == '+') {
+            i++;
+        }
+        if (i == tokenEnd) {
+            return Integer.MIN_VALUE;
+        }
+        long value = 0;
+        for (; i < tokenEnd; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9 || value > Integer.MAX_VALUE) {
+                return Integer.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+        }
+        value = negative ? -value : value;
+        return value > Integer.MAX_VALUE || value <= Integer.MIN_VALUE ? Integer.MIN_VALUE : (int) value;
+    }
+    
+    // Next token as a double such as "150", "-2.5" or "1e3"; NaN if it is missing or not a number
+    public double nextDouble() {
+        if (!nextToken()) {
+            return Double.NaN;
+        }
+        int i = tokenStart;
+        boolean negative = data[i] == '-';
+        if (negative || data[i] == '+') {
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean seenDigit = false;
+        boolean seenDot = false;
+        for (; i < tokenEnd; i++) {
+            byte b = data[i];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                seenDigit = true;
+                if (mantissa != 0 && ++digits > FAST_DIGITS) {
+                    return parseSlowly();
+                }
+                if (seenDot) {
+                    fractionDigits++;
+                }
+            } else if (b == '.' && !seenDot) {
+                seenDot = true;
+            } else if (b == 'e' || b == 'E') {
+                return parseSlowly();
+            } else {
+                return Double.NaN;
+            }
+        }
+        if (!seenDigit) {
+            return Double.NaN;
+        }
+        if (fractionDigits >= POWERS_OF_TEN.length) {
+            return parseSlowly();
+        }
+        double value = mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+    
+    // Exponents and long mantissas; rare enough to pay for a String
+    private double parseSlowly() {
+        try {
+            double value = Double.parseDouble(token());
+            return Double.isInfinite(value) ? Double.NaN : value;
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+    
+    private int findNewline() {
+        if (nextNewline < 0) {
+            for (int i = scanned; i < limit; i++) {
+                if (data[i] == '\n') {
+                    nextNewline = i;
+                    break;
+                }
+            }
+            scanned = limit;
+        }
+        return nextNewline;
+    }
+    
+    // Moves the unread bytes to the front, grows the buffer if one line fills it, and reads more
+    private void fill() throws IOException {
+        if (next > 0) {
+            System.arraycopy(data, next, data, 0, limit - next);
+            limit -= next;
+            scanned -= next;
+            next = 0;
+        }
+        if (limit == data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+            buffer = ByteBuffer.wrap(data);
+        }
+        buffer.limit(data.length).position(limit);
+        int read = channel.read(buffer);
+        if (read < 0) {
+            endOfInput = true;
+        } else {
+            limit += read;
+        }
+    }
+    
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
+
+// Scripted Command Runner
+//
+// Batch front end behind --script. Every input line is one command and gets one response
+// line, "ok ..." or "error <line number>: ..."; blank lines and # comments get none:
+//   user <id>                                          later commands apply to this user
+//   profile <age> <M|F> <weight kg> <height cm> <activity 1-5>
+//   add <grams> <food name>
+//   undo | clear | close [yyyy-mm-dd]
+//   calories | bmi | summary
+//   quit
+// An add that trips an intake alert is preceded by an "alert ..." line per alert.
+// Responses accumulate in a ReportRenderer and are written once it holds FLUSH_CHARS, or
+// before the reader would block waiting for input, so pipelined commands are answered in
+// batches while a client that waits for each response still gets it straight away.
+class ScriptRunner {
+    private static final int FLUSH_CHARS = 32 * 1024;
+    private static final Nutrient[] NUTRIENTS = Nutrient.values();
+    
+    private enum Command {
+        USER, PROFILE, ADD, UNDO, CLEAR, CLOSE, CALORIES, BMI, SUMMARY, QUIT, EXIT;
+        
+        private static final Command[] VALUES = values();
+        final String keyword = name().toLowerCase(Locale.ROOT);
+        
+        // Matched on the token's bytes, so dispatch allocates nothing; null if unknown
+        static Command of(CommandReader in) {
+            for (Command command : VALUES) {
+                if (in.tokenIs(command.keyword)) {
+                    return command;
+                }
+            }
+            return null;
+        }
+    }
+    
+    private final NutritionTrackingService trackingService;
+    private final FoodDatabase foodDatabase;
+    private final ReportRenderer renderer = new ReportRenderer(ReportFormat.TEXT);
+    private final StringBuilder out = renderer.builder();
+    private String userId;
+    private UserProfile profile;
+    private long commands;
+    private long errors;
+    
+    public ScriptRunner(NutritionTrackingService trackingService, String userId) {
+        this.trackingService = trackingService;
+        this.foodDatabase = trackingService.getFoodDatabase();
+        this.userId = userId;
+        this.profile = trackingService.getProfile(userId);
+        // Alerts fire inside addFood, so they land just before the response of the add that caused them
+        trackingService.addAlertListener(alert -> out.append("alert ").append(alert.getMessage()).append('\n'));
+    }
+    
+    public void run(CommandReader in, WritableByteChannel channel) throws IOException {
+        try {
+            while (in.nextLine() && execute(in)) {
+                if (out.length() >= FLUSH_CHARS || !in.hasBufferedLine()) {
+                    renderer.writeTo(channel);
+                }
+            }
+        } finally {
+            renderer.writeTo(channel);
+        }
+    }
+    
+    public long getCommandCount() {
+        return commands;
+    }
+    
+    public long getErrorCount() {
+        return errors;
+    }
+    
+    // false once the script asks to quit
+    private boolean execute(CommandReader in) {
+        if (!in.nextToken() || in.tokenStartsWith('#')) {
+            return true;
+        }
+        Command command = Command.of(in);
+        if (command == Command.QUIT || command == Command.EXIT) {
+            return false;
+        }
+        commands++;
+        if (command == null) {
+            return error(in, "unknown command '" + in.token() + "'");
+        }
+        switch (command) {
+            case USER:
+                String id = in.rest();
+                if (id.isEmpty()) {
+                    return error(in, "usage: user <id>");
+                }
+                userId = id;
+                profile = trackingService.getProfile(id);
+                out.append("ok\n");
+                break;
+            case PROFILE:
+                setProfile(in);
+                break;
+            case ADD:
+                addFood(in);
+                break;
+            case UNDO:
+                FoodEntry removed = trackingService.undoLastFood(userId);
+                if (removed == null) {
+                    return error(in, "nothing to undo");
+                }
+                out.append("ok removed=").append(removed.getFood().getName()).append(" grams=");
+                FixedPoint.append(out, removed.getQuantity(), 1).append('\n');
+                break;
+            case CLEAR:
+                trackingService.clearDailyIntake(userId);
+                out.append("ok\n");
+                break;
+            case CLOSE:
+                String date = in.rest();
+                LocalDate day;
+                try {
+                    day = date.isEmpty() ? LocalDate.now() : LocalDate.parse(date);
+                } catch (DateTimeException e) {
+                    return error(in, "invalid date '" + date + "'");
+                }
+                NutritionSummary closed = trackingService.closeDay(userId, day);
+                out.append("ok date=").append(day).append(" calories=");
+                FixedPoint.append(out, closed.get(Nutrient.CALORIES), 1).append('\n');
+                break;
+            case CALORIES:
+                synchronized (profile) {
+                    if (!profile.isProfileComplete()) {
+                        return error(in, "profile is incomplete");
+                    }
+                    out.append("ok bmr=");
+                    FixedPoint.append(out, profile.calculateBMR(), 0).append(" calories=");
+                    FixedPoint.append(out, profile.calculateDailyCalories(), 0).append('\n');
+                }
+                break;
+            case BMI:
+                synchronized (profile) {
+                    if (profile.getWeight() == 0 || profile.getHeight() == 0) {
+                        return error(in, "profile needs weight and height");
+                    }
+                    out.append("ok bmi=");
+                    FixedPoint.append(out, profile.calculateBMI(), 1).append(" category=")
+                        .append(profile.getBMICategory()).append('\n');
+                }
+                break;
+            case SUMMARY:
+                NutritionSummary summary = trackingService.getNutritionSummary(userId);
+                out.append("ok");
+                for (Nutrient nutrient : NUTRIENTS) {
+                    out.append(' ').append(nutrient.getKey()).append('=');
+                    FixedPoint.append(out, summary.get(nutrient), 1);
+                }
+                out.append('\n');
+                break;
+            default:
+                break;
+        }
+        return true;
+    }
+    
+    private void setProfile(CommandReader in) {
+        int age = in.nextInt();
+        char gender = in.nextToken() ? Character.toUpperCase(in.token().charAt(0)) : 0;
+        double weight = in.nextDouble();
+        double height = in.nextDouble();
+        int activity = in.nextInt();
+        if (age <= 0 || (gender != 'M' && gender != 'F') || !(weight > 0) || !(height > 0)
+                || activity < 1 || activity > 5) {
+            error(in, "usage: profile <age> <M|F> <weight kg> <height cm> <activity 1-5>");
+            return;
+        }
+        synchronized (profile) {
+            profile.setAge(age);
+            profile.setGender(gender);
+            profile.setWeight(weight);
+            profile.setHeight(height);
+            profile.setActivityLevel(activity);
+            out.append("ok bmr=");
+            FixedPoint.append(out, profile.calculateBMR(), 0).append(" calories=");
+            FixedPoint.append(out, profile.calculateDailyCalories(), 0).append(" bmi=");
+            FixedPoint.append(out, profile.calculateBMI(), 1).append('\n');
+        }
+    }
+    
+    private void addFood(CommandReader in) {
+        double grams = in.nextDouble();
+        String name = in.rest();
+        if (!(grams > 0) || name.isEmpty()) {
+            error(in, "usage: add <grams> <food name>");
+            return;
+        }
+        Food food = foodDatabase.getFood(name);
+        if (food == null) {
+            error(in, "unknown food '" + name + "'");
+            return;
+        }
+        trackingService.addFood(userId, food, grams);
+        out.append("ok calories=");
+        FixedPoint.append(out, food.getCalories() * grams / 100, 1).append('\n');
+    }
+    
+    private boolean error(CommandReader in, String message) {
+        errors++;
+        out.append("error ").append(in.getLineNumber()).append(": ").append(message).append('\n');
+        return true;
     }
 }
@@ -0,0 +1,142 @@
+package dietplanner;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Substitution Search Benchmarks (KD-tree vs. brute force)
+//
+// Sample mode reports the p50/p99 latency per query; recall@k against the brute-force oracle
+// is printed once per trial from the setup:
+//   java -jar benchmarks/target/benchmarks.jar FoodSubstitutionBenchmarks
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class FoodSubstitutionBenchmarks {
+    private static final int QUERIES = 1024;
+    private static final int K = 10;
+
+    @Param({"500000"})
+    int foods;
+
+    // all = every nutrient, focused = protein+omega3 with fat <= 60%, bounded = calories <= 150
+    @Param({"all", "focused", "bounded"})
+    String query;
+
+    FoodSubstitutionIndex index;
+    int[] targets;
+    double[][] targetValues;
+    SubstitutionQuery[] exact;
+    SubstitutionQuery[] approximate;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        float[] vectors = generateCatalog(foods, new Random(9));
+        index = new FoodSubstitutionIndex(vectors, foods);
+        Random random = new Random(17);
+        targets = new int[QUERIES];
+        targetValues = new double[QUERIES][];
+        exact = new SubstitutionQuery[QUERIES];
+        approximate = new SubstitutionQuery[QUERIES];
+        for (int q = 0; q < QUERIES; q++) {
+            targets[q] = random.nextInt(foods);
+            targetValues[q] = values(vectors, targets[q]);
+            exact[q] = query(query, targetValues[q]);
+            approximate[q] = query(query, targetValues[q]).approximate(1.0);
+        }
+        double exactRecall = recall(exact);
+        if (exactRecall < 1.0) {
+            throw new IllegalStateException("Exact kd-tree search missed brute-force matches: recall " + exactRecall);
+        }
+        System.out.printf("%n%s: recall@%d kd-tree %.3f, kd-tree eps=1 %.3f%n", query, K, exactRecall,
+            recall(approximate));
+    }
+
+    // Share of the brute-force k nearest that the index also returns
+    private double recall(SubstitutionQuery[] queries) {
+        long found = 0;
+        long expected = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            Set<Integer> truthIds = new HashSet<>();
+            for (FoodSubstitutionIndex.Match match : index.searchBruteForce(targetValues[q], targets[q], K, exact[q])) {
+                truthIds.add(match.foodId);
+            }
+            expected += truthIds.size();
+            for (FoodSubstitutionIndex.Match match : index.search(targetValues[q], targets[q], K, queries[q])) {
+                if (truthIds.contains(match.foodId)) {
+                    found++;
+                }
+            }
+        }
+        return expected == 0 ? 1.0 : (double) found / expected;
+    }
+
+    @Benchmark
+    public List<FoodSubstitutionIndex.Match> bruteForce() {
+        int q = next++ & (QUERIES - 1);
+        return index.searchBruteForce(targetValues[q], targets[q], K, exact[q]);
+    }
+
+    @Benchmark
+    public List<FoodSubstitutionIndex.Match> kdTree() {
+        int q = next++ & (QUERIES - 1);
+        return index.search(targetValues[q], targets[q], K, exact[q]);
+    }
+
+    @Benchmark
+    public List<FoodSubstitutionIndex.Match> kdTreeApproximate() {
+        int q = next++ & (QUERIES - 1);
+        return index.search(targetValues[q], targets[q], K, approximate[q]);
+    }
+
+    private static SubstitutionQuery query(String variant, double[] target) {
+        switch (variant) {
+            case "focused":
+                return new SubstitutionQuery().focusOn(Nutrient.PROTEIN, Nutrient.OMEGA3)
+                    .atMost(Nutrient.FAT, target[Nutrient.FAT.ordinal()] * 0.6);
+            case "bounded":
+                return new SubstitutionQuery().atMost(Nutrient.CALORIES, 150);
+            default:
+                return new SubstitutionQuery();
+        }
+    }
+
+    private static double[] values(float[] vectors, int id) {
+        double[] values = new double[Nutrient.COUNT];
+        for (int n = 0; n < values.length; n++) {
+            values[n] = vectors[id * Nutrient.COUNT + n];
+        }
+        return values;
+    }
+
+    // Variants of a few hundred base foods: real catalogs are clustered (many preparations
+    // and brands of the same food) and micronutrients are sparse
+    static float[] generateCatalog(int foods, Random random) {
+        int bases = 400;
+        double[][] base = new double[bases][Nutrient.COUNT];
+        for (double[] b : base) {
+            b[Nutrient.PROTEIN.ordinal()] = random.nextDouble() < 0.3 ? 10 + random.nextDouble() * 25 : random.nextDouble() * 8;
+            b[Nutrient.CARBS.ordinal()] = random.nextDouble() < 0.4 ? 20 + random.nextDouble() * 60 : random.nextDouble() * 10;
+            b[Nutrient.FAT.ordinal()] = random.nextDouble() < 0.3 ? 5 + random.nextDouble() * 40 : random.nextDouble() * 5;
+            b[Nutrient.FIBER.ordinal()] = random.nextDouble() * 8;
+            for (int n = Nutrient.VITAMIN_C.ordinal(); n < Nutrient.COUNT; n++) {
+                b[n] = random.nextDouble() < 0.4 ? Math.exp(random.nextGaussian() * 1.5 + 2) : 0;
+            }
+        }
+        float[] vectors = new float[foods * Nutrient.COUNT];
+        for (int i = 0; i < foods; i++) {
+            double[] b = base[random.nextInt(bases)];
+            int offset = i * Nutrient.COUNT;
+            for (int n = 1; n < Nutrient.COUNT; n++) {
+                vectors[offset + n] = (float) Math.max(0, b[n] * (1 + 0.2 * random.nextGaussian()));
+            }
+            vectors[offset] = 4 * vectors[offset + Nutrient.PROTEIN.ordinal()] + 4 * vectors[offset + Nutrient.CARBS.ordinal()]
+                + 9 * vectors[offset + Nutrient.FAT.ordinal()];
+        }
+        return vectors;
+    }
+}
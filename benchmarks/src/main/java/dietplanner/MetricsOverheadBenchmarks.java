@@ -0,0 +1,92 @@
+package dietplanner;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Cost of the Metrics instrumentation on the paths it wraps
+//
+// The *Uninstrumented benchmarks call the same work without the recorder or the JFR event
+// (their score does not depend on the metrics parameter); compare getFood and planMeals at
+// metrics=true against them. addFood and getSummaryReport have no uninstrumented path, so for
+// them metrics=false (one volatile read plus an idle JFR event) is the floor:
+//   java -jar benchmarks/target/benchmarks.jar MetricsOverheadBenchmarks
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class MetricsOverheadBenchmarks {
+    private static final String[] NAMES = {"Apple", "banana", "Chicken Breast", "rice", "BROCCOLI", "salmon",
+        "Spinach", "oats", "egg", "Milk", "almonds", "Sweet Potato", "quinoa", "tofu", "beef", "pasta"};
+
+    @Param({"true", "false"})
+    boolean metrics;
+
+    FoodDatabase foodDatabase;
+    NutritionTrackingService service;
+    MealPlanSolver solver;
+    String[] users;
+    Food food;
+    int next;
+
+    @Setup
+    public void setUp() {
+        Metrics.setEnabled(metrics);
+        foodDatabase = new FoodDatabase();
+        service = new NutritionTrackingService(foodDatabase);
+        solver = new MealPlanSolver(foodDatabase);
+        food = foodDatabase.getFood("rice");
+        users = new String[1024];
+        for (int u = 0; u < users.length; u++) {
+            users[u] = "user-" + u;
+            service.addFood(users[u], food, 150);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Metrics.setEnabled(true);
+    }
+
+    @Benchmark
+    public Food getFood() {
+        return foodDatabase.getFood(NAMES[next++ & (NAMES.length - 1)]);
+    }
+
+    @Benchmark
+    public Food getFoodUninstrumented() {
+        return foodDatabase.getSnapshot().getFood(NAMES[next++ & (NAMES.length - 1)]);
+    }
+
+    // Undo right away so the trackers stay the same size across iterations
+    @Benchmark
+    public FoodEntry addFood() {
+        String user = users[next++ & (users.length - 1)];
+        service.addFood(user, food, 100);
+        return service.undoLastFood(user);
+    }
+
+    @Benchmark
+    public String getSummaryReport() {
+        return service.getSummaryReport(users[next++ & (users.length - 1)], ReportFormat.JSON);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Map<MealSlot, List<MealPlan>> planMeals() {
+        return MealRecommendationEngine.planMeals(solver, 2000);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Map<MealSlot, List<MealPlan>> planMealsUninstrumented() {
+        Map<MealSlot, List<MealPlan>> plans = new EnumMap<>(MealSlot.class);
+        for (MealSlot slot : MealSlot.values()) {
+            plans.put(slot, Collections.unmodifiableList(
+                solver.solve(slot, 2000, MealRecommendationEngine.OPTIONS_PER_MEAL)));
+        }
+        return Collections.unmodifiableMap(plans);
+    }
+}
@@ -0,0 +1,172 @@
+package dietplanner;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Nutrition Hot Path Benchmarks
+//
+// Build and run (allocation rates come from the GC profiler):
+//   mvn -B install
+//   mvn -B -f benchmarks/pom.xml package
+//   java -jar benchmarks/target/benchmarks.jar -prof gc
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class NutritionBenchmarks {
+
+    @State(Scope.Thread)
+    public static class LookupState {
+        // Mixed case and misses so the lower-casing and the failed lookup are both measured
+        final String[] names = {"Apple", "banana", "Chicken Breast", "rice", "BROCCOLI", "salmon",
+            "Spinach", "oats", "egg", "Milk", "almonds", "Sweet Potato", "quinoa", "tofu", "beef", "pasta"};
+        FoodDatabase foodDatabase;
+        int next;
+
+        @Setup
+        public void setUp() {
+            foodDatabase = new FoodDatabase();
+        }
+
+        String nextName() {
+            return names[next++ & (names.length - 1)];
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class TrackerState {
+        @Param({"10", "1000", "100000"})
+        int entries;
+
+        DailyNutritionTracker tracker;
+
+        @Setup
+        public void setUp() {
+            FoodDatabase foodDatabase = new FoodDatabase();
+            List<Food> foods = new ArrayList<>(foodDatabase.getAllFoods());
+            Random random = new Random(42);
+            tracker = new DailyNutritionTracker(foodDatabase);
+            for (int i = 0; i < entries; i++) {
+                tracker.addFood(foods.get(random.nextInt(foods.size())), 20 + random.nextInt(300));
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ProfileState {
+        UserProfile profile;
+
+        @Setup
+        public void setUp() {
+            profile = new UserProfile();
+            profile.setAge(34);
+            profile.setGender('F');
+            profile.setWeight(64.5);
+            profile.setHeight(168);
+            profile.setActivityLevel(3);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class RecommendationState {
+        // 12 is the built-in database; larger sizes use a generated memory-mapped catalog
+        @Param({"12", "10000"})
+        int foods;
+
+        FoodDatabase foodDatabase;
+        MealPlanSolver solver;
+        NutrientGapAnalyzer gapAnalyzer;
+        NutritionSummary lunchOnly;
+        Path catalogFile;
+        PrintStream console;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            if (foods <= 12) {
+                foodDatabase = new FoodDatabase();
+            } else {
+                catalogFile = Files.createTempFile("bench-foods", ".fdc");
+                Random random = new Random(11);
+                List<String> names = new ArrayList<>();
+                List<double[]> values = new ArrayList<>();
+                for (int i = 0; i < foods; i++) {
+                    double protein = random.nextDouble() * 30;
+                    double carbs = random.nextDouble() * 70;
+                    double fat = random.nextDouble() * 25;
+                    double[] nutrients = new double[Nutrient.COUNT];
+                    nutrients[Nutrient.CALORIES.ordinal()] = 4 * protein + 4 * carbs + 9 * fat;
+                    nutrients[Nutrient.PROTEIN.ordinal()] = protein;
+                    nutrients[Nutrient.CARBS.ordinal()] = carbs;
+                    nutrients[Nutrient.FAT.ordinal()] = fat;
+                    nutrients[Nutrient.FIBER.ordinal()] = random.nextDouble() * 10;
+                    for (int n = Nutrient.VITAMIN_C.ordinal(); n < Nutrient.COUNT; n++) {
+                        nutrients[n] = random.nextDouble() * 50;
+                    }
+                    names.add("food " + i);
+                    values.add(nutrients);
+                }
+                MappedFoodCatalog.write(catalogFile, names, values);
+                foodDatabase = new FoodDatabase(catalogFile);
+            }
+            solver = new MealPlanSolver(foodDatabase);
+            gapAnalyzer = new NutrientGapAnalyzer(foodDatabase);
+            foodDatabase.getNutrientRankings();
+            DailyNutritionTracker tracker = new DailyNutritionTracker(foodDatabase);
+            List<Food> all = new ArrayList<>(foodDatabase.getAllFoods());
+            tracker.addFood(all.get(0), 150);
+            tracker.addFood(all.get(all.size() / 2), 200);
+            lunchOnly = tracker.calculateNutritionSummary();
+            // generateRecommendations prints its report; keep the formatting cost, drop the I/O
+            console = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            System.setOut(console);
+            if (catalogFile != null) {
+                Files.deleteIfExists(catalogFile);
+            }
+        }
+    }
+
+    @Benchmark
+    public Food getFood(LookupState state) {
+        return state.foodDatabase.getFood(state.nextName());
+    }
+
+    @Benchmark
+    public NutritionSummary calculateNutritionSummary(TrackerState state) {
+        return state.tracker.calculateNutritionSummary();
+    }
+
+    @Benchmark
+    public double calculateDailyCalories(ProfileState state) {
+        return state.profile.calculateDailyCalories();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void solveMealPlans(RecommendationState state, Blackhole blackhole) {
+        for (MealSlot slot : MealSlot.values()) {
+            blackhole.consume(state.solver.solve(slot, 2000, 2));
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public NutrientGapAnalyzer.GapReport analyzeGaps(RecommendationState state) {
+        return state.gapAnalyzer.analyze(state.lunchOnly, DietaryReferenceIntakes.ADULT_AVERAGE);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void generateRecommendations(RecommendationState state) {
+        MealRecommendationEngine.generateRecommendations(2000, state.foodDatabase);
+    }
+}
@@ -0,0 +1,92 @@
+package dietplanner;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Report Rendering Throughput Benchmarks
+//
+// Reports per second for the buffered renderer in each format against the old per-line
+// printf rendering, both writing to a discarding stream:
+//   java -jar benchmarks/target/benchmarks.jar ReportBenchmarks
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ReportBenchmarks {
+    @Param({"50000"})
+    int users;
+
+    @Param({"8"})
+    int entriesPerUser;
+
+    @Param({"TEXT", "JSON", "CSV"})
+    ReportFormat format;
+
+    String[] userIds;
+    DailyNutritionTracker[] trackers;
+    ReportRenderer renderer;
+    WritableByteChannel channel;
+    PrintStream printStream;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        FoodDatabase foodDatabase = new FoodDatabase();
+        List<Food> foods = new ArrayList<>(foodDatabase.getAllFoods());
+        Random random = new Random(5);
+        userIds = new String[users];
+        trackers = new DailyNutritionTracker[users];
+        for (int u = 0; u < users; u++) {
+            userIds[u] = "user-" + u;
+            trackers[u] = new DailyNutritionTracker(foodDatabase);
+            for (int i = 0; i < entriesPerUser; i++) {
+                trackers[u].addFood(foods.get(random.nextInt(foods.size())), 20 + random.nextInt(300));
+            }
+        }
+        renderer = new ReportRenderer(format);
+        channel = Channels.newChannel(OutputStream.nullOutputStream());
+        printStream = new PrintStream(OutputStream.nullOutputStream(), true, StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void renderer() throws IOException {
+        int u = next++ % users;
+        renderer.renderNutritionSummary(userIds[u], trackers[u].getNutritionSummary());
+        if (renderer.pendingChars() > 256 * 1024) {
+            renderer.writeTo(channel);
+        }
+    }
+
+    // Baseline: the old per-line printf rendering (text only, so the format parameter is ignored)
+    @Benchmark
+    public void printf() {
+        printfSummary(printStream, trackers[next++ % users].getNutritionSummary());
+    }
+
+    private static void printfSummary(PrintStream out, NutritionSummary summary) {
+        out.println("=== Detailed Nutrition Summary ===");
+        out.println("-".repeat(40));
+        out.println("MACRONUTRIENTS:");
+        out.printf("Calories: %.0f kcal\n", summary.get(Nutrient.CALORIES));
+        for (Nutrient nutrient : new Nutrient[] {Nutrient.PROTEIN, Nutrient.CARBS, Nutrient.FAT, Nutrient.FIBER}) {
+            out.printf("%s: %.1f g\n", nutrient.getDisplayName(), summary.get(nutrient));
+        }
+        out.println("\nMICRONUTRIENTS:");
+        for (int n = Nutrient.VITAMIN_C.ordinal(); n < Nutrient.COUNT; n++) {
+            Nutrient nutrient = Nutrient.values()[n];
+            out.printf("  %s: %.1f %s\n", nutrient.getDisplayName(), summary.get(nutrient), nutrient.getUnit());
+        }
+        out.println("\n=== Daily Value Percentages (Approximate) ===");
+        out.printf("Vitamin C: %.0f%% (RDA: 90mg men, 75mg women)\n", (summary.get(Nutrient.VITAMIN_C) / 82.5) * 100);
+        out.printf("Calcium: %.0f%% (RDA: 1000mg)\n", (summary.get(Nutrient.CALCIUM) / 1000) * 100);
+        out.printf("Iron: %.0f%% (RDA: 18mg women, 8mg men)\n", (summary.get(Nutrient.IRON) / 13) * 100);
+        out.printf("Magnesium: %.0f%% (RDA: 400mg men, 310mg women)\n", (summary.get(Nutrient.MAGNESIUM) / 355) * 100);
+    }
+}
@@ -0,0 +1,144 @@
+package dietplanner;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Shard Router Benchmarks
+//
+// Routed calls over the loopback transport. The trial setup loads the users and fails the run
+// if the cohort summary, the share of users a new node takes or the node-down error is wrong:
+//   java -jar benchmarks/target/benchmarks.jar ShardRouterBenchmarks
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ShardRouterBenchmarks {
+    @Param({"4"})
+    int nodes;
+
+    @Param({"100000"})
+    int users;
+
+    @Param({"5"})
+    int entriesPerUser;
+
+    LoopbackShardTransport transport;
+    ShardRouter router;
+    List<String> nodeIds;
+    String[] userIds;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        FoodDatabase foodDatabase = new FoodDatabase();
+        List<Food> foods = new ArrayList<>(foodDatabase.getAllFoods());
+        transport = new LoopbackShardTransport(2);
+        nodeIds = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            ShardNode node = new ShardNode("node-" + i, new NutritionTrackingService(foodDatabase));
+            transport.register(node);
+            nodeIds.add(node.getNodeId());
+        }
+        router = new ShardRouter(transport, new ConsistentHashRing(nodeIds), 10_000);
+
+        Random random = new Random(7);
+        double expectedProtein = 0;
+        int expectedUsers = 0;
+        userIds = new String[users];
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (int u = 0; u < users; u++) {
+            String userId = "user-" + u;
+            userIds[u] = userId;
+            char gender = random.nextBoolean() ? 'M' : 'F';
+            int age = 18 + random.nextInt(60);
+            pending.add(router.setProfile(userId, age, gender, 70, 170, 2));
+            boolean inCohort = gender == 'F' && age >= 30 && age <= 39;
+            expectedUsers += inCohort ? 1 : 0;
+            for (int e = 0; e < entriesPerUser; e++) {
+                Food food = foods.get(random.nextInt(foods.size()));
+                double grams = 50 + random.nextInt(250);
+                pending.add(router.addFood(userId, food, grams));
+                if (inCohort) {
+                    expectedProtein += food.getProtein() * (float) grams / 100;
+                }
+            }
+            if (pending.size() >= 10_000) {
+                CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+                pending.clear();
+            }
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+
+        checkCohort(expectedUsers, expectedUsers == 0 ? 0 : expectedProtein / expectedUsers);
+        checkRebalance();
+        checkNodeDown();
+    }
+
+    private void checkCohort(int expectedUsers, double expectedProtein) {
+        CohortSummary cohort = router.getCohortSummary('F', 30, 39).join();
+        double protein = cohort.getAverage(Nutrient.PROTEIN);
+        if (cohort.getUserCount() != expectedUsers || Math.abs(protein - expectedProtein) > 1e-6 * Math.max(1, expectedProtein)) {
+            throw new IllegalStateException(String.format("Cohort F 30-39: %d users (expected %d), average protein %.4fg (expected %.4fg)",
+                cohort.getUserCount(), expectedUsers, protein, expectedProtein));
+        }
+    }
+
+    // A consistent-hash ring should hand the new node about 1/(n+1) of the users and move no others
+    private void checkRebalance() {
+        ConsistentHashRing grown = router.getRing().withNode("node-" + nodes);
+        int moved = 0;
+        for (String userId : userIds) {
+            String owner = grown.nodeFor(userId);
+            if (!owner.equals(router.nodeFor(userId))) {
+                if (!owner.equals("node-" + nodes)) {
+                    throw new IllegalStateException(userId + " moved between existing nodes");
+                }
+                moved++;
+            }
+        }
+        double share = (double) moved / users;
+        double ideal = 1.0 / (nodes + 1);
+        System.out.printf("%nAdding a node moves %.1f%% of users (ideal %.1f%%)%n", 100 * share, 100 * ideal);
+        if (share < ideal / 2 || share > ideal * 2) {
+            throw new IllegalStateException(String.format("Adding a node moved %.1f%% of users", 100 * share));
+        }
+    }
+
+    private void checkNodeDown() {
+        transport.setDown(nodeIds.get(0), true);
+        try {
+            router.getCohortSummary((char) 0, 0, 200).join();
+            throw new IllegalStateException("Cohort summary succeeded with " + nodeIds.get(0) + " down");
+        } catch (CompletionException e) {
+            if (e.getCause() == null || e.getCause().getMessage() == null
+                    || !e.getCause().getMessage().contains(nodeIds.get(0))) {
+                throw new IllegalStateException("Node-down error does not name " + nodeIds.get(0), e);
+            }
+        } finally {
+            transport.setDown(nodeIds.get(0), false);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        transport.close();
+    }
+
+    // One round trip to the user's node
+    @Benchmark
+    public NutritionSummary getNutritionSummary() {
+        return router.getNutritionSummary(userIds[next++ % users]).join();
+    }
+
+    // Scatter-gather across every node
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public CohortSummary getCohortSummary() {
+        return router.getCohortSummary('F', 30, 39).join();
+    }
+}